@@ -0,0 +1,51 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with JMH, writing the results as JSON.
+ *
+ * Takes the same arguments as JMH itself. Unless another result format is
+ * given, results go to jmh-result.json in the working directory.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public final class ChungusBenchmarks {
+
+    private ChungusBenchmarks(){}
+
+    public static void main(String[] args) throws Exception {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+
+        // JMH names the file after the format, so this is jmh-result.json.
+        if(!options.contains("-rf")) options.addAll(0, Arrays.asList("-rf", "json"));
+
+        org.openjdk.jmh.Main.main(options.toArray(new String[0]));
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appending a batch of messages to the chat window's message list.
+ *
+ * The list starts full, so every message also evicts the oldest one, as
+ * it would in a long session. Batches are appended directly rather than
+ * through the Swing thread, so the frame pacing isn't part of the
+ * measurement; a listener stands in for the JList.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChungusMessageListBenchmark {
+
+    // Messages per batch, i.e. per frame.
+    @Param({"1", "16", "256"})
+    public int batch;
+
+    @Param({"10000"})
+    public int scrollback;
+
+    private MessageListModel model;
+    private ArrayDeque<String> queue;
+    private String[] messages;
+    private long notified;
+
+    @Setup
+    public void setup(){
+        model = new MessageListModel(scrollback, () -> {});
+        model.addListDataListener(new ListDataListener(){
+            @Override
+            public void intervalAdded(ListDataEvent event){
+                notified += event.getIndex1() - event.getIndex0() + 1;
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent event){
+                notified += event.getIndex1() - event.getIndex0() + 1;
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent event){
+                notified += event.getIndex1() - event.getIndex0() + 1;
+            }
+        });
+
+        messages = new String[1024];
+        for(int i = 0; i < messages.length; i++){
+            messages[i] = "[user" + (i % 50) + "] message number " + i;
+        }
+
+        queue = new ArrayDeque<>(batch);
+        for(int i = 0; i < scrollback; i++) queue.add(messages[i % messages.length]);
+        model.append(queue);
+    }
+
+    @Benchmark
+    public boolean append(){
+        for(int i = 0; i < batch; i++) queue.add(messages[i & (messages.length - 1)]);
+        return model.append(queue);
+    }
+
+}
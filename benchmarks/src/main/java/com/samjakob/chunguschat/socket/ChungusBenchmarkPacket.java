@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A representative packet of each type, for the codec benchmarks.
+ *
+ * Each sample is encoded the way the client or server encodes it, and
+ * decoded the way its receiver reads it (string packets are decoded to a
+ * String, offers are taken apart, and so on), so a decode measures
+ * everything up to the point the packet is handed on.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+enum ChungusBenchmarkPacket {
+
+    CHAT_MESSAGE(ChungusProtocol.CHAT_MESSAGE, Shape.STRING,
+            "[alice] has anyone got the notes from this morning's standup?"),
+    USERNAME(ChungusProtocol.USERNAME, Shape.STRING, "alice"),
+    MOTD(ChungusProtocol.MOTD, Shape.NONE, null),
+    COMMAND_USERS(ChungusProtocol.COMMAND_USERS, Shape.NONE, null),
+    // The server's answer to COMMAND_USERS.
+    USER_LIST(ChungusProtocol.COMMAND_USERS | ChungusProtocol.PROTO_MASK_SILENT_COMMAND, Shape.STRING, userList(50)),
+    COMMAND_SET_MOTD(ChungusProtocol.COMMAND_SET_MOTD, Shape.STRING, "Be nice, and keep it on topic."),
+    COMMAND_JOIN_ROOM(ChungusProtocol.COMMAND_JOIN_ROOM, Shape.STRING, "dev"),
+    COMMAND_LEAVE_ROOM(ChungusProtocol.COMMAND_LEAVE_ROOM, Shape.NONE, null),
+    PRESENCE_JOIN(ChungusProtocol.PRESENCE_JOIN, Shape.STRING, "alice"),
+    PRESENCE_LEAVE(ChungusProtocol.PRESENCE_LEAVE, Shape.STRING, "alice"),
+    PRESENCE_RENAME(ChungusProtocol.PRESENCE_RENAME, Shape.STRING, "alice|alice_away"),
+    SYSTEM_HANDSHAKE(ChungusProtocol.SYSTEM_HANDSHAKE, Shape.INT, null),
+    SYSTEM_ANNOUNCEMENT(ChungusProtocol.SYSTEM_ANNOUNCEMENT, Shape.STRING, "The server restarts in 5 minutes."),
+    FT_OFFER(ChungusProtocol.FT_OFFER, Shape.OFFER, "quarterly-report-final-v2.pdf");
+
+    private enum Shape { NONE, INT, STRING, OFFER }
+
+    private static final long OFFER_SIZE = 3_145_728;
+    private static final byte[] OFFER_HASH = new byte[ChungusBlobStore.HASH_LENGTH];
+
+    final int packetId;
+    private final Shape shape;
+    private final String payload;
+
+    ChungusBenchmarkPacket(int packetId, Shape shape, String payload){
+        this.packetId = packetId;
+        this.shape = shape;
+        this.payload = payload;
+    }
+
+    ByteBuffer encode(ChungusWireFormat format) throws IOException {
+        switch(shape){
+            case NONE:
+                return format == ChungusWireFormat.FRAMED
+                        ? ChungusFrameCodec.encode(packetId, false)
+                        : ChungusPacketCodec.encode(packetId);
+            case INT:
+                return format.encode(packetId, format.protocolVersion);
+            case OFFER:
+                return format.encodeOffer(packetId, payload, OFFER_SIZE, OFFER_HASH, false);
+            default:
+                return format.encode(packetId, "", payload, false);
+        }
+    }
+
+    /**
+     * Takes a decoded packet apart the way its receiver would.
+     */
+    Object read(ChungusPacket packet){
+        switch(shape){
+            case INT:
+                return packet.getIntPayload();
+            case STRING:
+                return packet.getPayload();
+            case OFFER:
+                ByteBuffer body = packet.body();
+                body.getLong();
+                body.position(body.position() + ChungusBlobStore.HASH_LENGTH);
+                return ChungusFrameCodec.getString(body);
+            default:
+                return packet;
+        }
+    }
+
+    private static String userList(int users){
+        List<String> names = new ArrayList<>();
+        for(int i = 0; i < users; i++) names.add("user" + i);
+        return String.join("|", names);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Sending one chat message to every connected client.
+ *
+ * The clients are {@link ChungusBenchmarkSink}s, so this measures the
+ * server's side of a broadcast (encoding once per wire format, then
+ * queueing for each client) without any socket writes.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChungusBroadcastBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int clients;
+
+    // MIXED alternates v3 and v4 clients, so each message is encoded twice.
+    @Param({"FRAMED", "LEGACY", "MIXED"})
+    public String format;
+
+    private ChungusRoom lobby;
+    private ChungusSharedFrame message;
+
+    @Setup
+    public void setup() throws IOException {
+        // The server binds its port when it's created, but never accepts.
+        System.setProperty(ChungusSocketServer.PORT_PROPERTY, "0");
+        ChungusSocketServer server = new ChungusSocketServer();
+
+        for(int i = 0; i < clients; i++){
+            ChungusWireFormat clientFormat = format.equals("MIXED")
+                    ? ChungusWireFormat.values()[i % 2]
+                    : ChungusWireFormat.valueOf(format);
+
+            new ChungusBenchmarkSink(server, clientFormat).connect("user" + i);
+        }
+
+        lobby = ChungusSocketServer.getRoom(ChungusRoom.LOBBY);
+        message = ChungusSharedFrame.of(ChungusProtocol.CHAT_MESSAGE, "",
+                "[alice] has anyone got the notes from this morning's standup?");
+    }
+
+    /**
+     * A message from the server to everyone, encoded from scratch.
+     */
+    @Benchmark
+    public void broadcastChatMessage(){
+        ChungusSocketServer.broadcastChatMessage("[alice] has anyone got the notes from this morning's standup?");
+    }
+
+    /**
+     * A message already encoded for each format, published to a room, as
+     * is done for a relayed chat message once the first client is sent it.
+     */
+    @Benchmark
+    public void publishEncoded(){
+        lobby.publish(message);
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures file transfer throughput over loopback.
+ *
+ * This isn't a JMH benchmark, so it's run on its own from the benchmarks
+ * jar:
+ * <pre>
+ *   java -cp benchmarks/target/benchmarks.jar \
+ *       com.samjakob.chunguschat.socket.ChungusFileTransferBenchmark \
+ *       [size in MiB] [runs] [random|text]
+ * </pre>
+ * (default 1024 MiB, 3 runs, random). Random data doesn't compress, so is
+ * sent as it is; text is log-like lines, which are compressed.
+ *
+ * A file of the given size is uploaded with {@link ChungusFileTransfer} to
+ * {@link ChungusFileReceiver}s in the same process, over as many
+ * connections as {@code chunguschat.ft.streams} and
+ * {@code chunguschat.ft.bytesPerStream} allow. The time from starting the
+ * upload (which includes working out the chunk checksums) to the file
+ * being verified on disk is reported for each run. Run with a small heap
+ * (e.g. -Xmx64m) to check that transfers don't depend on the file fitting
+ * in memory.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public final class ChungusFileTransferBenchmark {
+
+    private ChungusFileTransferBenchmark(){}
+
+    public static void main(String[] args) throws Exception {
+        long sizeMiB = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        boolean text = args.length > 2 && args[2].equalsIgnoreCase("text");
+        long size = sizeMiB << 20;
+
+        File directory = Files.createTempDirectory("chungus-ft-bench").toFile();
+        File source = new File(directory, "upload.bin");
+        ChungusBlobStore store = new ChungusBlobStore(new File(directory, "store"));
+        store.open();
+
+        System.out.println("Writing a " + sizeMiB + " MiB " + (text ? "text" : "random") + " test file...");
+        writeTestFile(source, size, text);
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = server.socket().getLocalPort();
+
+            // An upload can use several connections, each received on its
+            // own thread as the server would.
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while(server.isOpen()){
+                        SocketChannel connection = server.accept();
+                        ChungusThreads.start("ChungusFileTransferBenchmark", () -> {
+                            try (SocketChannel channel = connection) {
+                                new ChungusFileReceiver(channel, store).receive();
+                            }catch(IOException ex){
+                                ex.printStackTrace();
+                            }
+                        }, false);
+                    }
+                }catch(IOException ex){
+                    // Closed once the benchmark is done.
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            System.out.println("Uploading over " + ChungusFileTransfer.streamsFor(size) + " connection(s).");
+
+            for(int run = 1; run <= runs; run++){
+                // transfer() only returns once the server has verified the
+                // file and moved it into the store.
+                long startTime = System.nanoTime();
+                ChungusFileTransfer transfer = new ChungusFileTransfer("benchmark", "127.0.0.1", port, source, size);
+                transfer.transfer();
+                long elapsed = System.nanoTime() - startTime;
+
+                File received = store.get(transfer.getContentHash());
+                if(received == null || received.length() != size){
+                    System.out.println("Run " + run + ": received " + (received != null ? received.length() : 0) + " of " + size + " bytes");
+                    break;
+                }
+
+                Runtime runtime = Runtime.getRuntime();
+                System.out.printf("Run %d: %.0f ms, %.1f MiB/s (heap in use: %d MiB)%n",
+                        run, elapsed / 1e6, sizeMiB / (elapsed / 1e9),
+                        (runtime.totalMemory() - runtime.freeMemory()) >> 20);
+
+                // Otherwise the next run would find it already stored.
+                received.delete();
+            }
+        }finally{
+            source.delete();
+            deleteRecursively(directory);
+        }
+    }
+
+    private static void deleteRecursively(File file){
+        File[] children = file.listFiles();
+        if(children != null) for(File child : children) deleteRecursively(child);
+        file.delete();
+    }
+
+    // Fills the file with random-looking data (or log lines), a megabyte at
+    // a time.
+    private static void writeTestFile(File file, long size, boolean text) throws IOException {
+        byte[] block = new byte[1 << 20];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if(text){
+            StringBuilder lines = new StringBuilder(block.length + 128);
+            while(lines.length() < block.length){
+                lines.append(String.format("2019-06-%02d %02d:%02d:%02d.%03d INFO [ChungusConnection-%d] user%d sent %d bytes to room #general%n",
+                        random.nextInt(1, 31), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                        random.nextInt(1000), random.nextInt(64), random.nextInt(1000), random.nextInt(4096)));
+            }
+            System.arraycopy(lines.toString().getBytes(StandardCharsets.US_ASCII), 0, block, 0, block.length);
+        }else{
+            random.nextBytes(block);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for(long position = 0; position < size; ){
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - position));
+                while(buffer.hasRemaining()) position += channel.write(buffer);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding the packets a v3 client sends.
+ *
+ * The server only ever decodes v3 packets coming from clients (v3 clients
+ * read theirs with a DataInputStream), so only those are listed.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChungusPacketCodecBenchmark {
+
+    @Param({
+        "CHAT_MESSAGE", "USERNAME", "MOTD", "COMMAND_USERS", "COMMAND_SET_MOTD",
+        "COMMAND_LEAVE_ROOM", "SYSTEM_HANDSHAKE", "SYSTEM_ANNOUNCEMENT"
+    })
+    public String packet;
+
+    private ChungusBenchmarkPacket sample;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        sample = ChungusBenchmarkPacket.valueOf(packet);
+        encoded = sample.encode(ChungusWireFormat.LEGACY);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return sample.encode(ChungusWireFormat.LEGACY);
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        return sample.read(ChungusPacketCodec.decode(encoded.duplicate()));
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading the user list while clients come and go.
+ *
+ * In the churn group, one thread keeps connecting a client, naming it and
+ * disconnecting it again (each of which invalidates the cached list),
+ * while the others read the list. The steady benchmark reads it with
+ * nobody joining or leaving, so always gets the cached copy.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChungusUserListBenchmark {
+
+    @Param({"100", "1000"})
+    public int clients;
+
+    private ChungusSocketServer server;
+    private long joined;
+
+    @Setup
+    public void setup() throws IOException {
+        System.setProperty(ChungusSocketServer.PORT_PROPERTY, "0");
+        server = new ChungusSocketServer();
+
+        for(int i = 0; i < clients; i++){
+            new ChungusBenchmarkSink(server, ChungusWireFormat.FRAMED).connect("user" + i);
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(3)
+    public List<String> getConnectedUsers(){
+        return ChungusSocketServer.getConnectedUsers();
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(1)
+    public void connectAndLeave() throws IOException {
+        ChungusBenchmarkSink sink = new ChungusBenchmarkSink(server, ChungusWireFormat.FRAMED);
+        sink.connect("guest" + joined++);
+        ChungusSocketServer.remove(sink);
+    }
+
+    @Benchmark
+    public List<String> getConnectedUsersSteady(){
+        return ChungusSocketServer.getConnectedUsers();
+    }
+
+}
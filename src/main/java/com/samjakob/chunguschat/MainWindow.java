@@ -23,7 +23,10 @@
  */
 package com.samjakob.chunguschat;
 
+import com.samjakob.chunguschat.socket.ChungusFileDownload;
 import com.samjakob.chunguschat.socket.ChungusFileTransfer;
+import com.samjakob.chunguschat.socket.ChungusHistoryEntry;
+import com.samjakob.chunguschat.socket.ChungusInlineUpload;
 import com.samjakob.chunguschat.socket.ChungusProtocolVersionMap;
 import com.samjakob.chunguschat.socket.ChungusProtocol;
 import com.samjakob.chunguschat.socket.ChungusSocket;
@@ -34,18 +37,19 @@ import java.awt.Image;
 import java.io.File;
 import java.net.InetAddress;
 import java.net.URI;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 
 import javax.swing.DefaultListModel;
 import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
-import javax.swing.JScrollBar;
-import javax.swing.JScrollPane;
 import javax.swing.SwingUtilities;
 
 /**
@@ -55,8 +59,24 @@ import javax.swing.SwingUtilities;
 public class MainWindow extends javax.swing.JFrame {
 
     private String username;
-    private List<String> messages;
+    private MessageListModel messageModel;
     private ChungusSocket activeSocket;
+    // Whether this window started the server it's connected to.
+    private boolean hosting;
+    
+    // Kept up to date by the server's presence events.
+    private DefaultListModel<String> userListModel;
+    
+    // The sequence number of the oldest message fetched from the server's
+    // history for the current room and shown, so /history knows where to
+    // carry on. Only touched on the Swing thread.
+    private long oldestHistorySequence = Long.MAX_VALUE;
+    private static final int HISTORY_PAGE_SIZE = 50;
+    
+    // The SHA-256 of each offered file, by its [Download] line. Keyed by
+    // the line itself rather than its text, since two offers can read the
+    // same; an entry goes when its line leaves the message list.
+    private final Map<String, String> offeredFiles = Collections.synchronizedMap(new IdentityHashMap<>());
     
     /**
      * Creates new form MainWindow
@@ -64,6 +84,17 @@ public class MainWindow extends javax.swing.JFrame {
     public MainWindow() {
         initComponents();
         
+        userListModel = new DefaultListModel<>();
+        userList.setModel(userListModel);
+        
+        messageModel = new MessageListModel(MessageListModel.scrollbackFromSystemProperty(), this::scrollToEnd, offeredFiles::remove);
+        messageList.setModel(messageModel);
+        // Every message is one line, so there's no need for the list to
+        // measure each cell's height.
+        messageList.setFixedCellHeight(messageList.getCellRenderer()
+                .getListCellRendererComponent(messageList, "Chungus", 0, false, false)
+                .getPreferredSize().height);
+        
         ChungusProtocolVersionMap protocolVersion =
                         ChungusProtocolVersionMap.forProtocolVersion(ChungusProtocol.PROTOCOL_VERSION);
         
@@ -78,7 +109,6 @@ public class MainWindow extends javax.swing.JFrame {
         );
 
         username = "AnonymousChungus" + ThreadLocalRandom.current().nextInt(10000, 100000);
-        messages = new ArrayList<>();
         
         ImageIcon icon = new ImageIcon(getClass().getClassLoader().getResource("chungus.png"));
         this.setIconImage(icon.getImage());
@@ -257,13 +287,24 @@ public class MainWindow extends javax.swing.JFrame {
         messageList.clearSelection();
         
         if(item.startsWith("[Download] ")){
-            String[] segments = item.split(" ");
-            if(segments.length >= 2){
-                String fileName = segments[1];
-                
-                
+            String contentHash = offeredFiles.get(item);
+            if(contentHash == null){
+                addMessage("That file can't be downloaded from this server.");
+                return;
+            }
+            
+            String fileName = item.substring("[Download] ".length(), item.lastIndexOf(" ["));
+            
+            JFileChooser fileChooser = new JFileChooser();
+            fileChooser.setSelectedFile(new File(fileName));
+            if(fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            
+            try {
+                new ChungusFileDownload(activeSocket.getHost(), contentHash, fileChooser.getSelectedFile(), this::addMessage).start();
+                addMessage("Downloading " + fileName + "...");
+            }catch(Exception ex){
+                addMessage("File download failed.");
             }
-            System.out.println("Initiate file transfer...");
         }
         
         if(item.startsWith("[Link] ")){
@@ -296,6 +337,7 @@ public class MainWindow extends javax.swing.JFrame {
             case "/host":
                 try {
                     new ChungusSocketServer().host();
+                    hosting = true;
 
                     InetAddress[] all = InetAddress.getAllByName(InetAddress.getLocalHost().getCanonicalHostName());
                     String ip = all[0].getHostAddress();
@@ -318,9 +360,26 @@ public class MainWindow extends javax.swing.JFrame {
                     return true;
                 }
                 
+                // host or host:port, for servers on a non-standard port.
+                String host = arguments[0];
+                int port = ChungusSocketServer.CHUNGUS_CHAT_PORT;
+                int colon = host.lastIndexOf(':');
+                
+                if(colon > 0 && host.indexOf(':') == colon){
+                    try {
+                        port = Integer.parseInt(host.substring(colon + 1));
+                        host = host.substring(0, colon);
+                    }catch(NumberFormatException ex){
+                        addMessage("[SYSTEM] Invalid port: " + host.substring(colon + 1));
+                        return true;
+                    }
+                }
+                
                 addMessage("[SYSTEM] Connecting to " + arguments[0]);
+                // Files offered so far are on the old server.
+                offeredFiles.clear();
                 activeSocket = new ChungusSocket(this::addMessage, this::handleCommand, this::handleDisconnect, this::onPropertyUpdated, this::onTransferOffer);
-                activeSocket.connect(arguments[0], ChungusSocketServer.CHUNGUS_CHAT_PORT, username);
+                activeSocket.connect(host, port, username);
                 connectedTo.setText(arguments[0]);
                 
                 addMessage("");
@@ -331,24 +390,47 @@ public class MainWindow extends javax.swing.JFrame {
                 addMessage("");
                 handleCommand("/motd");
                 
-                new Timer().scheduleAtFixedRate(new TimerTask(){
-                    @Override
-                    public void run(){
-                        if(!activeSocket.isConnected()){
-                            this.cancel();
-                            return;
-                        }
-                        
-                        activeSocket.sendCommand(
-                            ChungusProtocol.COMMAND_USERS | ChungusProtocol.PROTO_MASK_SILENT_COMMAND
-                        );
-                    }
-                }, 0, 500);
+                oldestHistorySequence = Long.MAX_VALUE;
+                activeSocket.requestHistory(true, oldestHistorySequence, HISTORY_PAGE_SIZE);
+                
+                // The server sends the user list once we've joined and pushes
+                // changes to it from then on.
                 return true;
             case "/users":
             case "/list":
                 activeSocket.sendCommand(ChungusProtocol.COMMAND_USERS);
                 return true;
+            case "/room":
+                if(arguments.length < 1){
+                    addMessage("[SYSTEM] You must specify a room to join.");
+                    return true;
+                }
+                
+                // The new room's history starts from an empty list, so it
+                // isn't mixed up with the old room's.
+                messageModel.clear();
+                activeSocket.joinRoom(String.join(" ", arguments));
+                oldestHistorySequence = Long.MAX_VALUE;
+                activeSocket.requestHistory(true, oldestHistorySequence, HISTORY_PAGE_SIZE);
+                return true;
+            case "/leave":
+            case "/lobby":
+                messageModel.clear();
+                activeSocket.sendCommand(ChungusProtocol.COMMAND_LEAVE_ROOM);
+                oldestHistorySequence = Long.MAX_VALUE;
+                activeSocket.requestHistory(true, oldestHistorySequence, HISTORY_PAGE_SIZE);
+                return true;
+            case "/stats":
+                activeSocket.sendCommand(ChungusProtocol.COMMAND_STATS);
+                return true;
+            case "/history":
+                if(oldestHistorySequence == 0){
+                    addMessage("[SYSTEM] There are no earlier messages.");
+                    return true;
+                }
+                
+                activeSocket.requestHistory(true, oldestHistorySequence, HISTORY_PAGE_SIZE);
+                return true;
             case "/username":
                 if(arguments.length < 1) {
                     addMessage("[SYSTEM] You are called " + username);
@@ -372,6 +454,33 @@ public class MainWindow extends javax.swing.JFrame {
                 addMessage("MOTD updated to: " + String.join(" ", arguments));
                 return true;
             
+            case "/limit":
+                if(!hosting){
+                    addMessage("[SYSTEM] Only the host can limit file transfers.");
+                    return true;
+                }
+                
+                if(arguments.length < 1){
+                    addMessage("[SYSTEM] File transfers are limited to " + formatRate(ChungusSocketServer.getTransferLimit())
+                            + " in total and " + formatRate(ChungusSocketServer.getUserTransferLimit()) + " per user.");
+                    addMessage("[SYSTEM] Use /limit <total> [per user], e.g. /limit 10M 2M, or /limit off.");
+                    return true;
+                }
+                
+                long total = parseRate(arguments[0]);
+                long perUser = arguments.length > 1 ? parseRate(arguments[1]) : ChungusSocketServer.getUserTransferLimit();
+                if(arguments[0].equals("off")) perUser = 0;
+                
+                if(total < 0 || perUser < 0){
+                    addMessage("[SYSTEM] Limits are in bytes a second, like 512K, 10M or off.");
+                    return true;
+                }
+                
+                ChungusSocketServer.setTransferLimits(total, perUser);
+                addMessage("[SYSTEM] File transfers are now limited to " + formatRate(total) + " in total and "
+                        + formatRate(perUser) + " per user.");
+                return true;
+            
             case "/upload":
                 String path = "";
                 
@@ -394,7 +503,10 @@ public class MainWindow extends javax.swing.JFrame {
                 long fileSize = file.length();
                 
                 try {
-                    new ChungusFileTransfer(this.username, this.connectedTo.getText(), file, fileSize).start();
+                    // Either alongside chat, or over a connection of its own
+                    // to the server's file transfer port.
+                    if(ChungusInlineUpload.isEnabled()) new ChungusInlineUpload(activeSocket, file, fileSize).start();
+                    else new ChungusFileTransfer(this.username, activeSocket.getHost(), file, fileSize).start();
                 }catch(Exception ex){
                     addMessage("File transfer failed.");
                 }
@@ -406,8 +518,40 @@ public class MainWindow extends javax.swing.JFrame {
     }
     
     private void addMessage(String message){
-        messages.add(message);
-        refreshMessages();
+        messageModel.post(message);
+    }
+    
+    /**
+     * Parses a rate in bytes a second, with an optional K, M or G suffix,
+     * or "off" for no limit (0).
+     * 
+     * @return the rate, or -1 if it isn't one.
+     */
+    private static long parseRate(String rate){
+        if(rate.isEmpty()) return -1;
+        if(rate.equalsIgnoreCase("off")) return 0;
+        
+        long unit = 1;
+        switch(Character.toUpperCase(rate.charAt(rate.length() - 1))){
+            case 'K': unit = 1L << 10; break;
+            case 'M': unit = 1L << 20; break;
+            case 'G': unit = 1L << 30; break;
+        }
+        if(unit > 1) rate = rate.substring(0, rate.length() - 1);
+        
+        try {
+            long value = Long.parseLong(rate);
+            return value >= 0 ? value * unit : -1;
+        }catch(NumberFormatException ex){
+            return -1;
+        }
+    }
+    
+    private static String formatRate(long rate){
+        if(rate == 0) return "no limit";
+        if(rate % (1L << 20) == 0) return (rate >> 20) + " MiB/s";
+        if(rate % (1L << 10) == 0) return (rate >> 10) + " KiB/s";
+        return rate + " B/s";
     }
 
     private void handleCommand(int command, Object data){
@@ -417,20 +561,37 @@ public class MainWindow extends javax.swing.JFrame {
                 addMessage("[SYSTEM] There are " + userList.length + " users online:");
                 addMessage(Arrays.toString(userList));
                 break;
+            case ChungusProtocol.COMMAND_HISTORY:
+                ChungusHistoryEntry[] history = (ChungusHistoryEntry[]) data;
+                if(history.length == 0){
+                    // Nothing (more) to fetch for this room.
+                    SwingUtilities.invokeLater(() -> oldestHistorySequence = 0);
+                    break;
+                }
+                
+                // Older messages go above everything already shown.
+                SimpleDateFormat time = new SimpleDateFormat("[HH:mm] ");
+                List<String> earlier = new ArrayList<>(history.length);
+                for(ChungusHistoryEntry entry : history){
+                    earlier.add(time.format(new Date(entry.getTimestamp())) + entry.getMessage());
+                }
+                
+                SwingUtilities.invokeLater(() -> {
+                    // Only carry on from the oldest message that fitted, so
+                    // none are skipped.
+                    int shown = messageModel.prepend(earlier);
+                    if(shown > 0) oldestHistorySequence = history[history.length - shown].getSequence();
+                    else addMessage("[SYSTEM] The scrollback is full, so no earlier messages can be shown.");
+                });
+                break;
+            case ChungusProtocol.COMMAND_STATS:
+                for(String line : (String[]) data) addMessage("[STATS] " + line);
+                break;
         }
     }
     
-    private void refreshMessages(){
-        DefaultListModel<String> model = new DefaultListModel<>();
-        messages.forEach(model::addElement);
-        messageList.setModel(model);
-        
-        // Scroll messages pane to the end.
-        SwingUtilities.invokeLater(() -> {
-            JScrollPane scrollPane = jScrollPane1;
-            JScrollBar vertical = scrollPane.getVerticalScrollBar();
-            vertical.setValue(vertical.getMaximum());
-        });
+    private void scrollToEnd(){
+        messageList.ensureIndexIsVisible(messageModel.getSize() - 1);
     }
     
     private void handleDisconnect(){
@@ -442,19 +603,41 @@ public class MainWindow extends javax.swing.JFrame {
     }
     
     private void onPropertyUpdated(PropertyUpdatedCallback.Property property, Object data){
-        switch(property){
-            case USER_LIST:
-                List<String> users = Arrays.asList((String[]) data);
-                
-                DefaultListModel<String> userListModel = new DefaultListModel<>();
-                users.forEach(userListModel::addElement);
-                userList.setModel(userListModel);
-                break;
-        }
+        // Called on the socket thread; the model must only be touched on the EDT.
+        SwingUtilities.invokeLater(() -> {
+            switch(property){
+                case USER_LIST:
+                    List<String> users = Arrays.asList((String[]) data);
+                    
+                    userListModel.clear();
+                    users.forEach(userListModel::addElement);
+                    break;
+                    
+                case USER_JOINED:
+                    if(!userListModel.contains((String) data)) userListModel.addElement((String) data);
+                    break;
+                    
+                case USER_LEFT:
+                    userListModel.removeElement((String) data);
+                    break;
+                    
+                case USER_RENAMED:
+                    String[] names = (String[]) data;
+                    if(names.length < 2) break;
+                    
+                    int index = userListModel.indexOf(names[0]);
+                    
+                    if(index >= 0) userListModel.set(index, names[1]);
+                    else if(!userListModel.contains(names[1])) userListModel.addElement(names[1]);
+                    break;
+            }
+        });
     }
     
-    private void onTransferOffer(String fileName, long fileSize){
-        addMessage("[Download] " + fileName + " [" + fileSize + " bytes]");
+    private void onTransferOffer(String fileName, long fileSize, String contentHash){
+        String item = "[Download] " + fileName + " [" + fileSize + " bytes]";
+        if(contentHash != null) offeredFiles.put(item, contentHash);
+        addMessage(item);
     }
     
 
@@ -0,0 +1,229 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import javax.swing.AbstractListModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * The chat window's message list.
+ *
+ * Messages are kept in a ring buffer of fixed capacity: once it's full the
+ * oldest message is dropped for each new one, so a long session uses a
+ * constant amount of memory. Listeners are only told about the messages
+ * that were added or removed, never about the whole list.
+ *
+ * Messages can be added from any thread. They're queued and handed to the
+ * list on the Swing thread in batches, at most once per frame, so a busy
+ * channel doesn't flood the event queue.
+ *
+ * Whoever keeps something for a message (like the file a [Download] line
+ * offers) can be told when it leaves the list, so it can let go of it.
+ *
+ * The capacity can be set with the {@code chunguschat.client.scrollback}
+ * system property (default 10000 lines).
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class MessageListModel extends AbstractListModel<String> {
+
+    static final String SCROLLBACK_PROPERTY = "chunguschat.client.scrollback";
+    static final int DEFAULT_SCROLLBACK = 10000;
+
+    // Roughly one frame at 60 Hz.
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private final String[] lines;
+    // Index in lines of the first (oldest) message.
+    private int head;
+    private int size;
+
+    private final ConcurrentLinkedQueue<String> pending;
+    private final AtomicBoolean flushScheduled;
+    private final Runnable onFlush;
+    private final Consumer<String> onRemoved;
+
+    // Only touched on the Swing thread.
+    private final Timer flushTimer;
+    private long lastFlush;
+
+    /**
+     * @param onFlush run on the Swing thread after each batch of messages
+     * is added, e.g. to scroll to the end.
+     */
+    MessageListModel(int capacity, Runnable onFlush){
+        this(capacity, onFlush, message -> {});
+    }
+
+    /**
+     * @param onFlush run on the Swing thread after each batch of messages
+     * is added, e.g. to scroll to the end.
+     * @param onRemoved given each message, on the Swing thread, once it's
+     * been dropped from the list (or from the queue, before it got there).
+     */
+    MessageListModel(int capacity, Runnable onFlush, Consumer<String> onRemoved){
+        this.lines = new String[Math.max(1, capacity)];
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean();
+        this.onFlush = onFlush;
+        this.onRemoved = onRemoved;
+
+        this.flushTimer = new Timer(0, event -> flush());
+        this.flushTimer.setRepeats(false);
+        this.lastFlush = System.nanoTime() - FRAME_NANOS;
+    }
+
+    static int scrollbackFromSystemProperty(){
+        return Integer.getInteger(SCROLLBACK_PROPERTY, DEFAULT_SCROLLBACK);
+    }
+
+    @Override
+    public int getSize(){
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index){
+        return lines[(head + index) % lines.length];
+    }
+
+    /**
+     * Queues a message to be added to the end of the list. May be called
+     * from any thread.
+     */
+    void post(String message){
+        pending.add(message);
+
+        if(flushScheduled.compareAndSet(false, true)) SwingUtilities.invokeLater(this::flush);
+    }
+
+    /**
+     * Adds older messages to the start of the list, oldest first. Only as
+     * many as there's room for are kept, since the newer messages already
+     * in the list take priority. Must be called on the Swing thread.
+     *
+     * @return how many were added: the newest ones, as many as fitted.
+     */
+    int prepend(List<String> messages){
+        int count = Math.min(messages.size(), lines.length - size);
+        if(count == 0) return 0;
+
+        // Keep the ones nearest the messages already shown.
+        int from = messages.size() - count;
+        head = Math.floorMod(head - count, lines.length);
+        for(int i = 0; i < count; i++){
+            lines[(head + i) % lines.length] = messages.get(from + i);
+        }
+
+        size += count;
+        fireIntervalAdded(this, 0, count - 1);
+        return count;
+    }
+
+    /**
+     * Removes every message, including any still queued. Must be called on
+     * the Swing thread.
+     */
+    void clear(){
+        String message;
+        while((message = pending.poll()) != null) onRemoved.accept(message);
+        if(size == 0) return;
+
+        for(int i = 0; i < size; i++) onRemoved.accept(getElementAt(i));
+
+        int removed = size;
+        Arrays.fill(lines, null);
+        head = 0;
+        size = 0;
+        fireIntervalRemoved(this, 0, removed - 1);
+    }
+
+    /**
+     * Moves the queued messages into the list. Runs on the Swing thread.
+     */
+    private void flush(){
+        // If the last batch went in less than a frame ago, hold this one
+        // back until the next frame; messages keep queueing meanwhile.
+        long wait = lastFlush + FRAME_NANOS - System.nanoTime();
+        if(wait > 0){
+            flushTimer.setInitialDelay((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            flushTimer.restart();
+            return;
+        }
+        lastFlush = System.nanoTime();
+
+        // Cleared first, so a message queued while draining schedules
+        // another flush rather than being left behind.
+        flushScheduled.set(false);
+
+        if(append(pending)) onFlush.run();
+    }
+
+    /**
+     * Moves every message in the queue to the end of the list and tells
+     * listeners. Must be called on the Swing thread.
+     *
+     * @return false if the queue was empty.
+     */
+    boolean append(Queue<String> messages){
+        int before = size;
+        int evicted = 0;
+        boolean added = false;
+
+        String message;
+        while((message = messages.poll()) != null){
+            if(size == lines.length){
+                onRemoved.accept(lines[head]);
+                lines[head] = null;
+                head = (head + 1) % lines.length;
+                size--;
+                evicted++;
+            }
+
+            lines[(head + size) % lines.length] = message;
+            size++;
+            added = true;
+        }
+
+        if(!added) return false;
+
+        // A batch bigger than the buffer evicts some of its own messages,
+        // which listeners never saw, so only report the ones they did.
+        int removed = Math.min(evicted, before);
+        int kept = before - removed;
+
+        if(removed > 0) fireIntervalRemoved(this, 0, removed - 1);
+        fireIntervalAdded(this, kept, size - 1);
+        return true;
+    }
+
+}
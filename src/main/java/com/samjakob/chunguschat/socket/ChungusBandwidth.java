@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the server's bandwidth between the file transfers going through
+ * it, so that one big upload or download can't crowd out chat.
+ *
+ * There are two limits, each a {@link ChungusTokenBucket}: one for every
+ * transfer on the server together, and one for each user's transfers.
+ * Either can be 0, for no limit. Uploads and downloads both count, as do
+ * uploads over the chat connection. Users are told apart by the address
+ * they connect from: the username an upload gives is whatever the client
+ * says it is, so a new one for every connection would otherwise get a
+ * fresh limit every time.
+ *
+ * Each transfer takes QUANTUM bytes at a time and waits its turn for them,
+ * so any number of transfers can run at once and those sharing a limit
+ * get about equal shares of it.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusBandwidth {
+
+    /**
+     * The most a transfer takes from its limits at once.
+     */
+    static final int QUANTUM = 64 << 10;
+
+    private final ChungusTokenBucket total;
+    private long userRate;
+
+    // Buckets for addresses with a transfer going, and how many they have.
+    // Guarded by this.
+    private final Map<String, ChungusTokenBucket> users;
+    private final Map<String, Integer> transfers;
+
+    ChungusBandwidth(long totalRate, long userRate){
+        this.total = new ChungusTokenBucket(totalRate);
+        this.userRate = Math.max(0, userRate);
+        this.users = new HashMap<>();
+        this.transfers = new HashMap<>();
+    }
+
+    /**
+     * Limits set with {@code chunguschat.ft.rateLimit} (for the whole
+     * server) and {@code chunguschat.ft.userRateLimit} (for each user), in
+     * bytes a second. Both default to 0, for no limit.
+     */
+    static ChungusBandwidth fromSystemProperties(){
+        return new ChungusBandwidth(Long.getLong("chunguschat.ft.rateLimit", 0), Long.getLong("chunguschat.ft.userRateLimit", 0));
+    }
+
+    /**
+     * Changes the limits, including for transfers already going.
+     */
+    synchronized void setLimits(long totalRate, long userRate){
+        this.total.setRate(totalRate);
+        this.userRate = Math.max(0, userRate);
+
+        for(ChungusTokenBucket bucket : users.values()) bucket.setRate(this.userRate);
+    }
+
+    long getTotalLimit(){
+        return total.getRate();
+    }
+
+    synchronized long getUserLimit(){
+        return userRate;
+    }
+
+    /**
+     * Starts a transfer for the user at the given address (see clientOf).
+     * It must be closed once it's done.
+     */
+    synchronized Transfer open(String user){
+        ChungusTokenBucket bucket = users.get(user);
+        if(bucket == null){
+            bucket = new ChungusTokenBucket(userRate);
+            users.put(user, bucket);
+        }
+
+        transfers.merge(user, 1, Integer::sum);
+        return new Transfer(user, bucket);
+    }
+
+    /**
+     * The address a connection comes from, which its transfers are limited
+     * by.
+     */
+    static String clientOf(SocketAddress address){
+        return address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null
+                ? ((InetSocketAddress) address).getAddress().getHostAddress()
+                : String.valueOf(address);
+    }
+
+    private synchronized void close(String user){
+        if(transfers.merge(user, -1, Integer::sum) > 0) return;
+
+        transfers.remove(user);
+        users.remove(user);
+    }
+
+    /**
+     * One transfer's share of the limits.
+     */
+    final class Transfer implements AutoCloseable {
+
+        private final String user;
+        private final ChungusTokenBucket bucket;
+        private boolean closed;
+
+        private Transfer(String user, ChungusTokenBucket bucket){
+            this.user = user;
+            this.bucket = bucket;
+        }
+
+        /**
+         * Whether either limit applies right now.
+         */
+        boolean isLimited(){
+            return total.getRate() > 0 || bucket.getRate() > 0;
+        }
+
+        /**
+         * Takes bytes from both limits without waiting.
+         *
+         * @return how long, in nanoseconds, to wait before sending them.
+         */
+        long reserve(long bytes){
+            return Math.max(bucket.reserve(bytes), total.reserve(bytes));
+        }
+
+        /**
+         * Waits until the bytes can be sent, QUANTUM at a time.
+         */
+        void acquire(long bytes) throws InterruptedIOException {
+            try {
+                while(bytes > 0){
+                    long quantum = Math.min(QUANTUM, bytes);
+                    long wait = reserve(quantum);
+                    if(wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                    bytes -= quantum;
+                }
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+
+        @Override
+        public void close(){
+            synchronized(ChungusBandwidth.this){
+                if(closed) return;
+                closed = true;
+            }
+
+            ChungusBandwidth.this.close(user);
+        }
+
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The server's store of uploaded files, kept by the SHA-256 of their
+ * contents.
+ *
+ * A file uploaded any number of times, by anyone and under any name, is only
+ * stored once. Stored files (blobs) never change, so any number of
+ * downloads can read the same one at once.
+ *
+ * <pre>
+ * &lt;store&gt;/ab/abcdef...   a blob, named by its hash
+ * &lt;store&gt;/incoming/       uploads that are still in progress
+ * </pre>
+ *
+ * The store is kept in the directory set with the
+ * {@code chunguschat.server.storeDir} system property, or in
+ * {@code .chunguschat/store} in the user's home directory.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusBlobStore {
+
+    public static final String STORE_DIR_PROPERTY = "chunguschat.server.storeDir";
+
+    static final int HASH_LENGTH = 32;
+
+    private final File directory;
+    private final File incoming;
+
+    ChungusBlobStore(File directory){
+        this.directory = directory;
+        this.incoming = new File(directory, "incoming");
+    }
+
+    static ChungusBlobStore fromSystemProperties() throws IOException {
+        String directory = System.getProperty(STORE_DIR_PROPERTY);
+        File storeDirectory = directory != null && !directory.trim().isEmpty()
+                ? new File(directory.trim())
+                : new File(System.getProperty("user.home"), ".chunguschat" + File.separator + "store");
+
+        ChungusBlobStore store = new ChungusBlobStore(storeDirectory);
+        store.open();
+        return store;
+    }
+
+    void open() throws IOException {
+        if(!incoming.isDirectory() && !incoming.mkdirs()){
+            throw new IOException("Couldn't create file store directory " + incoming);
+        }
+    }
+
+    /**
+     * Where uploads that are still in progress are kept.
+     */
+    File getIncomingDirectory(){
+        return incoming;
+    }
+
+    /**
+     * The blob with the given hash, or null if it isn't stored.
+     */
+    File get(String hash){
+        if(!isValidHash(hash)) return null;
+
+        File blob = blobFile(hash);
+        return blob.isFile() ? blob : null;
+    }
+
+    /**
+     * Moves a file into the store as the blob with the given hash, which the
+     * caller has already checked. If the blob is already stored the file is
+     * just deleted.
+     *
+     * @return the blob.
+     */
+    File put(String hash, File file) throws IOException {
+        if(!isValidHash(hash)) throw new IllegalArgumentException("Invalid hash: " + hash);
+
+        File blob = blobFile(hash);
+        File parent = blob.getParentFile();
+        if(!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()){
+            throw new IOException("Couldn't create file store directory " + parent);
+        }
+
+        if(blob.isFile()){
+            // Someone else uploaded the same file at the same time.
+            Files.delete(file.toPath());
+            return blob;
+        }
+
+        // Incoming files are in the store's directory, so this is a rename
+        // and the blob appears all at once.
+        Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return blob;
+    }
+
+    private File blobFile(String hash){
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+
+    /*
+     * Hashes
+     */
+
+    static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }catch(NoSuchAlgorithmException ex){
+            // Every JVM is required to provide SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * The SHA-256 of a file, as hex.
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while(channel.read(buffer) >= 0){
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    static boolean isValidHash(String hash){
+        return hash != null && hash.matches("[0-9a-f]{64}");
+    }
+
+    static String toHex(byte[] bytes){
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes){
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+            hex.append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    static byte[] fromHex(String hex){
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++){
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+}
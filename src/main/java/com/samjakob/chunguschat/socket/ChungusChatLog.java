@@ -0,0 +1,689 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An append-only log of every chat message broadcast by a server, kept on
+ * disk so that clients can page back through a room's history.
+ *
+ * Messages are numbered with a sequence number that only ever increases,
+ * and written to segment files that are memory-mapped, so appending is a
+ * copy into memory and reading a page of history copies the message bytes
+ * straight out of the mapped file. Each segment is named after the first
+ * sequence number in it and has a sparse index (every Nth record's
+ * sequence number and position) so a page can be found without scanning
+ * the whole segment. Once the active segment is full a new one is started,
+ * and the oldest segments are deleted beyond the retention limit.
+ *
+ * Each segment also notes which rooms have messages between each pair of
+ * index entries, so a page of a quiet room's history only reads the
+ * stretches that room is in, rather than every message since.
+ *
+ * Rooms hand their messages to submit, which queues them for a single
+ * writer thread, so a room never waits on the log (or on other rooms) to
+ * broadcast. A message is in the history shortly after it's broadcast,
+ * rather than at once. If the disk is so slow that the writer falls a long
+ * way behind, messages are left out of the history (and counted) rather
+ * than holding up the rooms.
+ *
+ * A record is:
+ * <pre>
+ *   int   length (of everything after this field)
+ *   long  sequence
+ *   long  timestamp (ms since the epoch)
+ *   short room name length, followed by the room name (UTF-8; empty for
+ *         messages sent to every room)
+ *   ...   the message (UTF-8)
+ * </pre>
+ *
+ * Configured with system properties; the log is only kept if a directory
+ * is set:
+ * <ul>
+ *   <li>{@code chunguschat.log.dir} - where to keep the segments.</li>
+ *   <li>{@code chunguschat.log.segmentBytes} - size of each segment
+ *   (default 16 MiB). Segments are allocated at full size up front.</li>
+ *   <li>{@code chunguschat.log.retainSegments} - how many segments to keep
+ *   (default 16; 0 keeps them all).</li>
+ *   <li>{@code chunguschat.log.indexInterval} - index every Nth record
+ *   (default 32).</li>
+ * </ul>
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusChatLog {
+
+    public static final String DIR_PROPERTY = "chunguschat.log.dir";
+    public static final String SEGMENT_BYTES_PROPERTY = "chunguschat.log.segmentBytes";
+    public static final String RETAIN_SEGMENTS_PROPERTY = "chunguschat.log.retainSegments";
+    public static final String INDEX_INTERVAL_PROPERTY = "chunguschat.log.indexInterval";
+
+    // The most records a client can ask for at once.
+    static final int MAX_PAGE_SIZE = 200;
+
+    // How many messages can wait for the writer before they're dropped.
+    static final int MAX_PENDING = 4096;
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final int RECORD_HEADER_LENGTH = 8 + 8 + 2;
+
+    private final File directory;
+    private final int segmentBytes;
+    private final int retainSegments;
+    private final int indexInterval;
+
+    private final ReentrantReadWriteLock lock;
+    private final List<Segment> segments;
+    private long nextSequence;
+
+    private final BlockingQueue<Pending> pending;
+    private final AtomicLong dropped;
+
+    ChungusChatLog(File directory, int segmentBytes, int retainSegments, int indexInterval){
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retainSegments = retainSegments;
+        this.indexInterval = Math.max(1, indexInterval);
+        this.lock = new ReentrantReadWriteLock();
+        this.segments = new ArrayList<>();
+        this.nextSequence = 1;
+        this.pending = new ArrayBlockingQueue<>(MAX_PENDING);
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Opens the log configured by the system properties, or returns null if
+     * no log directory is set.
+     */
+    static ChungusChatLog fromSystemProperties() throws IOException {
+        String directory = System.getProperty(DIR_PROPERTY);
+        if(directory == null || directory.trim().isEmpty()) return null;
+
+        ChungusChatLog log = new ChungusChatLog(
+                new File(directory.trim()),
+                Integer.getInteger(SEGMENT_BYTES_PROPERTY, 16 << 20),
+                Integer.getInteger(RETAIN_SEGMENTS_PROPERTY, 16),
+                Integer.getInteger(INDEX_INTERVAL_PROPERTY, 32)
+        );
+        log.open();
+        log.start();
+        return log;
+    }
+
+    /**
+     * Maps the existing segments and works out where the last one ends.
+     */
+    void open() throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()){
+            throw new IOException("Couldn't create chat log directory " + directory);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(LOG_SUFFIX));
+        if(files == null) files = new File[0];
+        Arrays.sort(files);
+
+        lock.writeLock().lock();
+        try {
+            for(File file : files){
+                long baseSequence = Long.parseLong(file.getName().substring(0, file.getName().length() - LOG_SUFFIX.length()));
+                Segment segment = new Segment(baseSequence, file, indexFileFor(baseSequence), (int) file.length());
+                segment.recover();
+
+                if(segment.records == 0){
+                    // Nothing was ever written to it.
+                    segment.delete();
+                    continue;
+                }
+
+                segments.add(segment);
+                nextSequence = segment.nextSequence;
+            }
+
+            while(retainSegments > 0 && segments.size() > retainSegments){
+                segments.remove(0).delete();
+            }
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts the thread that appends submitted messages.
+     */
+    void start(){
+        Thread writer = new Thread(() -> {
+            while(true){
+                try {
+                    Pending message = pending.take();
+                    append(message.room, message.message);
+                }catch(InterruptedException ex){
+                    return;
+                }catch(IOException ex){
+                    ex.printStackTrace();
+                }
+            }
+        }, "ChungusChatLog-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a message to be appended to the log by the writer thread.
+     * Messages are appended in the order they're submitted. This never
+     * waits: it's called with a room's lock held, often on an event loop,
+     * so if the writer has fallen a long way behind the message is dropped
+     * instead.
+     *
+     * @param room the room it was sent to, or null if it went to every room.
+     * @param message the message's UTF-8 bytes; not consumed.
+     */
+    void submit(String room, ByteBuffer message){
+        ByteBuffer copy = ByteBuffer.allocate(message.remaining());
+        copy.put(message.duplicate()).flip();
+
+        if(!pending.offer(new Pending(room, copy))) dropped.incrementAndGet();
+    }
+
+    /**
+     * How many messages have been left out of the log because the writer
+     * fell behind.
+     */
+    long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Appends a message to the log.
+     *
+     * @param room the room it was sent to, or null if it went to every room.
+     * @param message the message's UTF-8 bytes; not consumed.
+     * @return the message's sequence number.
+     */
+    long append(String room, ByteBuffer message) throws IOException {
+        byte[] roomBytes = room == null ? new byte[0] : room.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER_LENGTH + roomBytes.length + message.remaining();
+
+        lock.writeLock().lock();
+        try {
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if(active == null || active.buffer.capacity() - active.end < 4 + length){
+                active = roll(Math.max(segmentBytes, 4 + length));
+            }
+
+            long sequence = nextSequence++;
+            int position = active.end;
+
+            ByteBuffer buffer = active.buffer.duplicate();
+            buffer.position(position);
+            buffer.putInt(length);
+            buffer.putLong(sequence);
+            buffer.putLong(System.currentTimeMillis());
+            buffer.putShort((short) roomBytes.length);
+            buffer.put(roomBytes);
+            buffer.put(message.duplicate());
+
+            int record = active.records++;
+            if(record % indexInterval == 0) active.index(sequence, position);
+            active.mark(roomBytes, record / indexInterval);
+            active.nextSequence = nextSequence;
+            active.end = buffer.position();
+            return sequence;
+        }finally{
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Starts a new segment, dropping old ones beyond the retention limit.
+    // Called with the write lock held.
+    private Segment roll(int size) throws IOException {
+        if(!segments.isEmpty()) segments.get(segments.size() - 1).seal();
+
+        Segment segment = new Segment(nextSequence, logFileFor(nextSequence), indexFileFor(nextSequence), size);
+        segments.add(segment);
+
+        while(retainSegments > 0 && segments.size() > retainSegments){
+            segments.remove(0).delete();
+        }
+
+        return segment;
+    }
+
+    /**
+     * Up to limit messages in the room with sequence numbers after the
+     * given one, oldest first.
+     */
+    List<Record> after(String room, long sequence, int limit){
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        List<Record> records = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            for(int i = Math.max(0, segmentFor(sequence + 1)); i < segments.size() && records.size() < limit; i++){
+                Segment segment = segments.get(i);
+
+                int entry = segment.nextStretch(roomBytes, Math.max(0, segment.indexEntryFor(sequence + 1)));
+                for(; entry >= 0 && records.size() < limit; entry = segment.nextStretch(roomBytes, entry + 1)){
+                    int position = segment.indexPositions[entry];
+                    int end = segment.stretchEnd(entry);
+
+                    Record record;
+                    while(records.size() < limit && (record = segment.read(position, end)) != null){
+                        if(record.sequence > sequence && record.isFor(roomBytes)) records.add(record);
+                        position = record.next;
+                    }
+                }
+            }
+        }finally{
+            lock.readLock().unlock();
+        }
+
+        return records;
+    }
+
+    /**
+     * Up to limit messages in the room with sequence numbers before the
+     * given one, oldest first.
+     *
+     * Records can only be read forwards, so this works back through the
+     * stretches between index entries that have messages in the room,
+     * reading each one forwards. Every stretch read has at least one of the
+     * messages, so a page reads at most limit stretches.
+     */
+    List<Record> before(String room, long sequence, int limit){
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        List<Record> records = new ArrayList<>();
+
+        lock.readLock().lock();
+        try {
+            int i = segmentFor(Math.min(sequence, nextSequence) - 1);
+
+            for(; i >= 0 && records.size() < limit; i--){
+                Segment segment = segments.get(i);
+
+                int entry = segment.previousStretch(roomBytes, segment.indexEntryFor(sequence - 1));
+                for(; entry >= 0 && records.size() < limit; entry = segment.previousStretch(roomBytes, entry - 1)){
+                    int position = segment.indexPositions[entry];
+                    int end = segment.stretchEnd(entry);
+
+                    List<Record> stretch = new ArrayList<>();
+                    Record record;
+                    while((record = segment.read(position, end)) != null){
+                        if(record.sequence < sequence && record.isFor(roomBytes)) stretch.add(record);
+                        position = record.next;
+                    }
+
+                    records.addAll(0, stretch);
+                }
+            }
+        }finally{
+            lock.readLock().unlock();
+        }
+
+        // Keep the ones closest to the requested sequence number.
+        return records.size() > limit ? records.subList(records.size() - limit, records.size()) : records;
+    }
+
+    /**
+     * Encodes a HISTORY_PAGE frame holding a page of the room's history.
+     *
+     * The body is the number of messages followed by, for each message, its
+     * sequence number, timestamp, length and UTF-8 bytes, oldest first. The
+     * page is cut short if it wouldn't fit in one frame.
+     *
+     * @param older whether to page back from the sequence number, rather
+     * than forwards.
+     */
+    ByteBuffer page(String room, boolean older, long sequence, int limit){
+        limit = Math.max(0, Math.min(limit, MAX_PAGE_SIZE));
+        List<Record> records = older ? before(room, sequence, limit) : after(room, sequence, limit);
+
+        // Count from the requested sequence number outwards, so that when
+        // paging back it's the oldest messages that don't fit.
+        int length = 4;
+        int count = 0;
+        for(; count < records.size(); count++){
+            Record record = records.get(older ? records.size() - 1 - count : count);
+            int recordLength = 8 + 8 + 4 + record.message.remaining();
+            if(length + recordLength > ChungusFrameCodec.MAX_BODY_LENGTH) break;
+
+            length += recordLength;
+        }
+
+        List<Record> page = older
+                ? records.subList(records.size() - count, records.size())
+                : records.subList(0, count);
+
+        ByteBuffer buffer = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + length);
+        ChungusFrameCodec.putHeader(buffer, ChungusProtocol.HISTORY_PAGE, 0, length);
+        buffer.putInt(count);
+        for(Record record : page){
+            buffer.putLong(record.sequence);
+            buffer.putLong(record.timestamp);
+            buffer.putInt(record.message.remaining());
+            buffer.put(record.message.duplicate());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // The index of the last segment starting at or before the sequence
+    // number, or -1 if it's before them all. Called with a lock held.
+    private int segmentFor(long sequence){
+        for(int i = segments.size() - 1; i >= 0; i--){
+            if(segments.get(i).baseSequence <= sequence) return i;
+        }
+
+        return -1;
+    }
+
+    long getNextSequence(){
+        lock.readLock().lock();
+        try {
+            return nextSequence;
+        }finally{
+            lock.readLock().unlock();
+        }
+    }
+
+    private File logFileFor(long baseSequence){
+        return new File(directory, String.format("%020d", baseSequence) + LOG_SUFFIX);
+    }
+
+    private File indexFileFor(long baseSequence){
+        return new File(directory, String.format("%020d", baseSequence) + INDEX_SUFFIX);
+    }
+
+    // A message waiting for the writer thread.
+    private static final class Pending {
+
+        final String room;
+        final ByteBuffer message;
+
+        Pending(String room, ByteBuffer message){
+            this.room = room;
+            this.message = message;
+        }
+
+    }
+
+    /**
+     * A message read from the log. The message bytes are a view of the
+     * mapped segment.
+     */
+    static final class Record {
+
+        final long sequence;
+        final long timestamp;
+        final ByteBuffer room;
+        final ByteBuffer message;
+        // Position of the record after this one.
+        final int next;
+
+        Record(long sequence, long timestamp, ByteBuffer room, ByteBuffer message, int next){
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.message = message;
+            this.next = next;
+        }
+
+        // Messages sent to every room (an empty room name) are in them all.
+        boolean isFor(byte[] roomBytes){
+            if(!room.hasRemaining()) return true;
+            return room.equals(ByteBuffer.wrap(roomBytes));
+        }
+
+    }
+
+    /**
+     * One mapped segment file along with its sparse index.
+     */
+    private final class Segment {
+
+        final long baseSequence;
+        final File file;
+        final File indexFile;
+        final MappedByteBuffer buffer;
+
+        // Every indexInterval-th record's sequence number and position.
+        long[] indexSequences;
+        int[] indexPositions;
+        int indexSize;
+        private DataOutputStream indexOut;
+
+        // For each room name (empty for messages to every room), which
+        // stretches between index entries have a message in it.
+        private final Map<ByteBuffer, BitSet> stretches;
+
+        int records;
+        int end;
+        long nextSequence;
+
+        Segment(long baseSequence, File file, File indexFile, int size) throws IOException {
+            this.baseSequence = baseSequence;
+            this.file = file;
+            this.indexFile = indexFile;
+            this.indexSequences = new long[16];
+            this.indexPositions = new int[16];
+            this.nextSequence = baseSequence;
+            this.stretches = new HashMap<>();
+
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+                if(raf.length() < size) raf.setLength(size);
+                // The mapping stays valid after the channel is closed.
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+
+            this.indexOut = new DataOutputStream(new FileOutputStream(indexFile, true));
+        }
+
+        /**
+         * Loads the index and finds the end of the records, after a restart.
+         * The index is written after each record it points to, so anything
+         * it lists is complete; only the records after its last entry need
+         * checking. Which rooms are in each stretch isn't kept on disk, so
+         * the records are then read through once more to find out.
+         */
+        void recover() throws IOException {
+            if(indexFile.length() > 0){
+                try(DataInputStream in = new DataInputStream(new FileInputStream(indexFile))){
+                    for(long entries = indexFile.length() / 12; entries > 0; entries--){
+                        addIndexEntry(in.readLong(), in.readInt());
+                    }
+                }
+            }
+
+            int position = indexSize > 0 ? indexPositions[indexSize - 1] : 0;
+            long expected = indexSize > 0 ? indexSequences[indexSize - 1] : baseSequence;
+            records = indexSize > 0 ? (indexSize - 1) * indexInterval : 0;
+
+            Record record;
+            while((record = read(position, buffer.capacity())) != null && record.sequence == expected){
+                // The server stopped before it could index this one.
+                if(records % indexInterval == 0 && records / indexInterval >= indexSize) index(record.sequence, position);
+
+                position = record.next;
+                expected++;
+                records++;
+            }
+
+            end = position;
+            nextSequence = expected;
+
+            for(position = 0; (record = read(position, end)) != null; position = record.next){
+                mark(record.room, (int) ((record.sequence - baseSequence) / indexInterval));
+            }
+        }
+
+        /**
+         * Reads the record at the given position, or returns null if there
+         * isn't a complete one there that ends by the limit.
+         */
+        Record read(int position, int limit){
+            if(position + 4 + RECORD_HEADER_LENGTH > limit) return null;
+
+            int length = buffer.getInt(position);
+            if(length < RECORD_HEADER_LENGTH || (long) position + 4 + length > limit) return null;
+
+            long sequence = buffer.getLong(position + 4);
+            long timestamp = buffer.getLong(position + 12);
+            int roomLength = buffer.getShort(position + 20) & 0xFFFF;
+            if(RECORD_HEADER_LENGTH + roomLength > length) return null;
+
+            ByteBuffer view = buffer.duplicate();
+            view.limit(position + 4 + length);
+            view.position(position + 4 + RECORD_HEADER_LENGTH);
+
+            ByteBuffer room = view.slice();
+            room.limit(roomLength);
+
+            view.position(view.position() + roomLength);
+            return new Record(sequence, timestamp, room, view.slice(), position + 4 + length);
+        }
+
+        void index(long sequence, int position) throws IOException {
+            addIndexEntry(sequence, position);
+            indexOut.writeLong(sequence);
+            indexOut.writeInt(position);
+            indexOut.flush();
+        }
+
+        private void addIndexEntry(long sequence, int position){
+            if(indexSize == indexSequences.length){
+                indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+
+            indexSequences[indexSize] = sequence;
+            indexPositions[indexSize] = position;
+            indexSize++;
+        }
+
+        /**
+         * The last index entry at or before the sequence number, or -1.
+         */
+        int indexEntryFor(long sequence){
+            int entry = Arrays.binarySearch(indexSequences, 0, indexSize, sequence);
+            return entry >= 0 ? entry : -entry - 2;
+        }
+
+        void mark(byte[] roomBytes, int stretch){
+            mark(ByteBuffer.wrap(roomBytes), stretch);
+        }
+
+        private void mark(ByteBuffer room, int stretch){
+            BitSet rooms = stretches.get(room);
+            if(rooms == null){
+                // The key must not change, and a record's room is a view of
+                // the mapped segment.
+                ByteBuffer key = ByteBuffer.allocate(room.remaining());
+                key.put(room.duplicate()).flip();
+                stretches.put(key, rooms = new BitSet());
+            }
+
+            rooms.set(stretch);
+        }
+
+        /**
+         * The last stretch at or before the given one with a message in the
+         * room, or -1.
+         */
+        int previousStretch(byte[] roomBytes, int stretch){
+            if(stretch < 0) return -1;
+            return Math.max(previous(stretches.get(ByteBuffer.wrap(roomBytes)), stretch),
+                    previous(stretches.get(ByteBuffer.allocate(0)), stretch));
+        }
+
+        private int previous(BitSet rooms, int stretch){
+            return rooms == null ? -1 : rooms.previousSetBit(stretch);
+        }
+
+        /**
+         * The first stretch at or after the given one with a message in the
+         * room, or -1.
+         */
+        int nextStretch(byte[] roomBytes, int stretch){
+            int room = next(stretches.get(ByteBuffer.wrap(roomBytes)), stretch);
+            int every = next(stretches.get(ByteBuffer.allocate(0)), stretch);
+            if(room < 0) return every;
+            return every < 0 ? room : Math.min(room, every);
+        }
+
+        private int next(BitSet rooms, int stretch){
+            return rooms == null ? -1 : rooms.nextSetBit(stretch);
+        }
+
+        /**
+         * Where the stretch starting at the index entry ends.
+         */
+        int stretchEnd(int entry){
+            return entry + 1 < indexSize ? indexPositions[entry + 1] : end;
+        }
+
+        /**
+         * Flushes the segment to disk once it's no longer being written to.
+         */
+        void seal() throws IOException {
+            buffer.force();
+            indexOut.close();
+        }
+
+        void delete(){
+            try {
+                indexOut.close();
+            }catch(IOException ex){
+                System.err.println(ex);
+            }
+
+            // Fails on platforms that don't allow deleting mapped files; the
+            // file is then left for the next start to clean up.
+            if(!file.delete()) System.err.println("Couldn't delete chat log segment " + file);
+            indexFile.delete();
+        }
+
+    }
+
+}
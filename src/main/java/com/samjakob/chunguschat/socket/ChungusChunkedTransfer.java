@@ -0,0 +1,380 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The protocol spoken on the file transfer port: resumable, chunked
+ * uploads into the server's {@link ChungusBlobStore}, and downloads from it.
+ *
+ * Every connection starts with MAGIC, VERSION and what it's for: FT_OFFER
+ * to upload a file, or FT_ACCEPT to download one that was offered.
+ *
+ * An uploaded file is split into fixed-size chunks, each with a CRC-32, and
+ * the whole file has a SHA-256, which is what the server stores it by. The
+ * transfer ID is a hash of the uploader, file name, length and checksums,
+ * so the same upload gets the same ID if it has to reconnect.
+ *
+ * <pre>
+ * Uploader                              Server
+ * --------                              ------
+ * int    MAGIC
+ * byte   VERSION
+ * byte   FT_OFFER
+ * UTF    transfer ID
+ * UTF    username
+ * UTF    file name
+ * long   file length
+ * byte[] SHA-256 of the file
+ * int    chunk size
+ * int[]  chunk checksums
+ * byte   compression it would like to use
+ *                                       byte   status (STATUS_OK, or
+ *                                              STATUS_REJECTED and a UTF
+ *                                              reason)
+ *                                       byte   compression to use
+ *                                       ranges the server still needs
+ * for each chunk it needs:
+ * int    chunk index
+ * byte   CHUNK_RAW or CHUNK_DEFLATED    (only if compressing)
+ * int    compressed length              (only if deflated)
+ * byte[] the chunk
+ * int    END
+ *                                       ranges the server still needs
+ * </pre>
+ *
+ * Compression is only asked for when a sample of the file compresses well
+ * (see isCompressible), so images, archives and the like are sent as they
+ * are, straight from the file to the socket. Each chunk is compressed on
+ * its own, so the server can inflate, check and write one chunk while the
+ * next is on its way; a chunk that doesn't get any smaller is sent raw.
+ * Checksums are always of the uncompressed chunk.
+ *
+ * Ranges are an int count followed by that many (int first chunk, int
+ * chunk count) pairs. Once the uploader has sent END, the server checks
+ * every chunk it has against its checksum and replies with whatever is
+ * still missing or failed; an empty reply means the file is complete and
+ * verified. The uploader can send the missing chunks and END again, or
+ * reconnect and start over from the checksums, in which case the server
+ * only asks for what it doesn't have yet.
+ *
+ * An uploader can open several connections for the same transfer ID and
+ * send different chunks over each; the server writes every chunk at its own
+ * offset, so it doesn't matter which connection a chunk arrives on. The
+ * reply to END only covers chunks the server has already taken, so an
+ * uploader waits for every other connection's reply to END before trusting
+ * the last one's.
+ *
+ * If the server already has a file with the same SHA-256 it only asks for
+ * one chunk, picked at random, which has to match the stored file (see
+ * {@link ChungusDedupProof}): the upload is done without sending the rest
+ * of the file at all.
+ *
+ * <pre>
+ * Downloader                            Server
+ * ----------                            ------
+ * int    MAGIC
+ * byte   VERSION
+ * byte   FT_ACCEPT
+ * byte[] SHA-256 of the file
+ * long   offset to start from
+ *                                       byte   status
+ *                                       long   file length
+ *                                       byte[] the file, from the offset
+ * </pre>
+ *
+ * Uploaders that predate this protocol start with their username instead of
+ * MAGIC, and are still accepted (without resuming).
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusChunkedTransfer {
+
+    // "CHFT"
+    static final int MAGIC = 0x43484654;
+    static final int VERSION = 3;
+
+    static final int END = -1;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_REJECTED = 1;
+
+    static final int COMPRESSION_NONE = 0;
+    static final int COMPRESSION_DEFLATE = 1;
+
+    static final int CHUNK_RAW = 0;
+    static final int CHUNK_DEFLATED = 1;
+
+    /**
+     * Whether to compress transfers that would benefit, set with
+     * {@code chunguschat.ft.compression} (default true). Either side can
+     * turn it off: a server that doesn't want to spend the CPU on it
+     * answers COMPRESSION_NONE.
+     */
+    static final boolean COMPRESSION = Boolean.parseBoolean(System.getProperty("chunguschat.ft.compression", "true"));
+    // Fast rather than small: compression only helps while it keeps up
+    // with the network.
+    static final int COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    // How much of a file isCompressible looks at, and how small the sample
+    // has to get for compression to be worth it.
+    private static final int SAMPLE_COUNT = 4;
+    private static final int SAMPLE_LENGTH = 64 << 10;
+    private static final double COMPRESSIBLE_RATIO = 0.9;
+
+    /**
+     * The chunk size uploaders use, set with {@code chunguschat.ft.chunkSize}
+     * (default 1 MiB). Files with more than MAX_CHUNKS chunks use bigger
+     * ones.
+     */
+    static final int CHUNK_SIZE = Integer.getInteger("chunguschat.ft.chunkSize", 1 << 20);
+
+    static final int MIN_CHUNK_SIZE = 4 << 10;
+    // The server holds a chunk (two, if it's deflated) in memory for every
+    // upload connection, so uploaders don't get to ask for more than this.
+    // With MAX_CHUNKS of them that's still files of up to 4 TiB.
+    static final int MAX_CHUNK_SIZE = 4 << 20;
+    static final int MAX_CHUNKS = 1 << 20;
+
+    private ChungusChunkedTransfer(){}
+
+    /**
+     * The chunk size to use for a file: the preferred size, doubled until
+     * the file fits in MAX_CHUNKS chunks.
+     */
+    static int chunkSizeFor(long fileLength, int preferred){
+        return chunkSizeFor(fileLength, preferred, MAX_CHUNKS);
+    }
+
+    /**
+     * The chunk size to use for a file: the preferred size, doubled until
+     * the file fits in maxChunks chunks.
+     */
+    static int chunkSizeFor(long fileLength, int preferred, int maxChunks){
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(preferred, MAX_CHUNK_SIZE));
+        while(chunkSize < MAX_CHUNK_SIZE && chunkCount(fileLength, chunkSize) > maxChunks) chunkSize <<= 1;
+        return chunkSize;
+    }
+
+    static int chunkCount(long fileLength, int chunkSize){
+        long count = (fileLength + chunkSize - 1) / chunkSize;
+        return count > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count;
+    }
+
+    static long chunkOffset(int index, int chunkSize){
+        return (long) index * chunkSize;
+    }
+
+    static int chunkLength(int index, long fileLength, int chunkSize){
+        return (int) Math.min(chunkSize, fileLength - chunkOffset(index, chunkSize));
+    }
+
+    /**
+     * Reads the file once, working out each chunk's checksum and feeding
+     * the whole file to the digest.
+     */
+    static int[] checksums(File file, long fileLength, int chunkSize, MessageDigest digest) throws IOException {
+        int[] checksums = new int[chunkCount(fileLength, chunkSize)];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkSize);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for(int i = 0; i < checksums.length; i++){
+                readChunk(channel, buffer, i, fileLength, chunkSize);
+                checksums[i] = checksum(buffer);
+                digest.update(buffer.duplicate());
+            }
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Reads a chunk from the file into the buffer, leaving it ready to be
+     * read from.
+     */
+    static void readChunk(FileChannel channel, ByteBuffer buffer, int index, long fileLength, int chunkSize) throws IOException {
+        long offset = chunkOffset(index, chunkSize);
+
+        buffer.clear();
+        buffer.limit(chunkLength(index, fileLength, chunkSize));
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, offset + buffer.position()) < 0){
+                throw new IOException("File ended in chunk " + index);
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * The CRC-32 of the buffer's remaining bytes, without consuming them.
+     */
+    static int checksum(ByteBuffer buffer){
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Guesses whether the file is worth compressing by deflating a few
+     * samples spread across it. Already-compressed files (images, video,
+     * archives) barely shrink, and aren't.
+     */
+    static boolean isCompressible(File file, long fileLength) throws IOException {
+        if(fileLength < MIN_CHUNK_SIZE) return false;
+
+        int sampleLength = (int) Math.min(SAMPLE_LENGTH, fileLength);
+        int samples = (int) Math.min(SAMPLE_COUNT, fileLength / sampleLength);
+
+        ByteBuffer sample = ByteBuffer.allocate(sampleLength);
+        byte[] compressed = new byte[sampleLength];
+        Deflater deflater = new Deflater(COMPRESSION_LEVEL);
+        long sampled = 0, deflated = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for(int i = 0; i < samples; i++){
+                long offset = samples > 1 ? (fileLength - sampleLength) / (samples - 1) * i : 0;
+
+                sample.clear();
+                while(sample.hasRemaining() && channel.read(sample, offset + sample.position()) > 0);
+
+                deflater.reset();
+                deflater.setInput(sample.array(), 0, sample.position());
+                deflater.finish();
+
+                // Anything that doesn't fit in the sample's own length
+                // isn't shrinking, so there's no need to see the rest.
+                int length = 0;
+                while(!deflater.finished() && length < compressed.length){
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+
+                sampled += sample.position();
+                deflated += deflater.finished() ? length : sample.position();
+            }
+        }finally{
+            deflater.end();
+        }
+
+        return deflated < sampled * COMPRESSIBLE_RATIO;
+    }
+
+    static String transferId(String username, String fileName, long fileLength, String contentHash, int chunkSize, int[] checksums){
+        MessageDigest digest = ChungusBlobStore.newDigest();
+        digest.update(username.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(fileName.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(contentHash.getBytes(StandardCharsets.UTF_8));
+
+        ByteBuffer numbers = ByteBuffer.allocate(12 + 4 * checksums.length);
+        numbers.putLong(fileLength).putInt(chunkSize);
+        for(int checksum : checksums) numbers.putInt(checksum);
+        digest.update(numbers.array());
+
+        byte[] hash = new byte[16];
+        System.arraycopy(digest.digest(), 0, hash, 0, hash.length);
+        return ChungusBlobStore.toHex(hash);
+    }
+
+    /**
+     * Whether the ID looks like one transferId made, which also makes it
+     * safe to use in a file name.
+     */
+    static boolean isValidTransferId(String transferId){
+        return transferId.matches("[0-9a-f]{32}");
+    }
+
+    /**
+     * Checks what an uploader says about its upload.
+     *
+     * @return why the upload should be rejected, or null if it's fine.
+     */
+    static String checkUpload(String transferId, String fileName, long fileLength, int chunkSize){
+        if(!isValidTransferId(transferId)) return "Invalid transfer ID";
+        if(fileName.isEmpty() || fileLength < 0) return "Invalid file";
+        if(chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE || chunkCount(fileLength, chunkSize) > MAX_CHUNKS){
+            return "Invalid chunk size " + chunkSize;
+        }
+
+        return null;
+    }
+
+    /**
+     * Groups the chunk indices into (first, count) ranges.
+     */
+    static List<int[]> ranges(List<Integer> chunks){
+        List<int[]> ranges = new ArrayList<>();
+
+        for(int chunk : chunks){
+            int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+
+            if(last != null && last[0] + last[1] == chunk) last[1]++;
+            else ranges.add(new int[]{ chunk, 1 });
+        }
+
+        return ranges;
+    }
+
+    static void writeRanges(DataOutputStream out, List<int[]> ranges) throws IOException {
+        out.writeInt(ranges.size());
+        for(int[] range : ranges){
+            out.writeInt(range[0]);
+            out.writeInt(range[1]);
+        }
+    }
+
+    static List<int[]> readRanges(DataInputStream in, int chunkCount) throws IOException {
+        int count = in.readInt();
+        if(count < 0 || count > chunkCount) throw new ProtocolException("Invalid range count: " + count);
+
+        List<int[]> ranges = new ArrayList<>(count);
+        for(int i = 0; i < count; i++){
+            int first = in.readInt();
+            int length = in.readInt();
+
+            if(first < 0 || length < 0 || (long) first + length > chunkCount){
+                throw new ProtocolException("Invalid range: " + first + "+" + length);
+            }
+
+            ranges.add(new int[]{ first, length });
+        }
+
+        return ranges;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The set of clients connected to a server.
+ *
+ * Clients are kept in the order they connected (the first client is the
+ * host) and can be iterated safely while others join and leave. The user
+ * list is cached, along with its encoded packets, and only rebuilt after a
+ * client joins, leaves or changes their name.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusClientRegistry {
+
+    private final ConcurrentSkipListMap<Long, ChungusConnection> clients;
+    private final ConcurrentMap<ChungusConnection, Long> joinOrder;
+    private final ConcurrentMap<String, ChungusConnection> byUsername;
+    // Users connected to other nodes in the cluster, by the node they're on.
+    private final ConcurrentSkipListMap<String, List<String>> remoteUsers;
+
+    private final AtomicLong nextJoin;
+    // Bumped whenever membership or a username changes.
+    private final AtomicLong version;
+    private volatile UserList userList;
+
+    ChungusClientRegistry(){
+        this.clients = new ConcurrentSkipListMap<>();
+        this.joinOrder = new ConcurrentHashMap<>();
+        this.byUsername = new ConcurrentHashMap<>();
+        this.remoteUsers = new ConcurrentSkipListMap<>();
+        this.nextJoin = new AtomicLong();
+        this.version = new AtomicLong();
+    }
+
+    void add(ChungusConnection client){
+        long join = nextJoin.getAndIncrement();
+        if(joinOrder.putIfAbsent(client, join) != null) return;
+
+        clients.put(join, client);
+        if(client.getUsername() != null) byUsername.put(client.getUsername(), client);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return false if the client had already been removed.
+     */
+    boolean remove(ChungusConnection client){
+        Long join = joinOrder.remove(client);
+        if(join == null) return false;
+
+        clients.remove(join);
+        if(client.getUsername() != null) byUsername.remove(client.getUsername(), client);
+        version.incrementAndGet();
+        return true;
+    }
+
+    void rename(ChungusConnection client, String oldUsername, String newUsername){
+        if(!joinOrder.containsKey(client)) return;
+
+        if(oldUsername != null) byUsername.remove(oldUsername, client);
+        if(newUsername != null) byUsername.put(newUsername, client);
+        version.incrementAndGet();
+    }
+
+    ChungusConnection get(String username){
+        return byUsername.get(username);
+    }
+
+    /**
+     * A live view of the connected clients, in the order they connected.
+     */
+    Collection<ChungusConnection> clients(){
+        return clients.values();
+    }
+
+    int size(){
+        return clients.size();
+    }
+
+    /**
+     * Replaces the users listed for another node in the cluster.
+     */
+    void setRemoteUsers(String node, List<String> users){
+        if(users.isEmpty()) remoteUsers.remove(node);
+        else remoteUsers.put(node, Collections.unmodifiableList(new ArrayList<>(users)));
+        version.incrementAndGet();
+    }
+
+    List<String> getRemoteUsers(String node){
+        List<String> users = remoteUsers.get(node);
+        return users != null ? users : Collections.<String>emptyList();
+    }
+
+    /**
+     * The number of users on other nodes in the cluster.
+     */
+    int remoteSize(){
+        int size = 0;
+        for(List<String> users : remoteUsers.values()) size += users.size();
+        return size;
+    }
+
+    long getVersion(){
+        return version.get();
+    }
+
+    /**
+     * Returns the current user list, rebuilding it only if a client has
+     * joined, left or been renamed since it was last built. Users on other
+     * nodes are listed after local ones.
+     */
+    UserList getUserList(){
+        UserList current = userList;
+        long currentVersion = version.get();
+
+        if(current != null && current.version == currentVersion) return current;
+
+        List<String> users = new ArrayList<>();
+        for(ChungusConnection client : clients.values()){
+            if(client.getUsername() != null) users.add(client.getUsername());
+        }
+        for(List<String> remote : remoteUsers.values()){
+            users.addAll(remote);
+        }
+
+        current = new UserList(currentVersion, users);
+        userList = current;
+        return current;
+    }
+
+    /**
+     * An immutable snapshot of the user list, along with its encoded
+     * COMMAND_USERS packets ready to be sent to any number of clients.
+     */
+    static final class UserList {
+
+        final long version;
+        final List<String> users;
+
+        private final ChungusSharedFrame frame;
+        private final ChungusSharedFrame silentFrame;
+
+        UserList(long version, List<String> users){
+            this.version = version;
+            this.users = Collections.unmodifiableList(users);
+
+            String payload = String.join("|", users);
+            this.frame = ChungusSharedFrame.of(ChungusProtocol.COMMAND_USERS, "", payload);
+            this.silentFrame = ChungusSharedFrame.of(
+                    ChungusProtocol.COMMAND_USERS | ChungusProtocol.PROTO_MASK_SILENT_COMMAND, "", payload);
+        }
+
+        /**
+         * A fresh view of the encoded packet for the given (raw) packet ID,
+         * in the given wire format.
+         */
+        ByteBuffer frame(int rawPacketId, ChungusWireFormat format){
+            ChungusSharedFrame shared = (rawPacketId & ChungusProtocol.PROTO_MASK_SILENT_COMMAND) != 0 ? silentFrame : frame;
+            return shared.encoded(format);
+        }
+
+    }
+
+}
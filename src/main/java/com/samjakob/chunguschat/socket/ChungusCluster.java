@@ -0,0 +1,698 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links several ChungusSocketServers (nodes) into one logical chat.
+ *
+ * Nodes are joined by relay links: plain TCP connections carrying v4
+ * frames. Whatever happens in a room on one node - chat messages, users
+ * joining, leaving or being renamed, MOTD changes - is relayed to every
+ * other node, which passes it on to the members of the same room there.
+ *
+ * Each node numbers the events it originates. A node that receives an
+ * event it hasn't seen passes it on to its other links, so the cluster
+ * doesn't have to be fully connected; events it has seen before (because
+ * they came round a loop) are dropped. As every node handles a given
+ * origin's events in order and links are FIFO, events from one origin are
+ * delivered everywhere in the order they happened.
+ *
+ * When a link comes up each side relays who is in each of its rooms, and
+ * when the last link to a node goes down its users are dropped. A node only
+ * notices users leave that way if it links to that node directly, so the
+ * cluster should be fully meshed.
+ *
+ * Every node must be configured with the same secret. When a link comes up
+ * each side sends the other a random challenge, and only accepts the
+ * other's hello if it carries an HMAC of that challenge and the peer's
+ * origin keyed with the secret. Anyone else who connects to the cluster
+ * port is disconnected before they can relay anything.
+ *
+ * A hello on its own doesn't prove much: someone who can reach two nodes
+ * can pass one's challenge to the other and hand the answer back. So every
+ * relay is also followed by an HMAC of it and its number on the link, keyed
+ * with both challenges and the secret. Only the two nodes can work that key
+ * out, so whoever is in between can pass their relays on but can't relay
+ * anything of their own.
+ *
+ * Configured with system properties:
+ * <ul>
+ *   <li>{@code chunguschat.cluster.port} - port to accept links from other
+ *   nodes on.</li>
+ *   <li>{@code chunguschat.cluster.peers} - comma separated host:port list
+ *   of nodes to link to. Links are redialled if they drop. Two nodes only
+ *   need to list each other on one side, though listing both is harmless.
+ *   </li>
+ *   <li>{@code chunguschat.cluster.nodeId} - this node's name (defaults to
+ *   the host name and chat port).</li>
+ *   <li>{@code chunguschat.cluster.secret} - the secret shared by every
+ *   node. Required; without it the node doesn't join a cluster.</li>
+ * </ul>
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusCluster {
+
+    public static final String PORT_PROPERTY = "chunguschat.cluster.port";
+    public static final String PEERS_PROPERTY = "chunguschat.cluster.peers";
+    public static final String NODE_ID_PROPERTY = "chunguschat.cluster.nodeId";
+    public static final String SECRET_PROPERTY = "chunguschat.cluster.secret";
+
+    static final int CHALLENGE_LENGTH = 16;
+    static final int PROOF_LENGTH = 32;
+    static final int TAG_LENGTH = 32;
+
+    private static final long REDIAL_DELAY_MILLIS = 2000;
+    private static final String PROOF_ALGORITHM = "HmacSHA256";
+    private static final byte[] RELAY_KEY_LABEL = "relay".getBytes(StandardCharsets.UTF_8);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final int port;
+    private final List<InetSocketAddress> peers;
+    private final byte[] secret;
+
+    // This node's ID plus a random incarnation, so that a restarted node's
+    // events aren't mistaken for ones already seen.
+    final String origin;
+
+    // Guards numbering and sending the events this node originates.
+    private final Object originLock;
+    private long lastSequence;
+
+    // Links that have completed their hello.
+    private final Set<ChungusClusterLink> links;
+    // The last event delivered from each origin.
+    private final ConcurrentMap<String, OriginState> origins;
+
+    ChungusCluster(String nodeId, int port, List<InetSocketAddress> peers, byte[] secret){
+        this.port = port;
+        this.peers = peers;
+        this.secret = secret.clone();
+        this.origin = nodeId + "@" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        this.originLock = new Object();
+        this.links = ConcurrentHashMap.newKeySet();
+        this.origins = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Builds a cluster from the system properties, or returns null if
+     * neither a cluster port nor any peers are set.
+     */
+    static ChungusCluster fromSystemProperties(int chatPort){
+        int port = Integer.getInteger(PORT_PROPERTY, 0);
+        String peerList = System.getProperty(PEERS_PROPERTY, "").trim();
+        if(port <= 0 && peerList.isEmpty()) return null;
+
+        String secret = System.getProperty(SECRET_PROPERTY, "");
+        if(secret.isEmpty()){
+            System.err.println("Not joining the cluster: " + SECRET_PROPERTY + " must be set to the secret shared by every node.");
+            return null;
+        }
+
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for(String peer : peerList.split(",")){
+            peer = peer.trim();
+            if(peer.isEmpty()) continue;
+
+            int colon = peer.lastIndexOf(':');
+            if(colon < 0){
+                System.err.println("Ignoring cluster peer without a port: " + peer);
+                continue;
+            }
+
+            peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+
+        String nodeId = System.getProperty(NODE_ID_PROPERTY);
+        if(nodeId == null){
+            try {
+                nodeId = InetAddress.getLocalHost().getHostName() + ":" + chatPort;
+            }catch(IOException ex){
+                nodeId = "node:" + chatPort;
+            }
+        }
+
+        return new ChungusCluster(nodeId, port, peers, secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    void start(){
+        if(port > 0){
+            try {
+                ServerSocket listener = new ServerSocket(port);
+
+                ChungusThreads.start("ChungusClusterHost", () -> {
+                    try {
+                        while(!listener.isClosed()){
+                            Socket socket = listener.accept();
+                            ChungusThreads.start("ChungusClusterLink", new ChungusClusterLink(this, socket), false);
+                        }
+                    }catch(IOException ex){
+                        ex.printStackTrace();
+                    }
+                }, false);
+            }catch(IOException ex){
+                ex.printStackTrace();
+            }
+        }
+
+        for(InetSocketAddress peer : peers){
+            ChungusThreads.start("ChungusClusterDialer", () -> dial(peer), false);
+        }
+    }
+
+    private void dial(InetSocketAddress peer){
+        while(true){
+            try {
+                Socket socket = new Socket(peer.getHostString(), peer.getPort());
+                new ChungusClusterLink(this, socket).run();
+            }catch(IOException ex){
+                // Not up yet, or gone away; try again shortly.
+            }
+
+            try {
+                Thread.sleep(REDIAL_DELAY_MILLIS);
+            }catch(InterruptedException ex){
+                return;
+            }
+        }
+    }
+
+    /*
+     * Events
+     */
+
+    /**
+     * Relays an event that happened in a room on this node to every other
+     * node.
+     */
+    void relay(String room, ChungusSharedFrame frame){
+        ByteBuffer inner = frame.encoded(ChungusWireFormat.FRAMED);
+        if(inner == null) return;
+
+        synchronized(originLock){
+            ByteBuffer relay;
+            try {
+                relay = encodeRelay(origin, ++lastSequence, room, inner);
+            }catch(ProtocolException ex){
+                ex.printStackTrace();
+                return;
+            }
+
+            for(ChungusClusterLink link : links){
+                link.send(relay.duplicate());
+            }
+        }
+    }
+
+    void linkUp(ChungusClusterLink link){
+        System.out.println("Cluster link up: " + link.peerOrigin);
+        links.add(link);
+
+        // Tell the cluster (the new node included) who's here.
+        for(ChungusRoom room : ChungusSocketServer.getRooms()){
+            room.relayRoster(this);
+        }
+    }
+
+    void linkDown(ChungusClusterLink link){
+        if(!links.remove(link)) return;
+        System.out.println("Cluster link down: " + link.peerOrigin);
+
+        for(ChungusClusterLink other : links){
+            if(other.peerOrigin.equals(link.peerOrigin)) return;
+        }
+
+        // That was the only link to the node, so stop listing its users.
+        String node = link.peerOrigin;
+        for(ChungusRoom room : ChungusSocketServer.getRooms()){
+            ChungusSocketServer.withRoom(room.getName(), r -> r.setRemoteUsers(node, Collections.<String>emptyList()));
+        }
+    }
+
+    /**
+     * Handles a relayed event received on a link: drops it if it has been
+     * seen before, otherwise delivers it to the local room and passes it on
+     * to every other link.
+     *
+     * @param relay the relay's body, without its tag.
+     */
+    void receive(ChungusClusterLink from, ByteBuffer relay) throws IOException {
+        ByteBuffer body = relay.duplicate();
+
+        String eventOrigin = getShortString(body);
+        if(body.remaining() < 8) throw new ProtocolException("Truncated cluster relay");
+        long sequence = body.getLong();
+        String room = getShortString(body);
+
+        if(eventOrigin.equals(origin)) return;
+
+        ChungusPacket inner = ChungusFrameCodec.decode(body);
+        if(inner == null) throw new ProtocolException("Truncated cluster relay");
+
+        OriginState state = origins.computeIfAbsent(eventOrigin, key -> new OriginState());
+        synchronized(state){
+            if(sequence <= state.lastSequence) return;
+            state.lastSequence = sequence;
+
+            deliver(eventOrigin, room, inner);
+
+            // The received frame is only valid until the next read, so copy
+            // it once for every link to share.
+            ByteBuffer copy = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + relay.remaining());
+            ChungusFrameCodec.putHeader(copy, ChungusProtocol.CLUSTER_RELAY, 0, relay.remaining());
+            copy.put(relay.duplicate());
+            copy.flip();
+
+            for(ChungusClusterLink link : links){
+                if(link != from) link.send(copy.duplicate());
+            }
+        }
+    }
+
+    private void deliver(String node, String roomName, ChungusPacket inner){
+        switch(inner.rawPacketId){
+            case ChungusProtocol.CHAT_MESSAGE:
+                ChungusRoom room = ChungusSocketServer.getRoom(roomName);
+                if(room != null) room.broadcast(ChungusSharedFrame.forward(ChungusProtocol.CHAT_MESSAGE, "", inner));
+                break;
+
+            case ChungusProtocol.PRESENCE_JOIN:
+                String joined = inner.getPayload();
+                ChungusSocketServer.withRoom(roomName, r -> r.remoteJoined(node, joined));
+                break;
+
+            case ChungusProtocol.PRESENCE_LEAVE:
+                String left = inner.getPayload();
+                ChungusSocketServer.withRoom(roomName, r -> r.remoteLeft(node, left));
+                break;
+
+            case ChungusProtocol.PRESENCE_RENAME:
+                String[] names = inner.getPayload().split(Pattern.quote("|"), 2);
+                if(names.length < 2) break;
+
+                ChungusSocketServer.withRoom(roomName, r -> r.remoteRenamed(node, names[0], names[1]));
+                break;
+
+            case ChungusProtocol.COMMAND_USERS | ChungusProtocol.PROTO_MASK_SILENT_COMMAND:
+                String roster = inner.getPayload();
+                List<String> users = roster.isEmpty()
+                        ? Collections.<String>emptyList()
+                        : Arrays.asList(roster.split(Pattern.quote("|")));
+
+                ChungusSocketServer.withRoom(roomName, r -> r.setRemoteUsers(node, users));
+                break;
+
+            case ChungusProtocol.COMMAND_SET_MOTD:
+                room = ChungusSocketServer.getRoom(roomName);
+                if(room != null) room.setMotd(inner.getPayload());
+                break;
+
+            default:
+                System.out.println("Received unknown cluster event: " + inner.rawPacketId);
+        }
+    }
+
+    /*
+     * Authentication
+     */
+
+    static byte[] newChallenge(){
+        byte[] challenge = new byte[CHALLENGE_LENGTH];
+        RANDOM.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * Proves to a peer that this node knows the cluster secret, by keying
+     * an HMAC of the peer's challenge and an origin with it.
+     */
+    byte[] prove(byte[] challenge, String origin){
+        try {
+            Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, PROOF_ALGORITHM));
+            mac.update(challenge);
+            return mac.doFinal(origin.getBytes(StandardCharsets.UTF_8));
+        }catch(GeneralSecurityException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Checks a peer's hello against the challenge this node sent it.
+     *
+     * @return the peer's origin, or null if the peer doesn't know the
+     * cluster secret.
+     */
+    String authenticate(byte[] challenge, ChungusPacket hello){
+        ByteBuffer body = hello.body();
+        if(body.remaining() < PROOF_LENGTH) return null;
+
+        byte[] proof = new byte[PROOF_LENGTH];
+        body.get(proof);
+        String peerOrigin = ChungusFrameCodec.getString(body);
+
+        // A node's own proofs could be bounced back to it over a second
+        // link, so it never accepts a link from itself.
+        if(peerOrigin.equals(origin)) return null;
+
+        return MessageDigest.isEqual(proof, prove(challenge, peerOrigin)) ? peerOrigin : null;
+    }
+
+    /**
+     * The MAC for relays sent one way along a link. It's keyed with both
+     * sides' challenges as well as the secret, so it's different for every
+     * link and for each direction.
+     *
+     * @param receiverChallenge the challenge the receiving side sent.
+     * @param senderChallenge the challenge the sending side sent.
+     */
+    Mac relayMac(byte[] receiverChallenge, byte[] senderChallenge){
+        try {
+            Mac mac = Mac.getInstance(PROOF_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, PROOF_ALGORITHM));
+            mac.update(RELAY_KEY_LABEL);
+            mac.update(receiverChallenge);
+            byte[] key = mac.doFinal(senderChallenge);
+
+            Mac relayMac = Mac.getInstance(PROOF_ALGORITHM);
+            relayMac.init(new SecretKeySpec(key, PROOF_ALGORITHM));
+            return relayMac;
+        }catch(GeneralSecurityException ex){
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * The tag that follows a relay's body: an HMAC of the relay's number on
+     * the link (counting from 0 in each direction) and its body.
+     */
+    static byte[] tag(Mac mac, long number, ByteBuffer body){
+        byte[] numberBytes = new byte[8];
+        ByteBuffer.wrap(numberBytes).putLong(number);
+
+        mac.update(numberBytes);
+        mac.update(body.duplicate());
+        return mac.doFinal();
+    }
+
+    /**
+     * Checks the tag at the end of a relay's body.
+     *
+     * @return the body without its tag.
+     */
+    static ByteBuffer checkTag(Mac mac, long number, ByteBuffer body) throws ProtocolException {
+        if(body.remaining() < TAG_LENGTH) throw new ProtocolException("Truncated cluster relay");
+
+        ByteBuffer relay = body.duplicate();
+        relay.limit(relay.limit() - TAG_LENGTH);
+
+        ByteBuffer tag = body.duplicate();
+        tag.position(relay.limit());
+        byte[] received = new byte[TAG_LENGTH];
+        tag.get(received);
+
+        if(!MessageDigest.isEqual(received, tag(mac, number, relay))){
+            throw new ProtocolException("Cluster relay failed its check");
+        }
+
+        return relay;
+    }
+
+    /*
+     * Encoding
+     */
+
+    static ByteBuffer encodeChallenge(byte[] challenge){
+        ByteBuffer buffer = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + challenge.length);
+        ChungusFrameCodec.putHeader(buffer, ChungusProtocol.CLUSTER_CHALLENGE, 0, challenge.length);
+        buffer.put(challenge);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A hello: the proof that the sender knows the cluster secret, followed
+     * by its origin.
+     */
+    static ByteBuffer encodeHello(String origin, byte[] proof) throws ProtocolException {
+        byte[] originBytes = origin.getBytes(StandardCharsets.UTF_8);
+
+        int length = proof.length + originBytes.length;
+        if(length > ChungusFrameCodec.MAX_BODY_LENGTH) throw new ProtocolException("Cluster hello too large");
+
+        ByteBuffer buffer = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + length);
+        ChungusFrameCodec.putHeader(buffer, ChungusProtocol.CLUSTER_HELLO, 0, length);
+        buffer.put(proof);
+        buffer.put(originBytes);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * A relayed event: the origin, its sequence number and the room it
+     * happened in, followed by the event itself as a complete v4 frame.
+     */
+    static ByteBuffer encodeRelay(String origin, long sequence, String room, ByteBuffer inner) throws ProtocolException {
+        byte[] originBytes = origin.getBytes(StandardCharsets.UTF_8);
+        byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+        inner = inner.duplicate();
+
+        int length = 2 + originBytes.length + 8 + 2 + roomBytes.length + inner.remaining();
+        // Leaving room for the tag each link adds.
+        if(length > ChungusFrameCodec.MAX_BODY_LENGTH - TAG_LENGTH) throw new ProtocolException("Cluster relay too large");
+
+        ByteBuffer buffer = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + length);
+        ChungusFrameCodec.putHeader(buffer, ChungusProtocol.CLUSTER_RELAY, 0, length);
+        buffer.putShort((short) originBytes.length);
+        buffer.put(originBytes);
+        buffer.putLong(sequence);
+        buffer.putShort((short) roomBytes.length);
+        buffer.put(roomBytes);
+        buffer.put(inner);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String getShortString(ByteBuffer buffer) throws ProtocolException {
+        if(buffer.remaining() < 2) throw new ProtocolException("Truncated cluster relay");
+        int length = buffer.getShort() & 0xFFFF;
+        if(length > buffer.remaining()) throw new ProtocolException("Truncated cluster relay");
+
+        ByteBuffer bytes = buffer.slice();
+        bytes.limit(length);
+        buffer.position(buffer.position() + length);
+        return ChungusFrameCodec.getString(bytes);
+    }
+
+    private static final class OriginState {
+        long lastSequence;
+    }
+
+}
+
+/**
+ * One relay link to another node. Frames are queued and written by the
+ * link's own writer thread, so a slow peer never holds up the node.
+ */
+class ChungusClusterLink implements Runnable {
+
+    // Frames queued for a peer before it's considered too slow and dropped.
+    private static final int QUEUE_CAPACITY = 65536;
+    // How long a peer has to prove it knows the cluster secret.
+    private static final int HELLO_TIMEOUT_MILLIS = 10000;
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final ChungusCluster cluster;
+    private final Socket socket;
+    private final BlockingQueue<ByteBuffer> outbound;
+
+    // Set before the link is up, so before the first relay is queued or
+    // read. Each is only used by one thread: sending by the writer and
+    // receiving by the reader.
+    private Mac sendMac;
+    private Mac receiveMac;
+    private long sent;
+    private long received;
+
+    volatile String peerOrigin;
+
+    ChungusClusterLink(ChungusCluster cluster, Socket socket){
+        this.cluster = cluster;
+        this.socket = socket;
+        this.outbound = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    }
+
+    void send(ByteBuffer frame){
+        if(outbound.offer(frame)) return;
+
+        System.out.println("Cluster link to " + peerOrigin + " fell too far behind and has been dropped.");
+        close();
+    }
+
+    @Override
+    public void run(){
+        try {
+            ChungusSocketOptions.apply(socket);
+            socket.setSoTimeout(HELLO_TIMEOUT_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ChungusSocketOptions.STREAM_BUFFER_SIZE));
+            ByteBuffer scratch = ByteBuffer.allocate(ChungusSocketOptions.STREAM_BUFFER_SIZE);
+
+            ChungusThreads.start("ChungusClusterLink-writer", this::writeLoop, false);
+
+            byte[] challenge = ChungusCluster.newChallenge();
+            send(ChungusCluster.encodeChallenge(challenge));
+            byte[] peerChallenge = null;
+
+            while(!socket.isClosed()){
+                ChungusPacket packet = ChungusFrameCodec.read(in, scratch);
+
+                switch(packet.rawPacketId){
+                    case ChungusProtocol.CLUSTER_CHALLENGE:
+                        if(peerChallenge != null) break;
+
+                        ByteBuffer body = packet.body();
+                        if(body.remaining() != ChungusCluster.CHALLENGE_LENGTH) throw new ProtocolException("Malformed cluster challenge");
+
+                        peerChallenge = new byte[ChungusCluster.CHALLENGE_LENGTH];
+                        body.get(peerChallenge);
+                        send(ChungusCluster.encodeHello(cluster.origin, cluster.prove(peerChallenge, cluster.origin)));
+                        break;
+
+                    case ChungusProtocol.CLUSTER_HELLO:
+                        if(peerOrigin != null) break;
+                        // The relay keys need both challenges.
+                        if(peerChallenge == null) throw new ProtocolException("Cluster hello before a challenge");
+
+                        String origin = cluster.authenticate(challenge, packet);
+                        if(origin == null){
+                            System.out.println("Rejected cluster link from " + socket.getRemoteSocketAddress() + ": it doesn't know the cluster secret.");
+                            return;
+                        }
+
+                        socket.setSoTimeout(0);
+                        sendMac = cluster.relayMac(peerChallenge, challenge);
+                        receiveMac = cluster.relayMac(challenge, peerChallenge);
+                        peerOrigin = origin;
+                        cluster.linkUp(this);
+                        break;
+
+                    case ChungusProtocol.CLUSTER_RELAY:
+                        if(peerOrigin == null) break;
+
+                        // A relay that fails its check wasn't sent by the
+                        // peer, so the link can't be trusted any more.
+                        cluster.receive(this, ChungusCluster.checkTag(receiveMac, received++, packet.body()));
+                        break;
+                }
+            }
+        }catch(IOException ex){
+            // The peer went away (or sent something malformed); the dialer
+            // (if any) will reconnect.
+        }catch(RuntimeException ex){
+            ex.printStackTrace();
+        }finally{
+            close();
+            cluster.linkDown(this);
+        }
+    }
+
+    private void writeLoop(){
+        try {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), ChungusSocketOptions.STREAM_BUFFER_SIZE);
+
+            ByteBuffer frame;
+            while((frame = outbound.take()) != CLOSE){
+                do {
+                    write(out, frame);
+                }while((frame = outbound.poll()) != null && frame != CLOSE);
+
+                out.flush();
+                if(frame == CLOSE) break;
+            }
+        }catch(InterruptedException | IOException ex){
+            // The reader notices the socket closing and cleans up.
+        }
+
+        close();
+    }
+
+    // Writes a frame, adding the tag to the end of relays.
+    private void write(OutputStream out, ByteBuffer frame) throws IOException {
+        if((frame.get(frame.position()) & 0xFF) != ChungusProtocol.CLUSTER_RELAY){
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            return;
+        }
+
+        ByteBuffer body = frame.duplicate();
+        body.position(body.position() + ChungusFrameCodec.HEADER_LENGTH);
+        byte[] tag = ChungusCluster.tag(sendMac, sent++, body);
+
+        ByteBuffer header = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH);
+        ChungusFrameCodec.putHeader(header, ChungusProtocol.CLUSTER_RELAY, 0, body.remaining() + tag.length);
+
+        out.write(header.array());
+        out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        out.write(tag);
+    }
+
+    void close(){
+        outbound.offer(CLOSE);
+
+        try {
+            socket.close();
+        }catch(IOException ex){
+            System.err.println(ex);
+        }
+    }
+
+}
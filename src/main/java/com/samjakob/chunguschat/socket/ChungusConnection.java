@@ -0,0 +1,389 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A client connected to a ChungusSocketServer.
+ *
+ * This holds the per-client protocol state and packet handling shared by
+ * every server engine; subclasses only need to know how to move bytes.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+abstract class ChungusConnection {
+
+    final ChungusSocketServer delegateFor;
+
+    final ChungusOutboundQueue outbound;
+
+    // Set from the first byte the client sends; null until then.
+    volatile ChungusWireFormat wireFormat;
+    // The room the client is talking in; only changed by the server.
+    volatile ChungusRoom room;
+
+    // Whether the client agreed to deflated frames in its handshake.
+    volatile boolean compressing;
+    // The room context the client is in step with, if any. Guarded by that
+    // room's lock.
+    ChungusFrameDeflater sharedContext;
+    // The client's own context; only touched by the connection's writer.
+    private ChungusFrameDeflater deflater;
+
+    // Created when the client starts its first upload over this connection.
+    private volatile ChungusInlineUploads inlineUploads;
+
+    private String username;
+    private boolean handshakeCompleted;
+
+    ChungusConnection(ChungusSocketServer delegateFor){
+        this.delegateFor = delegateFor;
+        this.outbound = new ChungusOutboundQueue(
+                this,
+                delegateFor.getOutboundQueueCapacity(),
+                delegateFor.getSlowConsumerPolicy()
+        );
+        this.handshakeCompleted = false;
+    }
+
+    /**
+     * Lets the connection's writer know that a frame has been queued.
+     */
+    abstract void wakeWriter();
+
+    /**
+     * Stops reading from the client for the given time, to hold an upload
+     * to its rate limit. Only called while handling one of the client's
+     * packets.
+     */
+    abstract void holdReads(long nanos);
+
+    /**
+     * Stops reading from the client until the given work is done, to keep
+     * an upload from getting too far ahead of the disk. Only called while
+     * handling one of the client's packets.
+     */
+    abstract void holdReads(CompletableFuture<?> until);
+
+    /**
+     * Closes the connection to the client immediately, discarding anything
+     * still queued. The connection is then removed from the server by
+     * whichever side notices the socket has closed.
+     */
+    abstract void abort();
+
+    /**
+     * Closes the connection to the client, after any frames already passed
+     * to {@link #send(ByteBuffer)} have been written.
+     */
+    abstract void disconnect();
+
+    /**
+     * Where the client is connecting from, or null if that isn't known.
+     */
+    abstract SocketAddress getRemoteAddress();
+
+    /**
+     * Queues an encoded frame to be written to the client. Safe to call from
+     * any thread; the frame is written by the connection's own writer, so a
+     * slow client never holds up the caller.
+     */
+    void send(ByteBuffer frame){
+        send(frame, false);
+    }
+
+    /**
+     * Queues an encoded frame to be written to the client.
+     *
+     * @param droppable whether the frame may be dropped if the client falls
+     * behind; see {@link ChungusOutboundQueue#isDroppable(int)}.
+     */
+    void send(ByteBuffer frame, boolean droppable){
+        if(outbound.offer(frame, droppable)){
+            wakeWriter();
+            return;
+        }
+
+        // This is usually called part way through a broadcast, so rather than
+        // removing the client here just drop the socket and let the reader
+        // clean up.
+        System.out.println(getUsername() + " fell too far behind and has been disconnected.");
+        ChungusSocketServer.slowConsumerDisconnects.incrementAndGet();
+        outbound.close();
+        abort();
+    }
+
+    /**
+     * Queues a shared packet, encoded in this client's wire format. Clients
+     * that haven't sent anything yet (so whose format isn't known) are
+     * skipped.
+     */
+    void send(ChungusSharedFrame frame){
+        ChungusWireFormat format = wireFormat;
+        if(format == null) return;
+
+        ByteBuffer encoded = frame.encoded(format);
+        if(encoded != null) send(encoded, frame.isDroppable());
+    }
+
+    /**
+     * Whether the client can be sent frames from its room's shared
+     * compression context, which needs every one of them to arrive.
+     */
+    boolean canShareCompression(){
+        return compressing && !outbound.dropsFrames();
+    }
+
+    /**
+     * Deflates a frame with the client's own context if it agreed to
+     * compression, just before it's written. Must only be called by the
+     * connection's writer, in the order frames are written.
+     */
+    ByteBuffer compress(ByteBuffer frame){
+        if(!compressing || ChungusFrameDeflater.isDeflated(frame)) return frame;
+
+        if(deflater == null) deflater = new ChungusFrameDeflater();
+        return deflater.deflate(frame, 0);
+    }
+
+    /**
+     * Lets go of any uploads the client was sending over this connection,
+     * once it's gone.
+     */
+    void closeUploads(){
+        ChungusInlineUploads uploads = inlineUploads;
+        if(uploads != null) uploads.close();
+    }
+
+    /**
+     * Frees the client's compression context once the writer is done with
+     * it.
+     */
+    void endCompression(){
+        if(deflater != null) deflater.end();
+        deflater = null;
+    }
+
+    /**
+     * Handles a packet received from the client.
+     *
+     * @return false if the client was rejected and the connection should be
+     * dropped.
+     */
+    boolean handlePacket(ChungusPacket packet){
+        ChungusSocketServer.metrics.packetIn(packet.rawPacketId);
+
+        switch(packet.packetId){
+            case ChungusProtocol.SYSTEM_HANDSHAKE:
+                // Each wire format has exactly one protocol version it speaks.
+                this.handshakeCompleted = packet.getIntPayload() == wireFormat.protocolVersion;
+                if(handshakeCompleted) ChungusSocketServer.metrics.handshake(true);
+
+                ByteBuffer handshake = packet.body();
+                if(handshake != null && handshake.remaining() > 4){
+                    // The client listed the options it wants; answer with
+                    // the ones it gets.
+                    int options = handshake.get(4) & ChungusProtocol.HANDSHAKE_DEFLATE;
+                    if(!ChungusFrameDeflater.ENABLED || !handshakeCompleted) options = 0;
+
+                    send(ChungusFrameCodec.encodeHandshake(wireFormat.protocolVersion, options, false));
+                    this.compressing = (options & ChungusProtocol.HANDSHAKE_DEFLATE) != 0;
+                }else{
+                    send(wireFormat.encode(ChungusProtocol.SYSTEM_HANDSHAKE, wireFormat.protocolVersion));
+                }
+        }
+
+        if(!handshakeCompleted){
+            ChungusSocketServer.metrics.handshake(false);
+            sendMessage("[SYSTEM] You are not on the correct version. This server is running " +
+                    ChungusProtocolVersionMap.forProtocolVersion(ChungusProtocol.PROTOCOL_VERSION).getVersionName()
+                    + ".");
+
+            ChungusSocketServer.remove(this);
+            return false;
+        }
+
+        switch(packet.packetId){
+            case ChungusProtocol.SYSTEM_HANDSHAKE:
+                break;
+
+            case ChungusProtocol.CHAT_MESSAGE:
+                // Relayed as received rather than decoded and re-encoded.
+                room.publish(ChungusSharedFrame.forward(ChungusProtocol.CHAT_MESSAGE, "", packet));
+                break;
+
+            case ChungusProtocol.USERNAME:
+                String oldUsername = username;
+                username = packet.getPayload();
+                ChungusSocketServer.renamed(this, oldUsername, username);
+                break;
+
+            case ChungusProtocol.COMMAND_USERS:
+                // The encoded list is cached until someone joins, leaves or
+                // changes their name.
+                ByteBuffer userList = room.getUserList().frame(packet.rawPacketId, wireFormat);
+                if(userList != null) send(userList);
+                break;
+
+            case ChungusProtocol.SYSTEM_ANNOUNCEMENT:
+                room.publish(ChungusSharedFrame.forward(ChungusProtocol.CHAT_MESSAGE, "[SYSTEM] ", packet));
+                break;
+
+            case ChungusProtocol.COMMAND_SET_MOTD:
+                room.publishMotd(packet.getPayload());
+                break;
+
+            case ChungusProtocol.MOTD:
+                String serverMotd = room.getMotd();
+
+                if(serverMotd != null) sendMessage("[MOTD] " + serverMotd);
+                else if(room.isLobby()) sendMessage("[MOTD] Welcome to " + ChungusSocketServer.getConnectedUsers().get(0) + "'s server.");
+                else sendMessage("[MOTD] Welcome to #" + room.getName() + ".");
+                break;
+
+            case ChungusProtocol.COMMAND_JOIN_ROOM:
+                String roomName = ChungusRoom.normalizeName(packet.getPayload());
+
+                if(roomName == null){
+                    sendSystemMessage("That isn't a valid room name.");
+                    break;
+                }
+
+                ChungusSocketServer.joinRoom(this, roomName);
+                sendSystemMessage("You are now in #" + roomName + " (" + room.size() + " online).");
+                break;
+
+            case ChungusProtocol.COMMAND_HISTORY:
+                ChungusChatLog chatLog = ChungusSocketServer.chatLog;
+                ByteBuffer request = packet.body();
+
+                if(chatLog == null){
+                    sendSystemMessage("This server doesn't keep history.");
+                    break;
+                }
+                if(request == null || request.remaining() < 13) break;
+
+                boolean older = request.get() == 0;
+                long sequence = request.getLong();
+                int limit = request.getInt();
+
+                send(chatLog.page(room.getName(), older, sequence, limit));
+                break;
+
+            case ChungusProtocol.COMMAND_LEAVE_ROOM:
+                ChungusSocketServer.joinRoom(this, ChungusRoom.LOBBY);
+                sendSystemMessage("You are now in the lobby.");
+                break;
+
+            case ChungusProtocol.COMMAND_STATS:
+                if(!wireFormat.supports(ChungusProtocol.STATS_REPORT)) break;
+
+                if(!ChungusSocketServer.isAdmin(this)){
+                    sendSystemMessage("Only the server's admins can see its stats.");
+                    break;
+                }
+
+                send(ChungusProtocol.STATS_REPORT, String.join("\n", ChungusSocketServer.metrics.report()));
+                break;
+
+            case ChungusProtocol.FT_UPLOAD:
+            case ChungusProtocol.FT_CHUNK:
+            case ChungusProtocol.FT_UPLOAD_END:
+                // Only v4 clients can upload over the chat connection.
+                ByteBuffer upload = packet.body();
+                if(upload == null) break;
+
+                if(inlineUploads == null) inlineUploads = new ChungusInlineUploads(this, ChungusSocketServer.blobStore);
+                inlineUploads.handle(packet.packetId, upload);
+                break;
+
+            default:
+                System.out.println("Received unknown command: " + packet.packetId);
+        }
+
+        return true;
+    }
+
+    void send(int packetId, String payload){
+        send(packetId, "", payload);
+    }
+
+    void send(int packetId, String prefix, String payload){
+        ByteBuffer frame = encode(packetId, prefix, payload);
+        if(frame != null) send(frame, ChungusOutboundQueue.isDroppable(packetId));
+    }
+
+    /**
+     * Encodes a string packet in this client's wire format, or returns null
+     * if it can't be (or the format isn't known yet).
+     */
+    ByteBuffer encode(int packetId, String prefix, String payload){
+        ChungusWireFormat format = wireFormat;
+        if(format == null) return null;
+
+        try {
+            return format.encode(packetId, prefix, payload, false);
+        }catch(Exception ex){
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    public void sendMessage(String message){
+        send(ChungusProtocol.CHAT_MESSAGE, message);
+    }
+
+    public void sendSystemMessage(String message){
+        send(ChungusProtocol.CHAT_MESSAGE, "[SYSTEM] ", message);
+    }
+
+    public void offerFile(String name, long size){
+        offerFile(name, size, null);
+    }
+
+    /**
+     * @param contentHash the SHA-256 the file is stored by on the server, as
+     * hex, so the client can download it.
+     */
+    public void offerFile(String name, long size, String contentHash){
+        send(ChungusSharedFrame.offer(ChungusProtocol.FT_OFFER, name, size,
+                contentHash != null ? ChungusBlobStore.fromHex(contentHash) : null));
+    }
+
+    public String getUsername(){
+        return username;
+    }
+
+    public int getOutboundQueueDepth(){
+        return outbound.getDepth();
+    }
+
+    public long getDroppedFrames(){
+        return outbound.getDropped();
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Checks that an uploader offering a file the store already has really has
+ * the file, and not just its SHA-256, before the stored copy is announced
+ * under the name it chose.
+ *
+ * Rather than being told it needs nothing, the uploader is told it still
+ * needs one chunk, picked at random, which then has to match the stored
+ * file byte for byte. To the uploader it's just a range like any other, so
+ * it costs one chunk instead of the whole file.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusDedupProof {
+
+    final File blob;
+    final String fileName;
+    final long fileLength;
+    final String contentHash;
+    final int chunkSize;
+
+    private final int index;
+    private volatile boolean proven;
+
+    ChungusDedupProof(File blob, String fileName, long fileLength, String contentHash, int chunkSize){
+        this.blob = blob;
+        this.fileName = fileName;
+        this.fileLength = fileLength;
+        this.contentHash = contentHash;
+        this.chunkSize = chunkSize;
+
+        int chunkCount = ChungusChunkedTransfer.chunkCount(fileLength, chunkSize);
+        this.index = chunkCount > 0 ? ThreadLocalRandom.current().nextInt(chunkCount) : -1;
+        // There's nothing to prove about an empty file.
+        this.proven = chunkCount == 0;
+    }
+
+    /**
+     * What the uploader still has to send: the chunk it was asked for, or
+     * nothing once that's matched.
+     */
+    List<int[]> getMissingRanges(){
+        return proven ? Collections.<int[]>emptyList() : Collections.singletonList(new int[]{ index, 1 });
+    }
+
+    /**
+     * Checks a chunk the uploader sent against the stored file.
+     *
+     * @return false if it wasn't the chunk asked for, or didn't match.
+     */
+    boolean check(int index, ByteBuffer chunk) throws IOException {
+        if(index != this.index || chunk.remaining() != ChungusChunkedTransfer.chunkLength(index, fileLength, chunkSize)) return false;
+
+        ByteBuffer stored = ByteBuffer.allocate(chunk.remaining());
+        try (FileChannel channel = FileChannel.open(blob.toPath(), StandardOpenOption.READ)) {
+            ChungusChunkedTransfer.readChunk(channel, stored, index, fileLength, chunkSize);
+        }
+
+        if(stored.equals(chunk)) proven = true;
+        return proven;
+    }
+
+    boolean isProven(){
+        return proven;
+    }
+
+}
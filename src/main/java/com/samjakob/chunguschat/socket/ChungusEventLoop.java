@@ -0,0 +1,141 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread serving many reactor connections.
+ *
+ * Anything that touches a connection's channel or selection key must run on
+ * the loop thread; other threads hand work over with {@link #execute(Runnable)}.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusEventLoop extends Thread {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks;
+    // Tasks waiting for their time to come; only touched on the loop thread.
+    private final PriorityQueue<Timer> timers;
+
+    ChungusEventLoop(int index) throws IOException {
+        super("ChungusEventLoop-" + index);
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.timers = new PriorityQueue<>(Comparator.comparingLong((Timer timer) -> timer.deadline));
+    }
+
+    /**
+     * Runs the task on the loop thread once the delay has passed. Must be
+     * called on the loop thread.
+     */
+    void schedule(Runnable task, long delayNanos){
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    /**
+     * Runs the task on the loop thread, waking the selector if it is called
+     * from any other thread.
+     */
+    void execute(Runnable task){
+        tasks.add(task);
+        if(Thread.currentThread() != this) selector.wakeup();
+    }
+
+    /**
+     * Hands a freshly accepted channel over to this loop.
+     */
+    void register(SocketChannel channel, ChungusReactorConnection connection){
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            }catch(IOException ex){
+                ex.printStackTrace();
+                ChungusSocketServer.remove(connection);
+            }
+        });
+    }
+
+    @Override
+    public void run(){
+        while(selector.isOpen()){
+            try {
+                // Tasks queued from the loop thread itself don't wake the
+                // selector, so don't block if any are already waiting, and
+                // only block until the next timer is due.
+                Timer next = timers.peek();
+                if(!tasks.isEmpty()) selector.selectNow();
+                else if(next == null) selector.select();
+                else selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadline - System.nanoTime())));
+
+                Runnable task;
+                while((task = tasks.poll()) != null){
+                    task.run();
+                }
+
+                long now = System.nanoTime();
+                while((next = timers.peek()) != null && next.deadline - now <= 0){
+                    timers.poll().task.run();
+                }
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while(selectedKeys.hasNext()){
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+
+                    ChungusReactorConnection connection = (ChungusReactorConnection) key.attachment();
+
+                    if(key.isValid() && key.isWritable()) connection.onWritable();
+                    if(key.isValid() && key.isReadable()) connection.onReadable();
+                }
+            }catch(Exception ex){
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    private static final class Timer {
+
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task){
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+    }
+
+}
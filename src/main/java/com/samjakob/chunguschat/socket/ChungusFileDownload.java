@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Downloads a file the server has offered, by the SHA-256 it's stored by.
+ *
+ * The file is downloaded to a part file next to its destination, streamed
+ * from the socket straight into the file's channel. If the download is cut
+ * off it reconnects and carries on from the end of the part file, and once
+ * it's all there it's checked against its SHA-256 before being moved into
+ * place.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusFileDownload implements Runnable {
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final String host;
+    private final int port;
+    private final String contentHash;
+    private final File destination;
+    private final MessageCallback onFinished;
+
+    /**
+     * @param onFinished told how the download went, or null.
+     */
+    public ChungusFileDownload(String host, String contentHash, File destination, MessageCallback onFinished){
+        this(host, ChungusSocketServer.CHUNGUS_CHAT_PORT_FT, contentHash, destination, onFinished);
+    }
+
+    public ChungusFileDownload(String host, int port, String contentHash, File destination, MessageCallback onFinished){
+        if(!ChungusBlobStore.isValidHash(contentHash)) throw new IllegalArgumentException("Invalid hash: " + contentHash);
+
+        this.host = host;
+        this.port = port;
+        this.contentHash = contentHash;
+        this.destination = destination;
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Starts the download in the background, on a virtual thread if they
+     * were requested with the chunguschat.virtualThreads system property.
+     */
+    public Thread start(){
+        return ChungusThreads.start("ChungusFileDownload", this, ChungusThreads.virtualThreadsRequested());
+    }
+
+    @Override
+    public void run(){
+        try {
+            download();
+            if(onFinished != null) onFinished.execute("Downloaded " + destination.getName() + ".");
+        }catch(IOException ex){
+            ex.printStackTrace();
+            if(onFinished != null) onFinished.execute("Download of " + destination.getName() + " failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Downloads the file, returning once it's been verified and moved to
+     * its destination.
+     */
+    public void download() throws IOException {
+        File partFile = new File(destination.getPath() + PART_SUFFIX);
+
+        for(int attempt = 0; ; attempt++){
+            try {
+                fetch(partFile);
+                break;
+            }catch(ProtocolException ex){
+                // Refused, e.g. because the part file is left over from
+                // something else and is too long; retrying won't help.
+                partFile.delete();
+                throw ex;
+            }catch(IOException ex){
+                if(attempt >= ChungusFileTransfer.RETRIES) throw ex;
+                System.out.println("Download of " + destination.getName() + " was interrupted (" + ex + "), resuming...");
+            }
+
+            try {
+                Thread.sleep(Math.min(30000, 500L << attempt));
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while resuming download of " + destination.getName());
+            }
+        }
+
+        if(!ChungusBlobStore.hash(partFile).equals(contentHash)){
+            // Whatever was resumed from isn't this file; start over next time.
+            partFile.delete();
+            throw new ProtocolException("Download of " + destination.getName() + " doesn't match its SHA-256");
+        }
+
+        Files.move(partFile.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Downloads whatever isn't in the part file yet.
+     */
+    private void fetch(File partFile) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getByName(host), port));
+             FileChannel fileOut = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = fileOut.size();
+
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            output.writeInt(ChungusChunkedTransfer.MAGIC);
+            output.writeByte(ChungusChunkedTransfer.VERSION);
+            output.writeByte(ChungusProtocol.FT_ACCEPT);
+            output.write(ChungusBlobStore.fromHex(contentHash));
+            output.writeLong(position);
+            output.flush();
+
+            // Unbuffered, so the file itself is left in the channel.
+            DataInputStream input = new DataInputStream(Channels.newInputStream(channel));
+            if(input.readUnsignedByte() != ChungusChunkedTransfer.STATUS_OK){
+                throw new ProtocolException("Download of " + destination.getName() + " was refused: " + input.readUTF());
+            }
+
+            long length = input.readLong();
+
+            while(position < length){
+                long transferred = fileOut.transferFrom(channel, position, Math.min(ChungusFileReceiver.TRANSFER_CHUNK, length - position));
+
+                if(transferred <= 0){
+                    throw new EOFException("Download of " + destination.getName() + " ended after " + position + " of " + length + " bytes");
+                }
+
+                position += transferred;
+            }
+
+            fileOut.force(false);
+        }
+    }
+
+}
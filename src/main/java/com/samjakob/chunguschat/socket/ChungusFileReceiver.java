@@ -0,0 +1,485 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Handles one connection on the file transfer port: an upload into the
+ * server's {@link ChungusBlobStore}, or a download from it.
+ *
+ * Uploads use the chunked protocol described in
+ * {@link ChungusChunkedTransfer}: each chunk is checked against its
+ * checksum as it arrives and written to its place in the file, and an
+ * upload that's cut off can reconnect and send only what's missing. A file
+ * the store already has isn't sent again (beyond the one chunk that
+ * {@link ChungusDedupProof} asks for), and chunks may arrive deflated.
+ *
+ * Older uploaders send the username and file name (both as
+ * {@link java.io.DataOutput#writeUTF(String)} strings), the file length as
+ * a long, and then the file itself, which is streamed from the socket
+ * straight into the file's channel. Those can't be resumed, and are hashed
+ * once they're in.
+ *
+ * Either way a transfer only ever needs a small, fixed amount of memory
+ * however big the file is.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusFileReceiver {
+
+    // How much to ask the channel for at once. transferFrom copies through
+    // a temporary buffer when the source isn't a file, so this only bounds
+    // how long each call can run for.
+    static final long TRANSFER_CHUNK = 8L << 20;
+
+    // Uploads with a connection open, by their part file's location.
+    private static final Map<File, ChungusUpload> uploads = new HashMap<>();
+
+    private final SocketChannel channel;
+    private final ChungusBlobStore store;
+    private final ChungusBandwidth bandwidth;
+
+    private String user;
+    private String fileName;
+    private long fileLength;
+    private String contentHash;
+    // Over this connection, which may be one of several.
+    private long received;
+
+    ChungusFileReceiver(SocketChannel channel, ChungusBlobStore store){
+        this(channel, store, new ChungusBandwidth(0, 0));
+    }
+
+    ChungusFileReceiver(SocketChannel channel, ChungusBlobStore store, ChungusBandwidth bandwidth){
+        this.channel = channel;
+        this.store = store;
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Handles the connection on the channel (which must be in blocking
+     * mode): stores an upload, or serves a download.
+     *
+     * @return the stored file, or null if the connection was a download, or
+     * ended without finishing the file (or another connection finished it).
+     */
+    File receive() throws IOException {
+        // Unbuffered, so it reads no further than it's asked to and leaves
+        // the file contents in the channel.
+        DataInputStream input = new DataInputStream(Channels.newInputStream(channel));
+
+        int magic = input.readInt();
+        if(magic != ChungusChunkedTransfer.MAGIC){
+            // An older uploader; what was read is the start of its header.
+            byte[] start = ByteBuffer.allocate(4).putInt(magic).array();
+            return receiveStream(new DataInputStream(new SequenceInputStream(new ByteArrayInputStream(start), input)));
+        }
+
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+        int version = input.readUnsignedByte();
+        if(version != ChungusChunkedTransfer.VERSION) reject(output, "Unsupported transfer version " + version);
+
+        int op = input.readUnsignedByte();
+        if(op == ChungusProtocol.FT_ACCEPT){
+            serve(input, output);
+            return null;
+        }
+        if(op != ChungusProtocol.FT_OFFER) reject(output, "Unknown transfer " + op);
+
+        return receiveChunks(input, output);
+    }
+
+    private File receiveChunks(DataInputStream input, DataOutputStream output) throws IOException {
+        String transferId = input.readUTF();
+        user = input.readUTF();
+        // Only the name is kept; it's just what the file is offered as.
+        fileName = new File(input.readUTF()).getName();
+        fileLength = input.readLong();
+        contentHash = readHash(input);
+        int chunkSize = input.readInt();
+
+        String rejection = ChungusChunkedTransfer.checkUpload(transferId, fileName, fileLength, chunkSize);
+        if(rejection != null) reject(output, rejection);
+
+        int[] checksums = new int[ChungusChunkedTransfer.chunkCount(fileLength, chunkSize)];
+        for(int i = 0; i < checksums.length; i++) checksums[i] = input.readInt();
+
+        int compression = input.readUnsignedByte() == ChungusChunkedTransfer.COMPRESSION_DEFLATE && ChungusChunkedTransfer.COMPRESSION
+                ? ChungusChunkedTransfer.COMPRESSION_DEFLATE
+                : ChungusChunkedTransfer.COMPRESSION_NONE;
+
+        File stored = store.get(contentHash);
+        if(stored != null && stored.length() == fileLength){
+            // Already uploaded, by someone, under some name.
+            return receiveProof(input, output, new ChungusDedupProof(stored, fileName, fileLength, contentHash, chunkSize), compression);
+        }
+
+        ChungusUpload upload = acquire(store, transferId, user, fileName, fileLength, contentHash, chunkSize, checksums);
+        // Inflated chunks need an array to go into.
+        Inflater inflater = compression == ChungusChunkedTransfer.COMPRESSION_DEFLATE ? new Inflater() : null;
+        try (ChungusBandwidth.Transfer transfer = bandwidth.open(remoteAddress())) {
+            List<int[]> missing = upload.getMissingRanges();
+
+            output.writeByte(ChungusChunkedTransfer.STATUS_OK);
+            output.writeByte(compression);
+            ChungusChunkedTransfer.writeRanges(output, missing);
+            output.flush();
+
+            int missingChunks = 0;
+            for(int[] range : missing) missingChunks += range[1];
+            System.out.println((missingChunks < checksums.length ? "Resuming: " : "Downloading: ")
+                    + fileName + " (" + fileLength + " bytes, " + missingChunks + " of " + checksums.length + " chunks to go)");
+
+            ByteBuffer buffer = inflater != null ? ByteBuffer.allocate(chunkSize) : ByteBuffer.allocateDirect(chunkSize);
+            byte[] compressed = inflater != null ? new byte[chunkSize] : null;
+            long startTime = System.currentTimeMillis();
+
+            while(true){
+                int index = input.readInt();
+
+                if(index == ChungusChunkedTransfer.END){
+                    File file = upload.complete(buffer);
+                    ChungusChunkedTransfer.writeRanges(output, upload.getMissingRanges());
+                    output.flush();
+
+                    if(file != null){
+                        long elapsed = System.currentTimeMillis() - startTime;
+                        System.out.println("Downloaded in " + elapsed + "ms");
+                        ChungusSocketServer.metrics.transferCompleted(received, TimeUnit.MILLISECONDS.toNanos(elapsed));
+                        return file;
+                    }
+                    continue;
+                }
+
+                if(index < 0 || index >= checksums.length) throw new ProtocolException("Invalid chunk " + index);
+                if(!readChunk(input, index, chunkSize, buffer, inflater, compressed, transfer)) continue;
+
+                // A chunk that doesn't match is left missing, and asked for
+                // again after END.
+                if(!upload.write(index, buffer)){
+                    System.out.println("Chunk " + index + " of " + fileName + " failed its checksum.");
+                }
+            }
+        }catch(EOFException ex){
+            // The uploader went away, or is done; what we have is kept for
+            // it to resume.
+            return null;
+        }finally{
+            if(inflater != null) inflater.end();
+            release(store, upload);
+        }
+    }
+
+    /**
+     * Handles an upload of a file the store already has, which only needs
+     * the chunk the proof asks for.
+     *
+     * @return the stored file, once the uploader has shown it has it.
+     */
+    private File receiveProof(DataInputStream input, DataOutputStream output, ChungusDedupProof proof, int compression) throws IOException {
+        Inflater inflater = compression == ChungusChunkedTransfer.COMPRESSION_DEFLATE ? new Inflater() : null;
+        try (ChungusBandwidth.Transfer transfer = bandwidth.open(remoteAddress())) {
+            output.writeByte(ChungusChunkedTransfer.STATUS_OK);
+            output.writeByte(compression);
+            ChungusChunkedTransfer.writeRanges(output, proof.getMissingRanges());
+            output.flush();
+
+            int chunkCount = ChungusChunkedTransfer.chunkCount(fileLength, proof.chunkSize);
+            ByteBuffer buffer = ByteBuffer.allocate(proof.chunkSize);
+            byte[] compressed = inflater != null ? new byte[proof.chunkSize] : null;
+
+            // An empty file, so the uploader wasn't asked for anything.
+            if(proof.isProven()){
+                System.out.println("Already stored: " + fileName + " (" + fileLength + " bytes)");
+                return proof.blob;
+            }
+
+            while(true){
+                int index = input.readInt();
+
+                if(index == ChungusChunkedTransfer.END){
+                    ChungusChunkedTransfer.writeRanges(output, proof.getMissingRanges());
+                    output.flush();
+
+                    if(proof.isProven()){
+                        System.out.println("Already stored: " + fileName + " (" + fileLength + " bytes)");
+                        return proof.blob;
+                    }
+                    continue;
+                }
+
+                if(index < 0 || index >= chunkCount) throw new ProtocolException("Invalid chunk " + index);
+                if(!readChunk(input, index, proof.chunkSize, buffer, inflater, compressed, transfer)) continue;
+
+                // One that doesn't match is asked for again after END.
+                if(!proof.check(index, buffer)){
+                    System.out.println("Chunk " + index + " of " + fileName + " doesn't match the stored file.");
+                }
+            }
+        }catch(EOFException ex){
+            // The uploader went away without proving it.
+            return null;
+        }finally{
+            if(inflater != null) inflater.end();
+        }
+    }
+
+    /**
+     * Reads a chunk from the uploader into the buffer, inflating it if it
+     * was deflated, and leaves the buffer ready to be read from.
+     *
+     * @return false if it couldn't be inflated, in which case the chunk is
+     * treated like one that failed its checksum.
+     */
+    private boolean readChunk(DataInputStream input, int index, int chunkSize, ByteBuffer buffer, Inflater inflater, byte[] compressed, ChungusBandwidth.Transfer transfer) throws IOException {
+        buffer.clear();
+        buffer.limit(ChungusChunkedTransfer.chunkLength(index, fileLength, chunkSize));
+
+        // Each chunk waits for its share of the bandwidth before it's read,
+        // which holds the uploader back too.
+        if(inflater != null && input.readUnsignedByte() == ChungusChunkedTransfer.CHUNK_DEFLATED){
+            int length = input.readInt();
+            if(length <= 0 || length >= buffer.remaining()) throw new ProtocolException("Invalid compressed chunk length " + length);
+
+            transfer.acquire(length);
+            received += length;
+            ChungusSocketServer.metrics.transferIn(length);
+            if(!inflate(input, inflater, compressed, length, buffer)){
+                System.out.println("Chunk " + index + " of " + fileName + " couldn't be inflated.");
+                return false;
+            }
+        }else{
+            transfer.acquire(buffer.remaining());
+            received += buffer.remaining();
+            ChungusSocketServer.metrics.transferIn(buffer.remaining());
+            while(buffer.hasRemaining()){
+                if(channel.read(buffer) < 0) throw new EOFException("Upload of " + fileName + " ended in chunk " + index);
+            }
+        }
+
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Reads a deflated chunk of the given (compressed) length and inflates
+     * it into the (array-backed) buffer, which must have exactly the chunk's
+     * length remaining.
+     *
+     * @return false if it didn't inflate to exactly that length, in which
+     * case the chunk is treated like one that failed its checksum.
+     */
+    private boolean inflate(DataInputStream input, Inflater inflater, byte[] compressed, int length, ByteBuffer buffer) throws IOException {
+        input.readFully(compressed, 0, length);
+
+        inflater.reset();
+        inflater.setInput(compressed, 0, length);
+
+        try {
+            while(!inflater.finished() && buffer.hasRemaining()){
+                int inflated = inflater.inflate(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) return false;
+                buffer.position(buffer.position() + inflated);
+            }
+        }catch(DataFormatException ex){
+            return false;
+        }
+
+        return inflater.finished() && !buffer.hasRemaining();
+    }
+
+    /**
+     * Sends a stored file to a downloader, from the offset it asks for.
+     */
+    private void serve(DataInputStream input, DataOutputStream output) throws IOException {
+        String hash = readHash(input);
+        long offset = input.readLong();
+
+        File blob = store.get(hash);
+        if(blob == null) reject(output, "No such file");
+
+        try (FileChannel fileIn = FileChannel.open(blob.toPath(), StandardOpenOption.READ)) {
+            long length = fileIn.size();
+            if(offset < 0 || offset > length) reject(output, "Invalid offset " + offset);
+
+            output.writeByte(ChungusChunkedTransfer.STATUS_OK);
+            output.writeLong(length);
+            output.flush();
+
+            // Every download has its own channel on the blob, which never
+            // changes, so any number of them can read it at once.
+            long startTime = System.nanoTime();
+            try (ChungusBandwidth.Transfer transfer = bandwidth.open(remoteAddress())) {
+                long position = offset;
+                while(position < length){
+                    long piece = Math.min(transfer.isLimited() ? ChungusBandwidth.QUANTUM : TRANSFER_CHUNK, length - position);
+                    transfer.acquire(piece);
+                    long sent = fileIn.transferTo(position, piece, channel);
+                    ChungusSocketServer.metrics.transferOut(sent);
+                    position += sent;
+                }
+            }
+            ChungusSocketServer.metrics.transferCompleted(length - offset, System.nanoTime() - startTime);
+        }
+    }
+
+    private String remoteAddress() throws IOException {
+        return ChungusBandwidth.clientOf(channel.getRemoteAddress());
+    }
+
+    private static String readHash(DataInputStream input) throws IOException {
+        byte[] hash = new byte[ChungusBlobStore.HASH_LENGTH];
+        input.readFully(hash);
+        return ChungusBlobStore.toHex(hash);
+    }
+
+    private static void reject(DataOutputStream output, String reason) throws IOException {
+        output.writeByte(ChungusChunkedTransfer.STATUS_REJECTED);
+        output.writeUTF(reason);
+        output.flush();
+        throw new ProtocolException(reason);
+    }
+
+    /**
+     * Receives an upload from an uploader that predates chunked transfers.
+     * A file that isn't received in full is deleted.
+     */
+    private File receiveStream(DataInputStream input) throws IOException {
+        user = input.readUTF();
+        fileName = new File(input.readUTF()).getName();
+        fileLength = input.readLong();
+
+        if(fileName.isEmpty() || fileLength < 0) throw new IOException("Invalid upload from " + user);
+
+        System.out.println("Downloading: " + fileName + " (" + fileLength + " bytes)");
+
+        File file = File.createTempFile("upload", ".part", store.getIncomingDirectory());
+        long startTime = System.currentTimeMillis();
+        boolean complete = false;
+
+        try (FileChannel fileOut = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                ChungusBandwidth.Transfer transfer = bandwidth.open(remoteAddress())) {
+            long position = 0;
+
+            while(position < fileLength){
+                long piece = Math.min(transfer.isLimited() ? ChungusBandwidth.QUANTUM : TRANSFER_CHUNK, fileLength - position);
+                transfer.acquire(piece);
+                long transferred = fileOut.transferFrom(channel, position, piece);
+
+                // A blocking channel only gives nothing back at the end of
+                // the stream.
+                if(transferred <= 0){
+                    throw new EOFException("Upload of " + fileName + " ended after " + position + " of " + fileLength + " bytes");
+                }
+
+                position += transferred;
+                ChungusSocketServer.metrics.transferIn(transferred);
+            }
+
+            complete = true;
+        }finally{
+            if(!complete) file.delete();
+        }
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("Downloaded in " + (endTime - startTime) + "ms");
+        ChungusSocketServer.metrics.transferCompleted(fileLength, TimeUnit.MILLISECONDS.toNanos(endTime - startTime));
+
+        contentHash = ChungusBlobStore.hash(file);
+        return store.put(contentHash, file);
+    }
+
+    /**
+     * Finds the upload if another connection (on this port, or sending it
+     * inline over chat) has it open, or opens it.
+     */
+    static ChungusUpload acquire(ChungusBlobStore store, String transferId, String user, String fileName, long fileLength, String contentHash, int chunkSize, int[] checksums) throws IOException {
+        File key = new File(store.getIncomingDirectory(), transferId);
+
+        synchronized(uploads){
+            ChungusUpload upload = uploads.get(key);
+
+            if(upload == null){
+                upload = ChungusUpload.open(store, transferId, user, fileName, fileLength, contentHash, chunkSize, checksums);
+                uploads.put(key, upload);
+            }else if(!upload.matches(user, fileName, fileLength, contentHash, chunkSize, checksums)){
+                throw new ProtocolException("Transfer " + transferId + " is already in progress for a different file");
+            }
+
+            upload.connections++;
+            return upload;
+        }
+    }
+
+    static void release(ChungusBlobStore store, ChungusUpload upload){
+        synchronized(uploads){
+            if(--upload.connections > 0) return;
+
+            uploads.remove(new File(store.getIncomingDirectory(), upload.transferId));
+            upload.close();
+        }
+    }
+
+    String getUser(){
+        return user;
+    }
+
+    String getFileName(){
+        return fileName;
+    }
+
+    long getFileLength(){
+        return fileLength;
+    }
+
+    /**
+     * The SHA-256 of the received file, as hex.
+     */
+    String getContentHash(){
+        return contentHash;
+    }
+
+}
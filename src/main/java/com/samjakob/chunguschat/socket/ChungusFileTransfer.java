@@ -2,12 +2,26 @@ package com.samjakob.chunguschat.socket;
 
 
 import com.samjakob.chunguschat.socket.ChungusSocketServer;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.Socket;
-import java.nio.file.Files;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
 
 /*
  * To change this license header, choose License Headers in Project Properties.
@@ -19,36 +33,361 @@ import java.nio.file.Files;
  *
  * @author samuel.mearns
  */
-public class ChungusFileTransfer extends Thread {
+public class ChungusFileTransfer implements Runnable {
+    
+    // How many times an interrupted upload reconnects and resumes before
+    // giving up.
+    static final int RETRIES = Integer.getInteger("chunguschat.ft.retries", 5);
+    // How many times chunks that fail the server's checks are resent over
+    // one connection.
+    private static final int MAX_ROUNDS = 3;
+    
+    // The most connections one upload uses at once, and how much of the
+    // file each one needs to be worth opening; a file is only split once
+    // it's a few times bigger than that.
+    static final int MAX_STREAMS = Integer.getInteger("chunguschat.ft.streams", 4);
+    static final long BYTES_PER_STREAM = Long.getLong("chunguschat.ft.bytesPerStream", 32L << 20);
+    // How many chunks a connection takes from the queue at a time. Batches
+    // keep each connection's writes to the file mostly sequential.
+    private static final int CHUNKS_PER_BATCH = 8;
     
     String username;
     String host;
+    int port;
     File file;
     long fileSize;
     
+    // The file's SHA-256, worked out along with the chunk checksums.
+    private String contentHash;
+    // The compression to ask the server for.
+    private int compression;
+    
     public ChungusFileTransfer(String username, String host, File file, long fileSize){
+        this(username, host, ChungusSocketServer.CHUNGUS_CHAT_PORT_FT, file, fileSize);
+    }
+    
+    public ChungusFileTransfer(String username, String host, int port, File file, long fileSize){
         this.username = username;
         this.host = host;
+        this.port = port;
         this.file = file;
         this.fileSize = fileSize;
     }
     
+    /**
+     * Starts the transfer in the background, on a virtual thread if they were
+     * requested with the chunguschat.virtualThreads system property.
+     */
+    public Thread start(){
+        return ChungusThreads.start("ChungusFileTransfer", this, ChungusThreads.virtualThreadsRequested());
+    }
+    
     @Override
     public void run(){
         try {
-            Socket socket = new Socket(InetAddress.getByName(host), ChungusSocketServer.CHUNGUS_CHAT_PORT_FT);
+            transfer();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Sends the file, returning once the server has all of it and has
+     * checked it. If the connection drops, it reconnects and sends only the
+     * chunks the server doesn't have yet.
+     *
+     * Large files are sent over several connections at once (see
+     * streamsFor), each taking batches of chunks from a shared queue; the
+     * server writes each chunk at its own offset, so they can arrive in any
+     * order. The file is never read into memory: each chunk is transferred
+     * straight from the file's channel to the socket, which the OS can do
+     * without copying it through the JVM at all - unless the file
+     * compresses well, in which case each chunk is deflated on its way out.
+     *
+     * If the server already has a file with the same contents, only the
+     * one chunk it asks for as proof is sent.
+     */
+    public void transfer() throws IOException {
+        int chunkSize = ChungusChunkedTransfer.chunkSizeFor(fileSize, ChungusChunkedTransfer.CHUNK_SIZE);
+        MessageDigest digest = ChungusBlobStore.newDigest();
+        int[] checksums = ChungusChunkedTransfer.checksums(file, fileSize, chunkSize, digest);
+        contentHash = ChungusBlobStore.toHex(digest.digest());
+        compression = ChungusChunkedTransfer.COMPRESSION && ChungusChunkedTransfer.isCompressible(file, fileSize)
+                ? ChungusChunkedTransfer.COMPRESSION_DEFLATE
+                : ChungusChunkedTransfer.COMPRESSION_NONE;
+        String transferId = ChungusChunkedTransfer.transferId(username, file.getName(), fileSize, contentHash, chunkSize, checksums);
+        
+        for(int attempt = 0; ; attempt++){
+            try {
+                send(transferId, chunkSize, checksums);
+                return;
+            }catch(ProtocolException ex){
+                // The server won't take it; trying again won't help.
+                throw ex;
+            }catch(IOException ex){
+                if(attempt >= RETRIES) throw ex;
+                System.out.println("Upload of " + file.getName() + " was interrupted (" + ex + "), resuming...");
+            }
+            
+            try {
+                Thread.sleep(Math.min(30000, 500L << attempt));
+            }catch(InterruptedException ex){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while resuming upload of " + file.getName());
+            }
+        }
+    }
+    
+    /**
+     * The SHA-256 of the file, as hex, once transfer has started.
+     */
+    public String getContentHash(){
+        return contentHash;
+    }
+    
+    /**
+     * How many connections to send the given number of bytes over: one per
+     * BYTES_PER_STREAM, up to MAX_STREAMS.
+     */
+    static int streamsFor(long bytes){
+        return (int) Math.max(1, Math.min(MAX_STREAMS, bytes / BYTES_PER_STREAM));
+    }
+    
+    private void send(String transferId, int chunkSize, int[] checksums) throws IOException {
+        // The first connection is the one that finishes the upload; any
+        // others only help send chunks.
+        try (Stream primary = new Stream(transferId, chunkSize, checksums)) {
+            List<int[]> missing = primary.missing;
             
-            try (DataOutputStream output = new DataOutputStream(socket.getOutputStream())) {
+            for(int round = 0; !missing.isEmpty(); round++){
+                if(round == MAX_ROUNDS){
+                    throw new ProtocolException("Upload of " + file.getName() + " keeps failing the server's checks; has it changed?");
+                }
+                
+                IOException helperFailure = sendChunks(primary, missing, transferId, chunkSize, checksums);
+                missing = primary.end();
+                
+                if(!missing.isEmpty() && helperFailure != null){
+                    // Some of what's missing went down with the other
+                    // connection rather than failing the server's checks,
+                    // so resume as if this connection had dropped.
+                    throw new IOException("A connection uploading " + file.getName() + " failed", helperFailure);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Sends the chunks in the ranges, over as many connections as they're
+     * worth, and returns once they've all been sent and (on the extra
+     * connections) received.
+     *
+     * @return why one of the extra connections failed, or null if none did.
+     * Whatever it didn't get through is still missing.
+     */
+    private IOException sendChunks(Stream primary, List<int[]> ranges, String transferId, int chunkSize, int[] checksums) throws IOException {
+        ConcurrentLinkedQueue<int[]> batches = new ConcurrentLinkedQueue<>();
+        AtomicReference<IOException> helperFailure = new AtomicReference<>();
+        long bytes = 0;
+        
+        for(int[] range : ranges){
+            for(int first = range[0]; first < range[0] + range[1]; first += CHUNKS_PER_BATCH){
+                batches.add(new int[]{ first, Math.min(CHUNKS_PER_BATCH, range[0] + range[1] - first) });
+            }
+            bytes += (long) range[1] * chunkSize;
+        }
+        
+        List<Thread> helpers = new ArrayList<>();
+        for(int i = 1; i < streamsFor(bytes); i++){
+            helpers.add(ChungusThreads.start("ChungusFileTransfer", () -> {
+                try (Stream stream = new Stream(transferId, chunkSize, checksums)) {
+                    stream.sendBatches(batches);
+                    // Waiting for the reply to END means the server has
+                    // taken everything this connection sent.
+                    stream.end();
+                }catch(IOException ex){
+                    System.out.println("A connection uploading " + file.getName() + " failed: " + ex);
+                    helperFailure.compareAndSet(null, ex);
+                }
+            }, ChungusThreads.virtualThreadsRequested()));
+        }
+        
+        try {
+            primary.sendBatches(batches);
+        }catch(IOException ex){
+            // Stop the other connections too; the upload resumes from
+            // whatever the server has.
+            batches.clear();
+            throw ex;
+        }finally{
+            for(Thread helper : helpers){
+                try {
+                    helper.join();
+                }catch(InterruptedException ex){
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while uploading " + file.getName());
+                }
+            }
+        }
+        
+        return helperFailure.get();
+    }
+    
+    /**
+     * One connection to the server, for this upload.
+     */
+    private final class Stream implements AutoCloseable {
+        
+        final SocketChannel channel;
+        final FileChannel fileChannel;
+        final DataInputStream input;
+        final DataOutputStream output;
+        final int chunkSize;
+        final int chunkCount;
+        
+        // What the server said it still needed when this connected.
+        final List<int[]> missing;
+        
+        // Only set if the server agreed to compression.
+        Deflater deflater;
+        byte[] raw;
+        byte[] compressed;
+        
+        Stream(String transferId, int chunkSize, int[] checksums) throws IOException {
+            this.chunkSize = chunkSize;
+            this.chunkCount = checksums.length;
+            this.channel = SocketChannel.open(new InetSocketAddress(InetAddress.getByName(host), port));
+            
+            try {
+                this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                this.input = new DataInputStream(Channels.newInputStream(channel));
+                this.output = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                
+                output.writeInt(ChungusChunkedTransfer.MAGIC);
+                output.writeByte(ChungusChunkedTransfer.VERSION);
+                output.writeByte(ChungusProtocol.FT_OFFER);
+                output.writeUTF(transferId);
                 output.writeUTF(username);
                 output.writeUTF(file.getName());
                 output.writeLong(fileSize);
-                output.write(Files.readAllBytes(file.toPath()));
-            } catch (IOException ex){
+                output.write(ChungusBlobStore.fromHex(contentHash));
+                output.writeInt(chunkSize);
+                for(int checksum : checksums) output.writeInt(checksum);
+                output.writeByte(compression);
+                output.flush();
+                
+                if(input.readUnsignedByte() != ChungusChunkedTransfer.STATUS_OK){
+                    throw new ProtocolException("Upload of " + file.getName() + " was rejected: " + input.readUTF());
+                }
+                
+                if(input.readUnsignedByte() == ChungusChunkedTransfer.COMPRESSION_DEFLATE){
+                    this.deflater = new Deflater(ChungusChunkedTransfer.COMPRESSION_LEVEL);
+                    this.raw = new byte[chunkSize];
+                    this.compressed = new byte[chunkSize];
+                }
+                
+                // Everything for a new upload, whatever didn't make it last
+                // time, or one chunk if the server already has the file.
+                this.missing = ChungusChunkedTransfer.readRanges(input, chunkCount);
+            }catch(IOException ex){
+                close();
+                throw ex;
+            }
+        }
+        
+        void sendBatches(ConcurrentLinkedQueue<int[]> batches) throws IOException {
+            int[] batch;
+            while((batch = batches.poll()) != null){
+                for(int index = batch[0]; index < batch[0] + batch[1]; index++){
+                    sendChunk(index);
+                }
+            }
+        }
+        
+        void sendChunk(int index) throws IOException {
+            output.writeInt(index);
+            
+            if(deflater != null){
+                sendDeflated(index);
+                return;
+            }
+            
+            output.flush();
+            
+            long position = ChungusChunkedTransfer.chunkOffset(index, chunkSize);
+            long end = position + ChungusChunkedTransfer.chunkLength(index, fileSize, chunkSize);
+            
+            // transferTo can send less than it's asked to, e.g. once the
+            // socket's send buffer is full, so keep going until it's all sent.
+            while(position < end){
+                long transferred = fileChannel.transferTo(position, end - position, channel);
+                
+                if(transferred <= 0 && position >= fileChannel.size()){
+                    throw new EOFException(file.getName() + " is shorter than the " + fileSize + " bytes offered");
+                }
+                
+                position += transferred;
+            }
+        }
+        
+        /**
+         * Sends a chunk deflated, or raw if that doesn't make it any
+         * smaller.
+         */
+        private void sendDeflated(int index) throws IOException {
+            int length = ChungusChunkedTransfer.chunkLength(index, fileSize, chunkSize);
+            long offset = ChungusChunkedTransfer.chunkOffset(index, chunkSize);
+            
+            ByteBuffer chunk = ByteBuffer.wrap(raw, 0, length);
+            while(chunk.hasRemaining()){
+                if(fileChannel.read(chunk, offset + chunk.position()) < 0){
+                    throw new EOFException(file.getName() + " is shorter than the " + fileSize + " bytes offered");
+                }
+            }
+            
+            deflater.reset();
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+            
+            int compressedLength = 0;
+            while(!deflater.finished() && compressedLength < length){
+                compressedLength += deflater.deflate(compressed, compressedLength, length - compressedLength);
+            }
+            
+            if(deflater.finished() && compressedLength < length){
+                output.writeByte(ChungusChunkedTransfer.CHUNK_DEFLATED);
+                output.writeInt(compressedLength);
+                output.write(compressed, 0, compressedLength);
+            }else{
+                output.writeByte(ChungusChunkedTransfer.CHUNK_RAW);
+                output.write(raw, 0, length);
+            }
+            
+            output.flush();
+        }
+        
+        /**
+         * Tells the server this connection is done sending, and returns
+         * what it still needs.
+         */
+        List<int[]> end() throws IOException {
+            output.writeInt(ChungusChunkedTransfer.END);
+            output.flush();
+            return ChungusChunkedTransfer.readRanges(input, chunkCount);
+        }
+        
+        @Override
+        public void close(){
+            if(deflater != null) deflater.end();
+            
+            try {
+                channel.close();
+                if(fileChannel != null) fileChannel.close();
+            }catch(IOException ex){
                 ex.printStackTrace();
             }
-        } catch (IOException ex) {
-            ex.printStackTrace();
         }
+        
     }
 
 }
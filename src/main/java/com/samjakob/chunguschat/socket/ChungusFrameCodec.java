@@ -0,0 +1,302 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes and decodes ChungusProtocol v4 frames.
+ *
+ * Every frame is a six byte header followed by a body:
+ *
+ * <pre>
+ *  0        1        2                                   6
+ *  +--------+--------+-----------------------------------+-------------
+ *  |  type  | flags  |       body length (uint32)        |  body ...
+ *  +--------+--------+-----------------------------------+-------------
+ * </pre>
+ *
+ * The type is the packet ID (including the silent bit). The flags say
+ * whether (and how) the body is compressed; see {@link ChungusFrameDeflater}.
+ * Strings are plain
+ * UTF-8 and always run to the end of the body, so a string packet's body is
+ * just the string. Because the length is always known, a reader can skip a
+ * packet it doesn't understand without losing its place in the stream.
+ *
+ * Decoding works directly on the buffer the bytes were read into: the
+ * decoded packet's body is a view of that buffer rather than a copy.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusFrameCodec {
+
+    static final int HEADER_LENGTH = 6;
+
+    // The body is deflated.
+    static final int FLAG_DEFLATED = 0b001;
+    // ...with the room's shared context rather than the connection's own.
+    static final int FLAG_SHARED = 0b010;
+    // ...and the context starts afresh with this frame.
+    static final int FLAG_RESET = 0b100;
+
+    /**
+     * The largest frame body a peer will accept; anything bigger is treated
+     * as a protocol error. Set with {@code chunguschat.maxFrameLength}.
+     */
+    static final int MAX_BODY_LENGTH = Integer.getInteger("chunguschat.maxFrameLength", 1 << 20);
+
+    private static final ThreadLocal<CharsetEncoder> ENCODER = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE)
+    );
+
+    private ChungusFrameCodec(){}
+
+    /**
+     * Attempts to decode a single frame from the buffer.
+     *
+     * If the buffer does not yet hold a complete frame, null is returned and
+     * the buffer position is left untouched. Otherwise the position is moved
+     * past the frame, and the returned packet's body is a view of the
+     * buffer, which is only valid until the buffer is next written to.
+     */
+    static ChungusPacket decode(ByteBuffer buffer) throws ProtocolException {
+        if(buffer.remaining() < HEADER_LENGTH) return null;
+
+        int start = buffer.position();
+        int type = buffer.get(start) & 0xFF;
+        int flags = buffer.get(start + 1) & 0xFF;
+        int length = checkLength(buffer.getInt(start + 2));
+
+        if(buffer.remaining() < HEADER_LENGTH + length) return null;
+
+        ByteBuffer frame = buffer.duplicate();
+        frame.limit(start + HEADER_LENGTH + length);
+        frame = frame.slice();
+
+        buffer.position(start + HEADER_LENGTH + length);
+        return ChungusPacket.framed(type, flags, frame);
+    }
+
+    /**
+     * Reads a single frame from a blocking stream into the given scratch
+     * buffer and decodes it there. Frames too large for the scratch buffer
+     * are read into a buffer of their own.
+     *
+     * @return the decoded packet; its body is a view of the scratch buffer
+     * and is only valid until the next read.
+     */
+    static ChungusPacket read(DataInputStream in, ByteBuffer scratch) throws IOException {
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int length = checkLength(in.readInt());
+
+        ByteBuffer frame = scratch.capacity() >= HEADER_LENGTH + length
+                ? scratch
+                : ByteBuffer.allocate(HEADER_LENGTH + length);
+
+        frame.clear();
+        frame.put((byte) type);
+        frame.put((byte) flags);
+        frame.putInt(length);
+        in.readFully(frame.array(), frame.arrayOffset() + HEADER_LENGTH, length);
+        frame.position(0);
+        frame.limit(HEADER_LENGTH + length);
+
+        return ChungusPacket.framed(type, flags, frame.slice());
+    }
+
+    private static int checkLength(int length) throws ProtocolException {
+        if(length < 0 || length > MAX_BODY_LENGTH){
+            throw new ProtocolException("Frame length " + (length & 0xFFFFFFFFL) + " exceeds the maximum of " + MAX_BODY_LENGTH);
+        }
+
+        return length;
+    }
+
+    /*
+     * Encoding
+     */
+
+    static ByteBuffer encode(int packetId, boolean direct){
+        ByteBuffer buffer = allocate(HEADER_LENGTH, direct);
+        putHeader(buffer, packetId, 0, 0);
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer encode(int packetId, int value, boolean direct){
+        ByteBuffer buffer = allocate(HEADER_LENGTH + 4, direct);
+        putHeader(buffer, packetId, 0, 4);
+        buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a handshake carrying the protocol version and the options the
+     * sender wants, or has agreed to.
+     */
+    static ByteBuffer encodeHandshake(int version, int options, boolean direct){
+        ByteBuffer buffer = allocate(HEADER_LENGTH + 5, direct);
+        putHeader(buffer, ChungusProtocol.SYSTEM_HANDSHAKE, 0, 5);
+        buffer.putInt(version);
+        buffer.put((byte) options);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a string packet whose body is prefix followed by payload,
+     * without concatenating the two strings first.
+     */
+    static ByteBuffer encode(int packetId, String prefix, String payload, boolean direct) throws ProtocolException {
+        int length = checkLength(utf8Length(prefix) + utf8Length(payload));
+
+        ByteBuffer buffer = allocate(HEADER_LENGTH + length, direct);
+        putHeader(buffer, packetId, 0, length);
+        putString(buffer, prefix);
+        putString(buffer, payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a packet whose body is a long followed by a string, such as a
+     * file transfer offer.
+     */
+    static ByteBuffer encode(int packetId, long value, String payload, boolean direct) throws ProtocolException {
+        int length = checkLength(8 + utf8Length(payload));
+
+        ByteBuffer buffer = allocate(HEADER_LENGTH + length, direct);
+        putHeader(buffer, packetId, 0, length);
+        buffer.putLong(value);
+        putString(buffer, payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encodes a file transfer offer: the file's size, the SHA-256 it's
+     * stored by on the server (zeros if it isn't known), then its name.
+     */
+    static ByteBuffer encode(int packetId, long size, byte[] contentHash, String name, boolean direct) throws ProtocolException {
+        int length = checkLength(8 + ChungusBlobStore.HASH_LENGTH + utf8Length(name));
+
+        ByteBuffer buffer = allocate(HEADER_LENGTH + length, direct);
+        putHeader(buffer, packetId, 0, length);
+        buffer.putLong(size);
+        if(contentHash != null) buffer.put(contentHash);
+        else buffer.position(buffer.position() + ChungusBlobStore.HASH_LENGTH);
+        putString(buffer, name);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Builds a string frame out of a prefix and the body of a frame that
+     * was already received, copying the body bytes as they are rather than
+     * decoding and re-encoding the string.
+     */
+    static ByteBuffer forward(int packetId, String prefix, ByteBuffer body, boolean direct) throws ProtocolException {
+        body = body.duplicate();
+        int length = checkLength(utf8Length(prefix) + body.remaining());
+
+        ByteBuffer buffer = allocate(HEADER_LENGTH + length, direct);
+        putHeader(buffer, packetId, 0, length);
+        putString(buffer, prefix);
+        buffer.put(body);
+        buffer.flip();
+        return buffer;
+    }
+
+    static void putHeader(ByteBuffer buffer, int packetId, int flags, int length){
+        buffer.put((byte) packetId);
+        buffer.put((byte) flags);
+        buffer.putInt(length);
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct){
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /*
+     * Strings
+     */
+
+    /**
+     * The number of bytes the string takes up in (standard) UTF-8.
+     */
+    static int utf8Length(String value){
+        int length = 0;
+
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+
+            if(c < 0x80) length++;
+            else if(c < 0x800) length += 2;
+            else if(Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))){
+                length += 4;
+                i++;
+            }
+            else length += 3;
+        }
+
+        return length;
+    }
+
+    static void putString(ByteBuffer buffer, String value){
+        if(value.isEmpty()) return;
+
+        // Unpaired surrogates are replaced with '?', which is one byte where
+        // utf8Length counted three, so pad to keep the frame length honest.
+        int expectedEnd = buffer.position() + utf8Length(value);
+
+        CharsetEncoder encoder = ENCODER.get().reset();
+        encoder.encode(CharBuffer.wrap(value), buffer, true);
+        encoder.flush(buffer);
+
+        while(buffer.position() < expectedEnd) buffer.put((byte) ' ');
+    }
+
+    /**
+     * Decodes the rest of the buffer as a UTF-8 string, without consuming it.
+     */
+    static String getString(ByteBuffer body){
+        if(body.hasArray()){
+            return new String(body.array(), body.arrayOffset() + body.position(), body.remaining(), StandardCharsets.UTF_8);
+        }
+
+        return StandardCharsets.UTF_8.decode(body.duplicate()).toString();
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates the bodies of v4 frames, keeping one compression context across
+ * every frame it's given.
+ *
+ * Because the context carries over, a frame can refer back to anything in
+ * the frames before it - the "[username] " prefixes and announcements that
+ * make up most of a busy room's traffic end up costing a few bytes each.
+ * Each body is finished with a sync flush, so the receiver can inflate it
+ * as soon as it arrives; the flush's fixed 00 00 FF FF trailer is left off
+ * and put back by {@link ChungusFrameInflater}.
+ *
+ * The receiver has to inflate every deflated frame, in order, to keep its
+ * context in step. So there's one deflater per connection, used by the
+ * connection's writer after frames leave the outbound queue (so frames the
+ * queue drops never reach it), and one per room, whose frames go to every
+ * member the room knows will never drop one (see
+ * {@link ChungusRoom#broadcast(ChungusSharedFrame)}). The room's context is
+ * reset - and the frame marked FLAG_RESET - whenever a member needs to
+ * start in step with it.
+ *
+ * A deflater is not thread safe, and holds a couple of hundred kilobytes
+ * of native memory until it's ended.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusFrameDeflater {
+
+    public static final String ENABLED_PROPERTY = "chunguschat.server.compression";
+    public static final String LEVEL_PROPERTY = "chunguschat.compressionLevel";
+
+    /**
+     * Whether the server agrees to compression when a client asks for it
+     * (default true).
+     */
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+    static final int LEVEL = Integer.getInteger(LEVEL_PROPERTY, Deflater.DEFAULT_COMPRESSION);
+
+    // What every sync flush ends with.
+    static final byte[] SYNC_TRAILER = { 0, 0, (byte) 0xFF, (byte) 0xFF };
+
+    private final Deflater deflater;
+    private byte[] input;
+    private byte[] output;
+    private boolean reset;
+
+    ChungusFrameDeflater(){
+        // Raw deflate: the frame header already says how long the body is.
+        this.deflater = new Deflater(LEVEL, true);
+        this.input = new byte[256];
+        this.output = new byte[256];
+    }
+
+    /**
+     * Starts a fresh context. The next frame is marked FLAG_RESET so the
+     * receiver resets too.
+     */
+    void reset(){
+        deflater.reset();
+        reset = true;
+    }
+
+    /**
+     * Returns a new frame with the same type as the given one and its body
+     * deflated, without consuming the given frame. Empty frames are
+     * returned as they are.
+     *
+     * @param flags extra flags to mark the frame with, e.g. FLAG_SHARED.
+     */
+    ByteBuffer deflate(ByteBuffer frame, int flags){
+        int start = frame.position();
+        int length = frame.getInt(start + 2);
+        if(length == 0) return frame;
+
+        if(input.length < length) input = new byte[Math.max(length, input.length * 2)];
+        ByteBuffer body = frame.duplicate();
+        body.position(start + ChungusFrameCodec.HEADER_LENGTH);
+        body.get(input, 0, length);
+
+        deflater.setInput(input, 0, length);
+
+        int deflated = 0;
+        while(true){
+            if(output.length - deflated < 64) output = Arrays.copyOf(output, output.length * 2);
+
+            int written = deflater.deflate(output, deflated, output.length - deflated, Deflater.SYNC_FLUSH);
+            deflated += written;
+
+            // A sync flush that fills the buffer may have more to give.
+            if(deflated < output.length) break;
+        }
+
+        // Every sync flush ends with the same four bytes, so they don't
+        // need sending.
+        deflated -= SYNC_TRAILER.length;
+
+        flags |= frame.get(start + 1) & 0xFF | ChungusFrameCodec.FLAG_DEFLATED;
+        if(reset) flags |= ChungusFrameCodec.FLAG_RESET;
+        reset = false;
+
+        ByteBuffer compressed = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + deflated);
+        ChungusFrameCodec.putHeader(compressed, frame.get(start), flags, deflated);
+        compressed.put(output, 0, deflated);
+        compressed.flip();
+        return compressed;
+    }
+
+    static boolean isDeflated(ByteBuffer frame){
+        return (frame.get(frame.position() + 1) & ChungusFrameCodec.FLAG_DEFLATED) != 0;
+    }
+
+    /**
+     * Frees the deflater's native memory. It can't be used afterwards.
+     */
+    void end(){
+        deflater.end();
+    }
+
+}
@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates frames deflated by a {@link ChungusFrameDeflater}, keeping the
+ * connection's context and the room's shared context apart.
+ *
+ * Frames have to be given to it in the order they arrived. Frames that
+ * aren't deflated are passed through untouched.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusFrameInflater {
+
+    private final Inflater own;
+    private final Inflater shared;
+    private byte[] input;
+    private byte[] output;
+
+    ChungusFrameInflater(){
+        this.own = new Inflater(true);
+        this.shared = new Inflater(true);
+        this.input = new byte[256];
+        this.output = new byte[256];
+    }
+
+    /**
+     * Returns the packet with its body inflated, or the packet itself if it
+     * wasn't deflated. The inflated packet has its own copy of the frame.
+     */
+    ChungusPacket inflate(ChungusPacket packet) throws ProtocolException {
+        if(!packet.isFramed() || (packet.flags & ChungusFrameCodec.FLAG_DEFLATED) == 0) return packet;
+
+        Inflater inflater = (packet.flags & ChungusFrameCodec.FLAG_SHARED) != 0 ? shared : own;
+        if((packet.flags & ChungusFrameCodec.FLAG_RESET) != 0) inflater.reset();
+
+        ByteBuffer body = packet.body();
+        int length = body.remaining() + ChungusFrameDeflater.SYNC_TRAILER.length;
+
+        if(input.length < length) input = new byte[Math.max(length, input.length * 2)];
+        body.get(input, 0, body.remaining());
+        System.arraycopy(ChungusFrameDeflater.SYNC_TRAILER, 0, input, length - ChungusFrameDeflater.SYNC_TRAILER.length,
+                ChungusFrameDeflater.SYNC_TRAILER.length);
+
+        inflater.setInput(input, 0, length);
+
+        int inflated = 0;
+        try {
+            while(true){
+                if(inflated == output.length){
+                    if(output.length >= ChungusFrameCodec.MAX_BODY_LENGTH){
+                        throw new ProtocolException("Inflated frame exceeds the maximum of " + ChungusFrameCodec.MAX_BODY_LENGTH);
+                    }
+                    output = Arrays.copyOf(output, (int) Math.min(output.length * 2L, ChungusFrameCodec.MAX_BODY_LENGTH));
+                }
+
+                int read = inflater.inflate(output, inflated, output.length - inflated);
+                inflated += read;
+
+                if(read == 0 && inflater.needsInput()) break;
+                if(inflater.finished() || inflater.needsDictionary()){
+                    throw new ProtocolException("Deflated frame isn't part of a sync-flushed stream");
+                }
+            }
+        }catch(DataFormatException ex){
+            throw new ProtocolException("Couldn't inflate frame: " + ex.getMessage());
+        }
+
+        int flags = packet.flags & ~(ChungusFrameCodec.FLAG_DEFLATED | ChungusFrameCodec.FLAG_SHARED | ChungusFrameCodec.FLAG_RESET);
+
+        ByteBuffer frame = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + inflated);
+        ChungusFrameCodec.putHeader(frame, packet.rawPacketId, flags, inflated);
+        frame.put(output, 0, inflated);
+        frame.flip();
+
+        return ChungusPacket.framed(packet.rawPacketId, flags, frame);
+    }
+
+    /**
+     * Frees the inflaters' native memory. It can't be used afterwards.
+     */
+    void end(){
+        own.end();
+        shared.end();
+    }
+
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides the order a client's frames go out in: chat and control frames
+ * always go ahead of bulk ones, such as the chunks of an upload.
+ *
+ * Frames are still written by whichever thread sends them, as soon as the
+ * stream is free. A bulk frame is only started while no other frame is
+ * waiting, and each one is a single chunk, so a chat message sent part way
+ * through an upload waits for at most the one chunk already being written
+ * (plus whatever of the upload is already in the socket's send buffer).
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusFrameScheduler {
+
+    private final OutputStream out;
+
+    private final ReentrantLock lock;
+    // Signalled once there are no control frames waiting.
+    private final Condition idle;
+    // Control frames waiting for (or holding) the lock.
+    private final AtomicInteger waiting;
+
+    ChungusFrameScheduler(OutputStream out){
+        this.out = out;
+        this.lock = new ReentrantLock();
+        this.idle = lock.newCondition();
+        this.waiting = new AtomicInteger();
+    }
+
+    /**
+     * Writes (and flushes) control frames, ahead of any bulk frames that
+     * are waiting.
+     */
+    void send(ByteBuffer... frames) throws IOException {
+        waiting.incrementAndGet();
+        lock.lock();
+        try {
+            for(ByteBuffer frame : frames) write(frame);
+            out.flush();
+        }finally{
+            if(waiting.decrementAndGet() == 0) idle.signalAll();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes (and flushes) a bulk frame once no control frames are waiting.
+     * Blocks for as long as they keep coming.
+     */
+    void sendBulk(ByteBuffer frame) throws IOException {
+        try {
+            lock.lockInterruptibly();
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        try {
+            while(waiting.get() > 0) idle.awaitUninterruptibly();
+
+            write(frame);
+            out.flush();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values (typically nanoseconds) that any
+ * number of threads can record into without locking.
+ *
+ * Values are counted in buckets whose width grows with the value: below 16
+ * every value has its own bucket, and above that each power of two is split
+ * into 16 buckets, so a percentile is never more than about 6% out,
+ * whatever the range. Recording is one atomic increment (plus the running
+ * total and maximum).
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong total;
+    private final AtomicLong max;
+
+    ChungusHistogram(){
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.total = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    void record(long value){
+        if(value < 0) value = 0;
+
+        counts.incrementAndGet(bucketFor(value));
+        total.addAndGet(value);
+
+        long currentMax;
+        while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)){
+            // Lost to another thread; try again against its maximum.
+        }
+    }
+
+    /**
+     * Copies the counts so far. Values recorded while the copy is being made
+     * may or may not be included.
+     */
+    Snapshot snapshot(){
+        long[] copy = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) copy[i] = counts.get(i);
+
+        return new Snapshot(copy, total.get(), max.get());
+    }
+
+    private static int bucketFor(long value){
+        if(value < SUB_BUCKETS) return (int) value;
+
+        // The top SUB_BUCKET_BITS + 1 bits pick the bucket within its power
+        // of two.
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS));
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    // The largest value that falls into the bucket.
+    private static long highestIn(int bucket){
+        int block = bucket / SUB_BUCKETS;
+        if(block == 0) return bucket;
+
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (block - 1);
+        return lowest + (1L << (block - 1)) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one point in time.
+     */
+    static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        private Snapshot(long[] counts, long total, long max){
+            long count = 0;
+            for(long bucket : counts) count += bucket;
+
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * The values recorded between an earlier snapshot and this one. The
+         * maximum is still the maximum of all time.
+         */
+        Snapshot since(Snapshot earlier){
+            long[] difference = new long[counts.length];
+            for(int i = 0; i < counts.length; i++) difference[i] = counts[i] - earlier.counts[i];
+
+            return new Snapshot(difference, total - earlier.total, max);
+        }
+
+        long getCount(){
+            return count;
+        }
+
+        long getMax(){
+            return max;
+        }
+
+        double getMean(){
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * The value below which the given fraction (e.g. 0.99) of the
+         * recorded values fall, rounded up to the end of its bucket.
+         */
+        long getPercentile(double fraction){
+            if(count == 0) return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+
+            for(int i = 0; i < counts.length; i++){
+                seen += counts[i];
+                if(seen >= rank) return Math.min(highestIn(i), max);
+            }
+
+            return max;
+        }
+
+    }
+
+}
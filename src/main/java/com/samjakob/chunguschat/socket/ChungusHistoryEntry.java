@@ -0,0 +1,63 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+/**
+ * A chat message from a server's history, as returned by
+ * {@link ChungusSocket#requestHistory(boolean, long, int)}.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public final class ChungusHistoryEntry {
+
+    private final long sequence;
+    private final long timestamp;
+    private final String message;
+
+    ChungusHistoryEntry(long sequence, long timestamp, String message){
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+        this.message = message;
+    }
+
+    /**
+     * The message's position in the server's log. Pass this back to page
+     * through the history from here.
+     */
+    public long getSequence(){
+        return this.sequence;
+    }
+
+    /**
+     * When the server received the message, in milliseconds since the epoch.
+     */
+    public long getTimestamp(){
+        return this.timestamp;
+    }
+
+    public String getMessage(){
+        return this.message;
+    }
+
+}
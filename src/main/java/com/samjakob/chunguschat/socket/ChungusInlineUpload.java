@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a file over a client's chat connection, rather than opening
+ * another connection to the file transfer port.
+ *
+ * The file is sent as chunk frames (see {@link ChungusInlineUploads}),
+ * which the connection only writes while it has nothing else to send, so
+ * chatting carries on as normal while a big file goes up. Smaller chunks
+ * mean chat waits less behind them; they're set with
+ * {@code chunguschat.ft.inlineChunkSize} (default 64 KiB).
+ *
+ * Like uploads on the file transfer port, an upload that's cut off can be
+ * picked up where it left off: uploading the same file again, once
+ * reconnected, only sends the chunks the server doesn't have.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusInlineUpload implements Runnable {
+    
+    /**
+     * Set to true for the client to upload files over its chat connection.
+     */
+    public static final String PROPERTY = "chunguschat.client.inlineTransfers";
+    
+    static final int CHUNK_SIZE = Integer.getInteger("chunguschat.ft.inlineChunkSize", 64 << 10);
+    
+    // How many times chunks that fail the server's checks are resent.
+    private static final int MAX_ROUNDS = 3;
+    
+    private final ChungusSocket socket;
+    private final File file;
+    private final long fileSize;
+    
+    public ChungusInlineUpload(ChungusSocket socket, File file, long fileSize){
+        this.socket = socket;
+        this.file = file;
+        this.fileSize = fileSize;
+    }
+    
+    /**
+     * Whether files should be uploaded over the chat connection, as set
+     * with the chunguschat.client.inlineTransfers system property.
+     */
+    public static boolean isEnabled(){
+        return Boolean.getBoolean(PROPERTY);
+    }
+    
+    /**
+     * Starts the upload in the background, on a virtual thread if they were
+     * requested with the chunguschat.virtualThreads system property.
+     */
+    public Thread start(){
+        return ChungusThreads.start("ChungusInlineUpload", this, ChungusThreads.virtualThreadsRequested());
+    }
+    
+    @Override
+    public void run(){
+        try {
+            transfer();
+        }catch(IOException ex){
+            ex.printStackTrace();
+        }
+    }
+    
+    /**
+     * Sends the file, returning once the server has all of it and has
+     * checked it.
+     */
+    public void transfer() throws IOException {
+        int chunkSize = ChungusChunkedTransfer.chunkSizeFor(fileSize, CHUNK_SIZE, ChungusInlineUploads.MAX_CHUNKS);
+        if(chunkSize > ChungusInlineUploads.MAX_CHUNK_SIZE){
+            throw new ProtocolException(file.getName() + " is too big to upload over the chat connection");
+        }
+        
+        MessageDigest digest = ChungusBlobStore.newDigest();
+        int[] checksums = ChungusChunkedTransfer.checksums(file, fileSize, chunkSize, digest);
+        byte[] contentHash = digest.digest();
+        String transferId = ChungusChunkedTransfer.transferId(socket.getUsername(), file.getName(), fileSize,
+                ChungusBlobStore.toHex(contentHash), chunkSize, checksums);
+        
+        int id = socket.openUpload();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(64 + 4 * checksums.length);
+            DataOutputStream output = new DataOutputStream(header);
+            output.writeInt(id);
+            output.writeUTF(transferId);
+            output.writeUTF(file.getName());
+            output.writeLong(fileSize);
+            output.write(contentHash);
+            output.writeInt(chunkSize);
+            for(int checksum : checksums) output.writeInt(checksum);
+            
+            ByteBuffer frame = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + header.size());
+            ChungusFrameCodec.putHeader(frame, ChungusProtocol.FT_UPLOAD, 0, header.size());
+            frame.put(header.toByteArray());
+            frame.flip();
+            socket.send(frame);
+            
+            // Everything for a new upload, whatever didn't make it last
+            // time, or one chunk if the server already has the file.
+            List<int[]> missing = awaitStatus(id, checksums.length);
+            
+            ByteBuffer chunk = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + ChungusInlineUploads.CHUNK_HEADER_LENGTH + chunkSize);
+            for(int round = 0; !missing.isEmpty(); round++){
+                if(round == MAX_ROUNDS){
+                    throw new ProtocolException("Upload of " + file.getName() + " keeps failing the server's checks; has it changed?");
+                }
+                
+                for(int[] range : missing){
+                    for(int index = range[0]; index < range[0] + range[1]; index++){
+                        sendChunk(channel, chunk, id, index, chunkSize);
+                    }
+                }
+                
+                socket.send(ChungusFrameCodec.encode(ChungusProtocol.FT_UPLOAD_END, id, false));
+                missing = awaitStatus(id, checksums.length);
+            }
+        }finally{
+            socket.closeUpload(id);
+        }
+    }
+    
+    private void sendChunk(FileChannel channel, ByteBuffer frame, int id, int index, int chunkSize) throws IOException {
+        int length = ChungusChunkedTransfer.chunkLength(index, fileSize, chunkSize);
+        
+        frame.clear();
+        ChungusFrameCodec.putHeader(frame, ChungusProtocol.FT_CHUNK, 0, ChungusInlineUploads.CHUNK_HEADER_LENGTH + length);
+        frame.putInt(id);
+        frame.putInt(index);
+        
+        long offset = ChungusChunkedTransfer.chunkOffset(index, chunkSize);
+        int start = frame.position();
+        frame.limit(start + length);
+        while(frame.hasRemaining()){
+            if(channel.read(frame, offset + frame.position() - start) < 0){
+                throw new IOException(file.getName() + " is shorter than the " + fileSize + " bytes offered");
+            }
+        }
+        frame.flip();
+        
+        socket.sendBulk(frame);
+    }
+    
+    /**
+     * Waits for the server's next reply about the upload.
+     *
+     * @return the ranges it still needs.
+     */
+    private List<int[]> awaitStatus(int id, int chunkCount) throws IOException {
+        BlockingQueue<ByteBuffer> replies = socket.getUploadStatus(id);
+        ByteBuffer status;
+        
+        try {
+            // Checking a big file can take the server a while, so only
+            // give up if the connection does.
+            while((status = replies.poll(1, TimeUnit.SECONDS)) == null){
+                if(!socket.isConnected()) throw new IOException("Disconnected while uploading " + file.getName());
+            }
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while uploading " + file.getName());
+        }
+        
+        status.position(4);
+        if(status.get() != ChungusChunkedTransfer.STATUS_OK){
+            throw new ProtocolException("Upload of " + file.getName() + " was rejected: " + ChungusFrameCodec.getString(status));
+        }
+        
+        return ChungusChunkedTransfer.readRanges(new DataInputStream(new ByteArrayInputStream(
+                status.array(), status.arrayOffset() + status.position(), status.remaining())), chunkCount);
+    }
+    
+}
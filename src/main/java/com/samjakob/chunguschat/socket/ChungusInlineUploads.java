@@ -0,0 +1,444 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a client is sending over its chat connection, rather than over
+ * the file transfer port.
+ *
+ * These are the same resumable, chunked uploads as in
+ * {@link ChungusChunkedTransfer}, but each message is a frame of its own,
+ * so chunks can be sent in between the client's other packets. Every frame
+ * starts with an upload ID the client picks, so it can have several going
+ * at once.
+ *
+ * <pre>
+ * Uploader                              Server
+ * --------                              ------
+ * FT_UPLOAD         int    upload ID
+ *                   UTF    transfer ID
+ *                   UTF    file name
+ *                   long   file length
+ *                   byte[] SHA-256 of the file
+ *                   int    chunk size
+ *                   int[]  chunk checksums
+ *                                       FT_UPLOAD_STATUS  int  upload ID
+ *                                                         byte status
+ *                                                         ranges the server
+ *                                                         still needs (or a
+ *                                                         reason it was
+ *                                                         rejected)
+ * for each chunk it needs:
+ * FT_CHUNK          int    upload ID
+ *                   int    chunk index
+ *                   byte[] the chunk
+ * FT_UPLOAD_END     int    upload ID
+ *                                       FT_UPLOAD_STATUS  the ranges it still
+ *                                                         needs
+ * </pre>
+ *
+ * The upload is made as the connection's user, so the username isn't sent.
+ * A file the store already has only needs the one chunk that
+ * {@link ChungusDedupProof} asks for.
+ * Chunks have to fit in a frame, and aren't compressed; a connection that
+ * agreed to compression only compresses what the server sends.
+ *
+ * Chunks are checked and written to disk by a small pool of writers
+ * shared by every connection, never on a connection's reader: with the
+ * reactor engine that's an event loop, which would hold up every other
+ * client on it. Each connection's upload frames are still handled in the
+ * order they arrived, as is checking the whole file once it's in. A client
+ * that gets more than MAX_PENDING_BYTES ahead of the writers isn't read
+ * from until they catch up. Uploads also count against the server's
+ * {@link ChungusBandwidth} limits; a client over them isn't read from
+ * until it's back under. A connection can only have MAX_UPLOADS going at
+ * once.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusInlineUploads {
+
+    // Room for a chunk frame's upload ID and chunk index.
+    static final int CHUNK_HEADER_LENGTH = 8;
+    // The largest chunk that fits in a frame.
+    static final int MAX_CHUNK_SIZE = ChungusFrameCodec.MAX_BODY_LENGTH - CHUNK_HEADER_LENGTH;
+    // The most chunks whose checksums fit in an FT_UPLOAD frame, leaving
+    // room for the rest of it.
+    static final int MAX_CHUNKS = (ChungusFrameCodec.MAX_BODY_LENGTH - (4 << 10)) / 4;
+
+    // How much of a client's upload can be waiting for the writers before
+    // the client isn't read from.
+    static final long MAX_PENDING_BYTES = 4L << 20;
+
+    /**
+     * How many threads write inline uploads to disk, set with
+     * {@code chunguschat.server.uploadThreads} (by default one per core, and
+     * at least two).
+     */
+    static final int WRITER_THREADS = Integer.getInteger("chunguschat.server.uploadThreads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * How many uploads a connection can have going at once, set with
+     * {@code chunguschat.server.maxInlineUploads} (default 4). Each one holds
+     * its partial file open and its checksums in memory until it's finished
+     * or the client disconnects; any more are rejected.
+     */
+    static final int MAX_UPLOADS = Math.max(1, Integer.getInteger("chunguschat.server.maxInlineUploads", 4));
+
+    private static final ExecutorService WRITERS = newWriters();
+
+    private final ChungusConnection connection;
+    private final ChungusBlobStore store;
+
+    // Uploads in progress, by the ID the client gave them.
+    private final ConcurrentMap<Integer, ChungusUpload> uploads;
+    // Uploads of files the store already has, waiting for their proof.
+    private final ConcurrentMap<Integer, ChungusDedupProof> proofs;
+    // The client's share of the bandwidth, once it starts uploading.
+    private volatile ChungusBandwidth.Transfer transfer;
+
+    // The last of this connection's frames handed to the writers, which
+    // each frame waits for so they're handled in order.
+    private volatile CompletableFuture<Void> tail;
+    // Bytes of chunks handed to the writers and not yet written.
+    private final AtomicLong pending;
+
+    ChungusInlineUploads(ChungusConnection connection, ChungusBlobStore store){
+        this.connection = connection;
+        this.store = store;
+        this.uploads = new ConcurrentHashMap<>();
+        this.proofs = new ConcurrentHashMap<>();
+        this.tail = CompletableFuture.completedFuture(null);
+        this.pending = new AtomicLong();
+    }
+
+    private static ExecutorService newWriters(){
+        AtomicInteger count = new AtomicInteger();
+
+        ThreadPoolExecutor writers = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "ChungusInlineUploads-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        writers.allowCoreThreadTimeOut(true);
+        return writers;
+    }
+
+    /**
+     * Handles an FT_UPLOAD, FT_CHUNK or FT_UPLOAD_END frame's body. Called
+     * on the connection's reader.
+     */
+    void handle(int packetId, ByteBuffer body){
+        if(body.remaining() < 4) return;
+
+        // The body is only valid until the next read, and is handled by a
+        // writer some time after that.
+        ByteBuffer frame = ByteBuffer.allocate(body.remaining());
+        frame.put(body.duplicate());
+        frame.flip();
+
+        switch(packetId){
+            case ChungusProtocol.FT_UPLOAD:
+                submit(() -> begin(frame));
+                break;
+
+            case ChungusProtocol.FT_CHUNK:
+                int length = frame.remaining();
+                pending.addAndGet(length);
+                submit(() -> {
+                    try {
+                        chunk(frame);
+                    }finally{
+                        pending.addAndGet(-length);
+                    }
+                });
+
+                received(length);
+                // Too far ahead of the writers, the client's next packets
+                // wait for them to catch up.
+                if(pending.get() > MAX_PENDING_BYTES) connection.holdReads(tail);
+                break;
+
+            case ChungusProtocol.FT_UPLOAD_END:
+                int id = frame.getInt(0);
+                submit(() -> end(id));
+                break;
+        }
+    }
+
+    /**
+     * Hands a task to the writers, to run once this connection's previous
+     * tasks have.
+     */
+    private synchronized void submit(Runnable task){
+        tail = tail.thenRunAsync(() -> {
+            try {
+                task.run();
+            }catch(RuntimeException ex){
+                ex.printStackTrace();
+            }
+        }, WRITERS);
+    }
+
+    /**
+     * Counts a chunk against the client's share of the bandwidth. Called on
+     * the reader, as it may hold up reading.
+     */
+    private void received(int length){
+        ChungusSocketServer.metrics.transferIn(length);
+
+        // Over its share of the bandwidth, the client's next packets wait.
+        if(transfer == null) transfer = ChungusSocketServer.bandwidth.open(ChungusBandwidth.clientOf(connection.getRemoteAddress()));
+        long wait = transfer.reserve(length);
+        if(wait > 0) connection.holdReads(wait);
+    }
+
+    private void begin(ByteBuffer body){
+        byte[] header = new byte[body.remaining()];
+        body.duplicate().get(header);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(header));
+
+        int id = 0;
+        try {
+            id = input.readInt();
+            String transferId = input.readUTF();
+            // Only the name is kept; it's just what the file is offered as.
+            String fileName = new File(input.readUTF()).getName();
+            long fileLength = input.readLong();
+            byte[] hash = new byte[ChungusBlobStore.HASH_LENGTH];
+            input.readFully(hash);
+            int chunkSize = input.readInt();
+
+            String user = connection.getUsername();
+            String rejection;
+
+            if(store == null) rejection = "This server doesn't take files";
+            else if(user == null) rejection = "Choose a username first";
+            else if(uploads.containsKey(id) || proofs.containsKey(id)) rejection = "Upload " + id + " is already in progress";
+            // Only ever added to here, one frame at a time, so this can't be
+            // raced past.
+            else if(uploads.size() + proofs.size() >= MAX_UPLOADS) rejection = "Too many uploads in progress; finish one first";
+            else if(chunkSize > MAX_CHUNK_SIZE) rejection = "Chunks of " + chunkSize + " bytes don't fit in a frame";
+            else rejection = ChungusChunkedTransfer.checkUpload(transferId, fileName, fileLength, chunkSize);
+
+            if(rejection != null){
+                sendStatus(id, rejection);
+                return;
+            }
+
+            int[] checksums = new int[ChungusChunkedTransfer.chunkCount(fileLength, chunkSize)];
+            for(int i = 0; i < checksums.length; i++) checksums[i] = input.readInt();
+
+            String contentHash = ChungusBlobStore.toHex(hash);
+            File stored = store.get(contentHash);
+            if(stored != null && stored.length() == fileLength){
+                // Already uploaded, by someone, under some name.
+                ChungusDedupProof proof = new ChungusDedupProof(stored, fileName, fileLength, contentHash, chunkSize);
+                sendStatus(id, proof.getMissingRanges());
+
+                if(proof.isProven()) announceStored(user, proof);
+                else proofs.put(id, proof);
+                return;
+            }
+
+            ChungusUpload upload = ChungusFileReceiver.acquire(store, transferId, user, fileName, fileLength, contentHash, chunkSize, checksums);
+            uploads.put(id, upload);
+
+            List<int[]> missing = upload.getMissingRanges();
+            sendStatus(id, missing);
+
+            int missingChunks = 0;
+            for(int[] range : missing) missingChunks += range[1];
+            System.out.println((missingChunks < checksums.length ? "Resuming inline: " : "Downloading inline: ")
+                    + fileName + " (" + fileLength + " bytes, " + missingChunks + " of " + checksums.length + " chunks to go)");
+        }catch(IOException ex){
+            // Cut short, or the upload couldn't be opened.
+            sendStatus(id, "Upload failed: " + ex.getMessage());
+        }
+    }
+
+    private void chunk(ByteBuffer body){
+        if(body.remaining() < CHUNK_HEADER_LENGTH) return;
+
+        int id = body.getInt(body.position());
+        int index = body.getInt(body.position() + 4);
+
+        ByteBuffer chunk = body.duplicate();
+        chunk.position(chunk.position() + CHUNK_HEADER_LENGTH);
+        chunk = chunk.slice();
+
+        ChungusUpload upload = uploads.get(id);
+        if(upload == null){
+            ChungusDedupProof proof = proofs.get(id);
+            // Otherwise sent after the upload was rejected or finished.
+            if(proof != null) prove(proof, index, chunk);
+            return;
+        }
+
+        if(index < 0 || index >= upload.getChunkCount()
+                || chunk.remaining() != ChungusChunkedTransfer.chunkLength(index, upload.fileLength, upload.chunkSize)){
+            System.out.println("Ignoring invalid chunk " + index + " of " + upload.fileName);
+            return;
+        }
+
+        try {
+            // A chunk that doesn't match is left missing, and asked for again
+            // after FT_UPLOAD_END.
+            if(!upload.write(index, chunk)){
+                System.out.println("Chunk " + index + " of " + upload.fileName + " failed its checksum.");
+            }
+        }catch(IOException ex){
+            ex.printStackTrace();
+        }
+    }
+
+    private void prove(ChungusDedupProof proof, int index, ByteBuffer chunk){
+        try {
+            // One that doesn't match is asked for again after FT_UPLOAD_END.
+            if(!proof.check(index, chunk)){
+                System.out.println("Chunk " + index + " of " + proof.fileName + " doesn't match the stored file.");
+            }
+        }catch(IOException ex){
+            ex.printStackTrace();
+        }
+    }
+
+    private void end(int id){
+        ChungusDedupProof proof = proofs.get(id);
+        if(proof != null){
+            sendStatus(id, proof.getMissingRanges());
+            if(proof.isProven() && proofs.remove(id, proof)) announceStored(connection.getUsername(), proof);
+            return;
+        }
+
+        ChungusUpload upload = uploads.get(id);
+
+        if(upload == null){
+            sendStatus(id, "Upload " + id + " isn't in progress");
+            return;
+        }
+
+        finish(id, upload);
+    }
+
+    /**
+     * Checks the upload, if every chunk is in, and tells the client what
+     * it still needs.
+     */
+    private void finish(int id, ChungusUpload upload){
+        try {
+            File file = upload.complete(ByteBuffer.allocateDirect(upload.chunkSize));
+            List<int[]> missing = upload.getMissingRanges();
+            sendStatus(id, missing);
+
+            if(!missing.isEmpty()) return;
+            remove(id, upload);
+
+            // Only announced by whichever call actually finished it.
+            if(file != null){
+                System.out.println("Downloaded inline: " + upload.fileName);
+                ChungusSocketServer.broadcastFile(upload.user, upload.fileName, upload.fileLength, upload.contentHash);
+            }
+        }catch(IOException ex){
+            remove(id, upload);
+            sendStatus(id, "Upload failed: " + ex.getMessage());
+        }
+    }
+
+    private void announceStored(String user, ChungusDedupProof proof){
+        System.out.println("Already stored: " + proof.fileName + " (" + proof.fileLength + " bytes)");
+        ChungusSocketServer.broadcastFile(user, proof.fileName, proof.fileLength, proof.contentHash);
+    }
+
+    /**
+     * Lets go of every upload in progress, when the client disconnects.
+     * What they have so far is kept, to be resumed.
+     */
+    void close(){
+        // Once the writers are done with whatever the client sent last.
+        submit(() -> {
+            for(Map.Entry<Integer, ChungusUpload> entry : uploads.entrySet()){
+                remove(entry.getKey(), entry.getValue());
+            }
+            proofs.clear();
+        });
+
+        ChungusBandwidth.Transfer transfer = this.transfer;
+        if(transfer != null) transfer.close();
+    }
+
+    private void remove(int id, ChungusUpload upload){
+        if(uploads.remove(id, upload)) ChungusFileReceiver.release(store, upload);
+    }
+
+    private void sendStatus(int id, List<int[]> ranges){
+        int length = 4 + 1 + 4 + 8 * ranges.size();
+
+        ByteBuffer frame = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + length);
+        ChungusFrameCodec.putHeader(frame, ChungusProtocol.FT_UPLOAD_STATUS, 0, length);
+        frame.putInt(id);
+        frame.put((byte) ChungusChunkedTransfer.STATUS_OK);
+        frame.putInt(ranges.size());
+        for(int[] range : ranges){
+            frame.putInt(range[0]);
+            frame.putInt(range[1]);
+        }
+        frame.flip();
+
+        connection.send(frame);
+    }
+
+    private void sendStatus(int id, String reason){
+        int length = 4 + 1 + ChungusFrameCodec.utf8Length(reason);
+
+        ByteBuffer frame = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + length);
+        ChungusFrameCodec.putHeader(frame, ChungusProtocol.FT_UPLOAD_STATUS, 0, length);
+        frame.putInt(id);
+        frame.put((byte) ChungusChunkedTransfer.STATUS_REJECTED);
+        ChungusFrameCodec.putString(frame, reason);
+        frame.flip();
+
+        connection.send(frame);
+    }
+
+}
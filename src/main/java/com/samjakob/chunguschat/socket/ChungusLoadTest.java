@@ -0,0 +1,436 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Puts a server under load from simulated clients, over loopback.
+ *
+ * Usage: {@code ChungusLoadTest [clients] [seconds]} (default 1000 clients
+ * for 30 seconds). Each client is a {@link ChungusSocket}, connected to a
+ * server started in the same process (or, if
+ * {@code chunguschat.loadtest.port} is set, to one already running on that
+ * port of this machine). The rest is set with system properties:
+ *
+ * <ul>
+ * <li>{@code chunguschat.loadtest.rate}: chat messages sent per second,
+ * across all clients (default 1000)</li>
+ * <li>{@code chunguschat.loadtest.messageSize}: the length of each message
+ * (default 100)</li>
+ * <li>{@code chunguschat.loadtest.roomSize}: clients per room; 0 keeps
+ * everyone in the lobby (default 50)</li>
+ * <li>{@code chunguschat.loadtest.reconnects}: clients dropped and replaced
+ * each second (default 5)</li>
+ * <li>{@code chunguschat.loadtest.renames}: clients that change their name
+ * each second (default 5)</li>
+ * <li>{@code chunguschat.loadtest.senders}: threads sending chat (default
+ * 4)</li>
+ * <li>{@code chunguschat.loadtest.serverPid}: the process ID of a server
+ * started on its own; on Linux, its resident memory and thread count are
+ * printed once every client has connected, and again at the end</li>
+ * </ul>
+ *
+ * Messages are sent at a fixed rate whether or not the server keeps up, and
+ * each one carries the time it was due to be sent, so the delivery latency
+ * (from then until each client in the room reads it) includes any time it
+ * spent waiting behind a slow send. Throughput and latency are printed
+ * every second, and in total at the end, along with any errors.
+ *
+ * To measure the latency of one quiet conversation, two clients in the
+ * lobby with nothing else going on:
+ *
+ * <pre>
+ * java -Dchunguschat.server.engine=thread_per_client -Dchunguschat.loadtest.rate=10 -Dchunguschat.loadtest.senders=1 \
+ *     -Dchunguschat.loadtest.roomSize=0 -Dchunguschat.loadtest.reconnects=0 -Dchunguschat.loadtest.renames=0 \
+ *     -cp target/classes com.samjakob.chunguschat.socket.ChungusLoadTest 2 30
+ * </pre>
+ *
+ * To compare how much each engine costs per connection, hold idle clients
+ * open against a server in its own process, so that the clients' threads
+ * aren't counted with the server's:
+ *
+ * <pre>
+ * java -Xss512k -cp target/classes com.samjakob.chunguschat.socket.ChungusServerMain --engine reactor --jmx false &amp;
+ * java -Xss512k -Dchunguschat.loadtest.port=42069 -Dchunguschat.loadtest.serverPid=$! \
+ *     -Dchunguschat.loadtest.rate=0 -Dchunguschat.loadtest.reconnects=0 -Dchunguschat.loadtest.renames=0 \
+ *     -cp target/classes com.samjakob.chunguschat.socket.ChungusLoadTest 10000 10
+ * </pre>
+ *
+ * then again with {@code --engine thread_per_client} and
+ * {@code --engine virtual_threads} (on Java 21).
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public final class ChungusLoadTest {
+
+    private static final String HOST = "127.0.0.1";
+
+    private final int clients;
+    private final long durationNanos;
+    private final double rate;
+    private final int messageSize;
+    private final int roomSize;
+    private final double reconnects;
+    private final double renames;
+    private final int senders;
+    private final String serverPid;
+
+    private final int port;
+    // Due times are sent relative to this, since nanoTime can be negative.
+    private final long epoch;
+    private final AtomicReferenceArray<Bot> bots;
+    private final AtomicLong nextName;
+
+    private final AtomicLong sent;
+    private final AtomicLong delivered;
+    private final ChungusHistogram latency;
+
+    private final AtomicLong connectFailures;
+    private final AtomicLong disconnects;
+    private final AtomicLong skipped;
+
+    private volatile boolean running;
+
+    private ChungusLoadTest(int clients, long seconds, int port){
+        this.clients = clients;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(seconds);
+        this.rate = Double.parseDouble(System.getProperty("chunguschat.loadtest.rate", "1000"));
+        this.messageSize = Integer.getInteger("chunguschat.loadtest.messageSize", 100);
+        this.roomSize = Integer.getInteger("chunguschat.loadtest.roomSize", 50);
+        this.reconnects = Double.parseDouble(System.getProperty("chunguschat.loadtest.reconnects", "5"));
+        this.renames = Double.parseDouble(System.getProperty("chunguschat.loadtest.renames", "5"));
+        this.senders = Math.max(1, Integer.getInteger("chunguschat.loadtest.senders", 4));
+        this.serverPid = System.getProperty("chunguschat.loadtest.serverPid");
+
+        this.port = port;
+        this.epoch = System.nanoTime();
+        this.bots = new AtomicReferenceArray<>(clients);
+        this.nextName = new AtomicLong();
+
+        this.sent = new AtomicLong();
+        this.delivered = new AtomicLong();
+        this.latency = new ChungusHistogram();
+
+        this.connectFailures = new AtomicLong();
+        this.disconnects = new AtomicLong();
+        this.skipped = new AtomicLong();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 30;
+
+        Integer port = Integer.getInteger("chunguschat.loadtest.port");
+        if(port == null){
+            // Let the system pick the ports, unless they've been given.
+            if(System.getProperty(ChungusSocketServer.PORT_PROPERTY) == null) System.setProperty(ChungusSocketServer.PORT_PROPERTY, "0");
+            if(System.getProperty(ChungusSocketServer.FT_PORT_PROPERTY) == null) System.setProperty(ChungusSocketServer.FT_PORT_PROPERTY, "0");
+
+            ChungusSocketServer server = new ChungusSocketServer();
+            server.host();
+            port = server.getPort();
+            System.out.println("Started a " + server.getEngine() + " server on port " + port + ".");
+        }
+
+        new ChungusLoadTest(clients, seconds, port).run();
+
+        // The server and the clients' readers aren't daemon threads.
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Connecting " + clients + " clients...");
+        for(int i = 0; i < clients; i++){
+            bots.set(i, connect(i));
+            if((i + 1) % 1000 == 0) System.out.println("  " + (i + 1));
+        }
+        reportServerProcess();
+
+        System.out.printf("Sending %.0f messages/s of %d characters for %d s, in rooms of %s, with %.0f reconnects/s and %.0f renames/s.%n",
+                rate, messageSize, TimeUnit.NANOSECONDS.toSeconds(durationNanos),
+                roomSize > 0 ? String.valueOf(roomSize) : "everyone", reconnects, renames);
+
+        running = true;
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+
+        Thread[] threads = new Thread[senders];
+        for(int i = 0; i < senders; i++){
+            long offset = i;
+            threads[i] = ChungusThreads.start("ChungusLoadTest-sender", () -> send(start, end, offset), false);
+        }
+        Thread churn = ChungusThreads.start("ChungusLoadTest-churn", () -> churn(start, end), false);
+
+        report(start, end);
+
+        running = false;
+        for(Thread thread : threads) thread.join();
+        churn.join();
+
+        // Let whatever is still in flight arrive.
+        Thread.sleep(1000);
+        summarise();
+
+        for(int i = 0; i < clients; i++){
+            Bot bot = bots.get(i);
+            if(bot != null) bot.close();
+        }
+    }
+
+    /*
+     * Load
+     */
+
+    // Sends this thread's share of the chat, each message at its due time.
+    private void send(long start, long end, long offset){
+        if(rate <= 0) return;
+
+        long interval = (long) (senders * 1e9 / rate);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        for(long due = start + offset * interval / senders; due < end && running; due += interval){
+            waitUntil(due);
+
+            Bot bot = bots.get(random.nextInt(clients));
+            if(bot == null) continue;
+
+            bot.send(due);
+            sent.incrementAndGet();
+        }
+    }
+
+    // Replaces and renames clients at random.
+    private void churn(long start, long end){
+        long reconnectInterval = reconnects > 0 ? (long) (1e9 / reconnects) : 0;
+        long renameInterval = renames > 0 ? (long) (1e9 / renames) : 0;
+        // Never due if there aren't any.
+        long nextReconnect = reconnectInterval > 0 ? start + reconnectInterval : Long.MAX_VALUE;
+        long nextRename = renameInterval > 0 ? start + renameInterval : Long.MAX_VALUE;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while(running){
+            long due = Math.min(nextReconnect, nextRename);
+            if(due >= end) return;
+            waitUntil(due);
+
+            int slot = random.nextInt(clients);
+            Bot bot = bots.get(slot);
+
+            if(due == nextReconnect){
+                nextReconnect += reconnectInterval;
+
+                bots.set(slot, connect(slot));
+                if(bot != null) bot.close();
+            }else{
+                nextRename += renameInterval;
+                if(bot != null) bot.rename("bot" + nextName.incrementAndGet());
+            }
+        }
+    }
+
+    private Bot connect(int slot){
+        Bot bot = new Bot("bot" + nextName.incrementAndGet());
+        bot.socket.connect(HOST, port, bot.username);
+
+        if(!bot.socket.isConnected()){
+            connectFailures.incrementAndGet();
+            return null;
+        }
+
+        if(roomSize > 0) bot.socket.joinRoom("load" + slot / roomSize);
+        return bot;
+    }
+
+    private static void waitUntil(long due){
+        long wait;
+        while((wait = due - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+    }
+
+    /*
+     * Results
+     */
+
+    private void report(long start, long end) throws InterruptedException {
+        long lastSent = 0;
+        long lastDelivered = 0;
+        ChungusHistogram.Snapshot last = latency.snapshot();
+
+        for(long tick = start + TimeUnit.SECONDS.toNanos(1); tick <= end; tick += TimeUnit.SECONDS.toNanos(1)){
+            waitUntil(tick);
+
+            long sentNow = sent.get();
+            long deliveredNow = delivered.get();
+            ChungusHistogram.Snapshot now = latency.snapshot();
+            ChungusHistogram.Snapshot second = now.since(last);
+
+            System.out.printf("%4ds  sent %7d/s  delivered %9d/s  p50 %s  p99 %s  p999 %s  errors %d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(tick - start), sentNow - lastSent, deliveredNow - lastDelivered,
+                    millis(second.getPercentile(0.5)), millis(second.getPercentile(0.99)), millis(second.getPercentile(0.999)),
+                    connectFailures.get() + disconnects.get() + skipped.get());
+
+            lastSent = sentNow;
+            lastDelivered = deliveredNow;
+            last = now;
+        }
+    }
+
+    private void summarise(){
+        double seconds = durationNanos / 1e9;
+        ChungusHistogram.Snapshot total = latency.snapshot();
+
+        System.out.println();
+        System.out.printf("Sent %d messages (%.0f/s); %d deliveries (%.0f/s).%n",
+                sent.get(), sent.get() / seconds, delivered.get(), delivered.get() / seconds);
+        System.out.printf("Delivery latency: mean %s  p50 %s  p99 %s  p999 %s  max %s%n",
+                millis((long) total.getMean()), millis(total.getPercentile(0.5)), millis(total.getPercentile(0.99)),
+                millis(total.getPercentile(0.999)), millis(total.getMax()));
+        System.out.println("Errors: " + connectFailures.get() + " failed connections, "
+                + disconnects.get() + " unexpected disconnects, "
+                + skipped.get() + " messages skipped by the server.");
+        reportServerProcess();
+
+        if(Integer.getInteger("chunguschat.loadtest.port") == null){
+            System.out.println("Server: " + ChungusSocketServer.getDroppedFrames() + " frames dropped, "
+                    + ChungusSocketServer.getSlowConsumerDisconnects() + " slow clients disconnected.");
+        }
+    }
+
+    // Prints the separate server process's resident memory and threads,
+    // from /proc (so only on Linux).
+    private void reportServerProcess(){
+        if(serverPid == null) return;
+
+        String rss = "?";
+        String threads = "?";
+        try(BufferedReader in = Files.newBufferedReader(Paths.get("/proc", serverPid, "status"))){
+            String line;
+            while((line = in.readLine()) != null){
+                if(line.startsWith("VmRSS:")) rss = line.substring("VmRSS:".length()).trim();
+                else if(line.startsWith("Threads:")) threads = line.substring("Threads:".length()).trim();
+            }
+        }catch(IOException ex){
+            System.out.println("Couldn't read the server process's status: " + ex);
+            return;
+        }
+
+        System.out.println("Server process " + serverPid + ": RSS " + rss + ", " + threads + " threads.");
+    }
+
+    private static String millis(long nanos){
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    /**
+     * One simulated client connection.
+     */
+    private final class Bot {
+
+        final ChungusSocket socket;
+        volatile String username;
+        // Set before the load test closes the connection itself.
+        private volatile boolean closing;
+
+        Bot(String username){
+            this.username = username;
+            this.socket = new ChungusSocket(
+                    this::received,
+                    (command, data) -> {},
+                    this::disconnected,
+                    (property, data) -> {},
+                    (fileName, fileSize, contentHash) -> {}
+            );
+        }
+
+        void send(long due){
+            StringBuilder message = new StringBuilder(messageSize + 32);
+            message.append('[').append(username).append("] ").append(due - epoch).append(' ');
+            while(message.length() < messageSize) message.append('x');
+
+            socket.sendChatMessage(message.toString());
+        }
+
+        void rename(String newUsername){
+            String oldUsername = username;
+            username = newUsername;
+            socket.changeUsername(oldUsername, newUsername);
+        }
+
+        void close(){
+            closing = true;
+            socket.close();
+        }
+
+        private void received(String message){
+            long now = System.nanoTime();
+
+            if(message.startsWith("[SYSTEM] ")){
+                int end = message.indexOf(" messages were skipped");
+                if(end > 0) skipped.addAndGet(parseLong(message, "[SYSTEM] ".length(), end));
+                return;
+            }
+
+            // "[username] <due time> ...", as sent by send.
+            int start = message.indexOf("] ");
+            if(start < 0) return;
+            start += 2;
+
+            int end = message.indexOf(' ', start);
+            long due = parseLong(message, start, end < 0 ? message.length() : end);
+            if(due < 0) return;
+
+            delivered.incrementAndGet();
+            latency.record(now - epoch - due);
+        }
+
+        private void disconnected(){
+            if(!closing && running) disconnects.incrementAndGet();
+        }
+
+    }
+
+    // Parses the digits between start and end, or returns -1 if there's
+    // anything else there.
+    private static long parseLong(String value, int start, int end){
+        if(start >= end) return -1;
+
+        long result = 0;
+        for(int i = start; i < end; i++){
+            char c = value.charAt(i);
+            if(c < '0' || c > '9') return -1;
+            result = result * 10 + (c - '0');
+        }
+
+        return result;
+    }
+
+}
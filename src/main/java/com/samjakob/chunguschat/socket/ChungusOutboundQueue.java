@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of frames waiting to be written to one client.
+ *
+ * Any thread may offer frames; only the connection's writer takes them. A
+ * frame is removed from the queue before it is written, so a frame that is
+ * part way onto the wire can never be dropped by the slow consumer policy.
+ *
+ * Only frames marked as droppable when they're offered (chat messages) are
+ * ever dropped. Everything else, like presence events and replies to the
+ * client's own requests, has to arrive for the client to stay in step, so
+ * a client whose queue fills up with those is disconnected whatever the
+ * policy.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusOutboundQueue {
+
+    private final ChungusConnection owner;
+    private final ArrayDeque<Queued> frames;
+    private final int capacity;
+    private final ChungusSlowConsumerPolicy policy;
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+
+    // Frames dropped since the client was last told about it (COALESCE only).
+    private int skipped;
+    private boolean closed;
+
+    private final AtomicLong dropped;
+    private volatile int depth;
+
+    ChungusOutboundQueue(ChungusConnection owner, int capacity, ChungusSlowConsumerPolicy policy){
+        this.owner = owner;
+        this.frames = new ArrayDeque<>();
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Queues a frame for the writer that must not be dropped.
+     *
+     * @return false if the queue was full and the client should be
+     * disconnected.
+     */
+    boolean offer(ByteBuffer frame){
+        return offer(frame, false);
+    }
+
+    /**
+     * Queues a frame for the writer.
+     *
+     * @param droppable whether the slow consumer policy may drop the frame
+     * rather than write it.
+     * @return false if the queue was full and the client should be
+     * disconnected.
+     */
+    boolean offer(ByteBuffer frame, boolean droppable){
+        lock.lock();
+        try {
+            if(closed) return true;
+
+            if(frames.size() >= capacity){
+                if(policy == ChungusSlowConsumerPolicy.DISCONNECT) return false;
+
+                if(!dropOldest()){
+                    // Nothing queued can go. The new frame can if it's
+                    // droppable itself; otherwise the client can't be kept
+                    // in step.
+                    if(!droppable) return false;
+
+                    drop();
+                    return true;
+                }
+            }
+
+            frames.add(new Queued(frame, droppable));
+            depth = frames.size();
+            notEmpty.signal();
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next frame without blocking, or returns null if there is
+     * none.
+     */
+    ByteBuffer poll(){
+        lock.lock();
+        try {
+            return next();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame. Returns null only once the queue has been
+     * closed and fully drained.
+     */
+    ByteBuffer take() throws InterruptedException {
+        ByteBuffer frame;
+        while((frame = poll(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) == null){
+            if(isClosed() && isEmpty()) return null;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Waits up to the given time for a frame. Returns null if none arrived,
+     * or if the queue has been closed and fully drained.
+     */
+    ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long remaining = unit.toNanos(timeout);
+
+        lock.lock();
+        try {
+            while(frames.isEmpty() && skipped == 0 && !closed && remaining > 0){
+                remaining = notEmpty.awaitNanos(remaining);
+            }
+
+            return next();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting frames. Frames already queued are still handed out so
+     * that a final message can be flushed before the socket is closed.
+     */
+    void close(){
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    boolean isClosed(){
+        lock.lock();
+        try {
+            return closed;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty(){
+        return depth == 0;
+    }
+
+    int getDepth(){
+        return depth;
+    }
+
+    long getDropped(){
+        return dropped.get();
+    }
+
+    /**
+     * Whether a packet can be dropped if the client falls behind. Only chat
+     * messages (announcements are sent as chat messages too) can: a client
+     * that misses one just has a gap in its scrollback.
+     */
+    static boolean isDroppable(int packetId){
+        return packetId == ChungusProtocol.CHAT_MESSAGE;
+    }
+
+    /**
+     * Whether frames offered to the queue can ever be dropped rather than
+     * written.
+     */
+    boolean dropsFrames(){
+        return policy != ChungusSlowConsumerPolicy.DISCONNECT;
+    }
+
+    // Removes the oldest droppable frame, if there is one.
+    private boolean dropOldest(){
+        Iterator<Queued> iterator = frames.iterator();
+        while(iterator.hasNext()){
+            if(!iterator.next().droppable) continue;
+
+            iterator.remove();
+            drop();
+            return true;
+        }
+
+        return false;
+    }
+
+    private void drop(){
+        dropped.incrementAndGet();
+        if(policy == ChungusSlowConsumerPolicy.COALESCE) skipped++;
+    }
+
+    private ByteBuffer next(){
+        Queued queued = frames.poll();
+        ByteBuffer frame = queued != null ? queued.frame : null;
+
+        if(frame == null && skipped > 0){
+            // The client has caught up, so tell it what it missed.
+            int count = skipped;
+            skipped = 0;
+
+            frame = owner.encode(ChungusProtocol.CHAT_MESSAGE, "[SYSTEM] ",
+                    count + " messages were skipped because your connection fell behind.");
+        }
+
+        depth = frames.size();
+        return frame;
+    }
+
+    // A frame waiting for the writer.
+    private static final class Queued {
+
+        final ByteBuffer frame;
+        final boolean droppable;
+
+        Queued(ByteBuffer frame, boolean droppable){
+            this.frame = frame;
+            this.droppable = droppable;
+        }
+
+    }
+
+}
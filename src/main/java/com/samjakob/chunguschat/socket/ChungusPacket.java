@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A single decoded ChungusProtocol packet.
+ *
+ * Packets read from a v4 connection keep a view of their frame rather than
+ * decoding it up front; the payload is only decoded when it's asked for.
+ * That view is only valid while the packet is being handled, so anything
+ * that needs to keep the packet's contents must copy or decode them first.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusPacket {
+
+    // The packet ID exactly as it was received (including the silent bit).
+    final int rawPacketId;
+    // The packet ID with the silent bit masked off.
+    final int packetId;
+    final boolean silent;
+    final int flags;
+
+    // The whole v4 frame (header and body), or null for a legacy packet.
+    private final ByteBuffer frame;
+
+    private final int intPayload;
+    private String payload;
+
+    private ChungusPacket(int rawPacketId, int flags, ByteBuffer frame, int intPayload, String payload){
+        this.rawPacketId = rawPacketId;
+        this.silent = (rawPacketId >>> 7) > 0;
+        this.packetId = rawPacketId & 0b01111111;
+        this.flags = flags;
+        this.frame = frame;
+        this.intPayload = intPayload;
+        this.payload = payload;
+    }
+
+    static ChungusPacket legacy(int rawPacketId, int intPayload, String payload){
+        return new ChungusPacket(rawPacketId, 0, null, intPayload, payload);
+    }
+
+    static ChungusPacket framed(int rawPacketId, int flags, ByteBuffer frame){
+        return new ChungusPacket(rawPacketId, flags, frame, 0, null);
+    }
+
+    boolean isFramed(){
+        return frame != null;
+    }
+
+    /**
+     * A view of the packet's v4 frame body, or null for a legacy packet.
+     */
+    ByteBuffer body(){
+        if(frame == null) return null;
+
+        ByteBuffer body = frame.duplicate();
+        body.position(ChungusFrameCodec.HEADER_LENGTH);
+        return body.slice();
+    }
+
+    int getIntPayload(){
+        if(frame == null) return intPayload;
+        if(frame.remaining() < ChungusFrameCodec.HEADER_LENGTH + 4) return 0;
+
+        return frame.getInt(frame.position() + ChungusFrameCodec.HEADER_LENGTH);
+    }
+
+    String getPayload(){
+        if(payload == null && frame != null) payload = ChungusFrameCodec.getString(body());
+        return payload;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes legacy (protocol version 3) ChungusProtocol packets
+ * to and from byte buffers. Newer clients use {@link ChungusFrameCodec}.
+ *
+ * Strings are written in the same modified UTF-8 format used by
+ * DataOutputStream#writeUTF, so packets produced here are byte-for-byte
+ * identical to those written by the v3 stream based client and server.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusPacketCodec {
+
+    static final int NO_PAYLOAD = 0;
+    static final int INT_PAYLOAD = 1;
+    static final int UTF_PAYLOAD = 2;
+
+    // packet ID + UTF length prefix + largest possible UTF body.
+    static final int MAX_PACKET_SIZE = 4 + 2 + 0xFFFF;
+
+    private ChungusPacketCodec(){}
+
+    /**
+     * Returns the layout of the payload that follows the given packet ID
+     * when it is sent from a client to the server.
+     */
+    static int serverboundPayload(int packetId){
+        switch(packetId & 0b01111111){
+            case ChungusProtocol.SYSTEM_HANDSHAKE:
+                return INT_PAYLOAD;
+
+            case ChungusProtocol.CHAT_MESSAGE:
+            case ChungusProtocol.USERNAME:
+            case ChungusProtocol.SYSTEM_ANNOUNCEMENT:
+            case ChungusProtocol.COMMAND_SET_MOTD:
+                return UTF_PAYLOAD;
+
+            default:
+                return NO_PAYLOAD;
+        }
+    }
+
+    /**
+     * Reads a single client packet from a blocking stream.
+     */
+    static ChungusPacket read(DataInputStream in) throws IOException {
+        int packetId = in.readInt();
+
+        switch(serverboundPayload(packetId)){
+            case INT_PAYLOAD:
+                return ChungusPacket.legacy(packetId, in.readInt(), null);
+            case UTF_PAYLOAD:
+                return ChungusPacket.legacy(packetId, 0, in.readUTF());
+            default:
+                return ChungusPacket.legacy(packetId, 0, null);
+        }
+    }
+
+    /**
+     * Attempts to decode a single client packet from the buffer.
+     *
+     * If the buffer does not yet hold a complete packet, null is returned and
+     * the buffer position is left untouched so that the caller may read more
+     * data and try again.
+     */
+    static ChungusPacket decode(ByteBuffer buffer) throws UTFDataFormatException {
+        if(buffer.remaining() < 4) return null;
+
+        int start = buffer.position();
+        int packetId = buffer.getInt(start);
+
+        switch(serverboundPayload(packetId)){
+            case INT_PAYLOAD:
+                if(buffer.remaining() < 8) return null;
+
+                buffer.position(start + 8);
+                return ChungusPacket.legacy(packetId, buffer.getInt(start + 4), null);
+
+            case UTF_PAYLOAD:
+                if(buffer.remaining() < 6) return null;
+
+                int length = buffer.getShort(start + 4) & 0xFFFF;
+                if(buffer.remaining() < 6 + length) return null;
+
+                buffer.position(start + 6);
+                return ChungusPacket.legacy(packetId, 0, readUTF(buffer, length));
+
+            default:
+                buffer.position(start + 4);
+                return ChungusPacket.legacy(packetId, 0, null);
+        }
+    }
+
+    static ByteBuffer encode(int packetId){
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(packetId);
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer encode(int packetId, int value){
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putInt(packetId);
+        buffer.putInt(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer encode(int packetId, String payload) throws UTFDataFormatException {
+        return encode(packetId, "", payload, false);
+    }
+
+    /**
+     * Encodes a string packet whose payload is prefix followed by payload,
+     * without concatenating the two strings first.
+     */
+    static ByteBuffer encode(int packetId, String prefix, String payload) throws UTFDataFormatException {
+        return encode(packetId, prefix, payload, false);
+    }
+
+    static ByteBuffer encode(int packetId, String payload, long value) throws UTFDataFormatException {
+        return encode(packetId, payload, value, false);
+    }
+
+    static ByteBuffer encode(int packetId, String prefix, String payload, boolean direct) throws UTFDataFormatException {
+        int length = checkUTFLength(countUTF(prefix) + countUTF(payload));
+
+        ByteBuffer buffer = allocate(4 + 2 + length, direct);
+        buffer.putInt(packetId);
+        buffer.putShort((short) length);
+        writeUTFChars(buffer, prefix);
+        writeUTFChars(buffer, payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer encode(int packetId, String payload, long value, boolean direct) throws UTFDataFormatException {
+        int length = utfLength(payload);
+
+        ByteBuffer buffer = allocate(4 + 2 + length + 8, direct);
+        buffer.putInt(packetId);
+        writeUTF(buffer, payload, length);
+        buffer.putLong(value);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer allocate(int capacity, boolean direct){
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Computes the length of the string in modified UTF-8, throwing if it
+     * cannot be represented by the two byte length prefix.
+     */
+    static int utfLength(String value) throws UTFDataFormatException {
+        return checkUTFLength(countUTF(value));
+    }
+
+    private static int countUTF(String value){
+        int length = 0;
+
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+
+            if(c >= 0x0001 && c <= 0x007F) length++;
+            else if(c > 0x07FF) length += 3;
+            else length += 2;
+        }
+
+        return length;
+    }
+
+    private static int checkUTFLength(int length) throws UTFDataFormatException {
+        if(length > 0xFFFF) throw new UTFDataFormatException("Encoded string too long: " + length + " bytes");
+        return length;
+    }
+
+    static void writeUTF(ByteBuffer buffer, String value, int length){
+        buffer.putShort((short) length);
+        writeUTFChars(buffer, value);
+    }
+
+    private static void writeUTFChars(ByteBuffer buffer, String value){
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+
+            if(c >= 0x0001 && c <= 0x007F){
+                buffer.put((byte) c);
+            }else if(c > 0x07FF){
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }else{
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Decodes length bytes of modified UTF-8 starting at the buffer's current
+     * position, advancing the position past them.
+     */
+    static String readUTF(ByteBuffer buffer, int length) throws UTFDataFormatException {
+        char[] chars = new char[length];
+        int count = 0;
+        int end = buffer.position() + length;
+
+        while(buffer.position() < end){
+            int a = buffer.get() & 0xFF;
+
+            switch(a >> 4){
+                case 0: case 1: case 2: case 3: case 4: case 5: case 6: case 7:
+                    chars[count++] = (char) a;
+                    break;
+
+                case 12: case 13:
+                    if(buffer.position() + 1 > end) throw new UTFDataFormatException("Truncated character");
+                    int b = buffer.get() & 0xFF;
+                    if((b & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed character");
+
+                    chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+                    break;
+
+                case 14:
+                    if(buffer.position() + 2 > end) throw new UTFDataFormatException("Truncated character");
+                    int c = buffer.get() & 0xFF;
+                    int d = buffer.get() & 0xFF;
+                    if((c & 0xC0) != 0x80 || (d & 0xC0) != 0x80) throw new UTFDataFormatException("Malformed character");
+
+                    chars[count++] = (char) (((a & 0x0F) << 12) | ((c & 0x3F) << 6) | (d & 0x3F));
+                    break;
+
+                default:
+                    throw new UTFDataFormatException("Malformed character");
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+
+}
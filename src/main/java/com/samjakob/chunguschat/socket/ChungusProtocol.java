@@ -2,7 +2,9 @@ package com.samjakob.chunguschat.socket;
 
 public class ChungusProtocol {
     
-    public static final int PROTOCOL_VERSION = 3;
+    public static final int PROTOCOL_VERSION = 4;
+    // Int-framed clients (v1.1) are still accepted alongside v4 ones.
+    public static final int LEGACY_PROTOCOL_VERSION = 3;
     
     
     /**
@@ -32,6 +34,51 @@ public class ChungusProtocol {
      * ---------
      * 0000 0100 - User List
      * 0000 0101 - Set MOTD
+     * 0000 0110 - Join Room
+     * 0000 0111 - Leave Room (back to the lobby)
+     * 
+     * Chat messages, announcements, the user list,
+     * presence events and the MOTD are all scoped to
+     * the sender's current room.
+     * 
+     * =====================================
+     * 
+     * xxxx 1xxx -> Bit Mask: Presence Events
+     * ---------
+     * 1000 1000 - User Joined
+     * 1000 1001 - User Left
+     * 1000 1010 - User Renamed (old|new)
+     * 
+     * Pushed by the server whenever the user list
+     * changes, so clients don't need to poll for it.
+     * A client is sent the full (silent) user list
+     * once, when it first sets its username, and
+     * applies these events to it from then on. Only
+     * v4 clients receive them.
+     * 
+     * =====================================
+     * 
+     * xxxx 11xx -> Bit Mask: History
+     * ---------
+     * 0000 1100 - History Request
+     * 1000 1100 - History Page
+     * 
+     * A request's body is a direction byte (0 for
+     * messages before the sequence number, 1 for after
+     * it), a long sequence number and an int limit.
+     * The page holds the room's messages; see
+     * ChungusChatLog#page. v4 clients only.
+     * 
+     * =====================================
+     * 
+     * xxxx 11x1 -> Bit Mask: Server Stats
+     * ---------
+     * 0000 1101 - Stats Request
+     * 1000 1101 - Stats Report
+     * 
+     * The report is lines of text, one per group of
+     * metrics; see ChungusServerMetrics. Only admins
+     * get one. v4 clients only.
      * 
      * =====================================
      * 
@@ -42,6 +89,34 @@ public class ChungusProtocol {
      * 
      * =====================================
      * 
+     * xx11 xxxx -> Bit Mask: Cluster Relay
+     * ---------
+     * 0011 0000 - Node Hello (proof of the cluster secret, node ID)
+     * 0011 0001 - Relayed Room Event
+     * 0011 0010 - Node Challenge (nonce)
+     * 
+     * Only ever sent between servers, over the
+     * cluster port. See ChungusCluster.
+     * 
+     * =====================================
+     * 
+     * xx1x xxxx -> Bit Mask: File Transfer
+     * ---------
+     * 0010 0000 - File Offer (size, SHA-256, name)
+     * 0010 0001 - Download (file transfer port only)
+     * 0010 0010 - Inline Upload
+     * 0010 0011 - Inline Upload Chunk
+     * 0010 0100 - Inline Upload End
+     * 1010 0010 - Inline Upload Status
+     * 
+     * Files are normally uploaded over the file
+     * transfer port; see ChungusChunkedTransfer. A v4
+     * client can instead send one over its chat
+     * connection, as chunk frames in between its other
+     * packets. See ChungusInlineUploads.
+     * 
+     * =====================================
+     * 
      * ------------------------
      * 2. Special Features
      * ------------------------
@@ -58,6 +133,36 @@ public class ChungusProtocol {
      * the ChungusChat client has requested the user
      * list for the sidebar.
      * 
+     * ------------------------
+     * 3. Framing
+     * ------------------------
+     * 
+     * Since protocol version 4 every packet is sent as a
+     * frame: a one byte packet ID, a one byte flags field
+     * and a four byte body length, followed by the body.
+     * Strings are UTF-8 and run to the end of the body.
+     * See ChungusFrameCodec.
+     * 
+     * Version 3 clients sent the packet ID as a four byte
+     * int followed by a payload whose shape depended on
+     * the packet. The server tells the two apart by the
+     * first byte a client sends: a v3 handshake always
+     * starts with 0x00, a v4 one with 0x10.
+     * 
+     * ------------------------
+     * 4. Compression
+     * ------------------------
+     * 
+     * A v4 client can follow the version in its
+     * handshake with a byte of HANDSHAKE_ options. The
+     * server answers with the version and whichever of
+     * them it agreed to; a client that sent none gets
+     * the plain version back.
+     * 
+     * With HANDSHAKE_DEFLATE agreed, frames from the
+     * server may have their bodies deflated, which is
+     * marked in their flags. See ChungusFrameDeflater.
+     * 
      */
     
     public static final int CHAT_MESSAGE               = 0b00000000;
@@ -66,17 +171,41 @@ public class ChungusProtocol {
 
     public static final int COMMAND_USERS              = 0b00000100;
     public static final int COMMAND_SET_MOTD           = 0b00000101;
+    public static final int COMMAND_JOIN_ROOM          = 0b00000110;
+    public static final int COMMAND_LEAVE_ROOM         = 0b00000111;
+    
+    //                           Events silent by default ↓
+    public static final int PRESENCE_JOIN              = 0b10001000;
+    public static final int PRESENCE_LEAVE             = 0b10001001;
+    public static final int PRESENCE_RENAME            = 0b10001010;
+    
+    public static final int COMMAND_HISTORY            = 0b00001100;
+    public static final int HISTORY_PAGE               = 0b10001100;
+    
+    public static final int COMMAND_STATS              = 0b00001101;
+    public static final int STATS_REPORT               = 0b10001101;
 
 
     public static final int SYSTEM_HANDSHAKE           = 0b00010000;
     public static final int SYSTEM_ANNOUNCEMENT        = 0b00010001;
     
+    public static final int CLUSTER_HELLO              = 0b00110000;
+    public static final int CLUSTER_RELAY              = 0b00110001;
+    public static final int CLUSTER_CHALLENGE          = 0b00110010;
+    
     public static final int FT_OFFER                   = 0b00100000;
     public static final int FT_ACCEPT                  = 0b00100001;
+    public static final int FT_UPLOAD                  = 0b00100010;
+    public static final int FT_CHUNK                   = 0b00100011;
+    public static final int FT_UPLOAD_END              = 0b00100100;
+    public static final int FT_UPLOAD_STATUS           = 0b10100010;
     
     //                           Command silent by default ↓
     public static final int SECRET_KCC                 = 0b11000000;
     
     public static final int PROTO_MASK_SILENT_COMMAND  = 0b10000000;
+    
+    // Handshake options.
+    public static final int HANDSHAKE_DEFLATE          = 0b00000001;
 
 }
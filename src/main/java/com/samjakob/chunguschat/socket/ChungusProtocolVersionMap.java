@@ -14,7 +14,8 @@ public enum ChungusProtocolVersionMap {
     
     LEGACY(1, "Legacy"),
     ANTHONY(2, "v1.0"),
-    DWEND(3, "v1.1");
+    DWEND(3, "v1.1"),
+    BIG_CHUNGUS(4, "v2.0");
     
     private int protocolVersion;
     private String versionName;
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client served by a {@link ChungusEventLoop} rather than its own thread.
+ *
+ * Inbound bytes are accumulated in a read buffer and decoded in place;
+ * outbound frames are queued and written by the event loop whenever the
+ * channel is writable.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusReactorConnection extends ChungusConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    // Most frames to hand to a single gathering write.
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    private final SocketChannel channel;
+    private final ChungusEventLoop loop;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer;
+    // Frames taken off the queue for the current gathering write; the first
+    // of them may already be partly on the wire.
+    private final ByteBuffer[] batch;
+    private int batchStart;
+    private int batchEnd;
+    private final AtomicBoolean flushScheduled;
+    private boolean closeAfterFlush;
+    // How many reasons there are not to read from the client; see holdReads.
+    private int readHolds;
+
+    ChungusReactorConnection(SocketChannel channel, ChungusEventLoop loop, ChungusSocketServer delegateFor){
+        super(delegateFor);
+        this.channel = channel;
+        this.loop = loop;
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        this.batch = new ByteBuffer[WRITE_BATCH_SIZE];
+        this.flushScheduled = new AtomicBoolean();
+    }
+
+    void attach(SelectionKey key){
+        this.key = key;
+        flush();
+    }
+
+    void onReadable(){
+        if(readHolds > 0) return;
+
+        int read;
+
+        try {
+            read = channel.read(readBuffer);
+        }catch(IOException ex){
+            read = -1;
+        }
+
+        if(read < 0){
+            ChungusSocketServer.remove(this);
+            return;
+        }
+        ChungusSocketServer.metrics.bytesIn(read);
+
+        readBuffer.flip();
+        handleBuffered();
+    }
+
+    /**
+     * Handles every whole packet in the (flipped) read buffer, unless
+     * reading is held up part way through, and compacts it ready for the
+     * next read.
+     */
+    private void handleBuffered(){
+        if(wireFormat == null){
+            if(!readBuffer.hasRemaining()){
+                readBuffer.compact();
+                return;
+            }
+
+            wireFormat = ChungusWireFormat.sniff(readBuffer.get(readBuffer.position()) & 0xFF);
+        }
+
+        try {
+            ChungusPacket packet;
+            while(readHolds == 0 && key.isValid() && (packet = wireFormat.decode(readBuffer)) != null){
+                if(!handlePacket(packet)) return;
+            }
+        }catch(IOException ex){
+            ChungusSocketServer.remove(this);
+            return;
+        }
+
+        readBuffer.compact();
+
+        // A single packet can be larger than the initial buffer, so grow it
+        // (up to the largest possible packet) rather than stalling forever.
+        if(!readBuffer.hasRemaining() && readBuffer.capacity() < wireFormat.maxPacketLength){
+            ByteBuffer grown = ByteBuffer.allocate((int) Math.min(readBuffer.capacity() * 2L, wireFormat.maxPacketLength));
+            readBuffer.flip();
+            grown.put(readBuffer);
+            readBuffer = grown;
+        }
+    }
+
+    void onWritable(){
+        flush();
+    }
+
+    @Override
+    void holdReads(long nanos){
+        // The loop can't wait, so it stops reading from this client for a
+        // while instead; anything already read waits in the buffer.
+        pauseReads();
+        loop.schedule(this::resumeReads, nanos);
+    }
+
+    @Override
+    void holdReads(CompletableFuture<?> until){
+        pauseReads();
+        until.whenComplete((result, ex) -> loop.execute(this::resumeReads));
+    }
+
+    private void pauseReads(){
+        readHolds++;
+        if(key.isValid()) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void resumeReads(){
+        if(--readHolds > 0 || !key.isValid()) return;
+
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        readBuffer.flip();
+        handleBuffered();
+    }
+
+    @Override
+    void wakeWriter(){
+        // Only one flush needs to be pending on the loop at a time.
+        if(flushScheduled.compareAndSet(false, true)){
+            loop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    @Override
+    void abort(){
+        loop.execute(() -> {
+            close();
+            ChungusSocketServer.remove(this);
+        });
+    }
+
+    @Override
+    SocketAddress getRemoteAddress(){
+        try {
+            return channel.getRemoteAddress();
+        }catch(IOException ex){
+            return null;
+        }
+    }
+
+    @Override
+    void disconnect(){
+        outbound.close();
+
+        loop.execute(() -> {
+            closeAfterFlush = true;
+
+            if(key == null) close();
+            else flush();
+        });
+    }
+
+    /**
+     * Writes as much of the queue as the socket will take. Must only be
+     * called on the loop thread.
+     */
+    private void flush(){
+        if(key == null || !key.isValid()) return;
+
+        try {
+            while(true){
+                // Gather as many queued frames as will fit into one write, so
+                // a burst of broadcasts costs one syscall rather than one per
+                // frame.
+                if(batchStart == batchEnd){
+                    batchStart = batchEnd = 0;
+
+                    // Compressed (if the client asked) as they leave the
+                    // queue, so only frames that are written pass through
+                    // the client's context.
+                    ByteBuffer frame;
+                    while(batchEnd < batch.length && (frame = outbound.poll()) != null){
+                        ChungusSocketServer.metrics.packetOut(wireFormat, frame);
+                        batch[batchEnd++] = compress(frame);
+                    }
+
+                    if(batchEnd == 0) break;
+                }
+
+                ChungusSocketServer.metrics.bytesOut(channel.write(batch, batchStart, batchEnd - batchStart));
+
+                while(batchStart < batchEnd && !batch[batchStart].hasRemaining()){
+                    batch[batchStart++] = null;
+                }
+
+                // The socket buffer is full; wait until it's writable again.
+                if(batchStart < batchEnd) break;
+            }
+        }catch(IOException ex){
+            close();
+            ChungusSocketServer.remove(this);
+            return;
+        }
+
+        boolean drained = batchStart == batchEnd;
+
+        if(drained && closeAfterFlush){
+            close();
+            return;
+        }
+
+        key.interestOps((readHolds > 0 ? 0 : SelectionKey.OP_READ) | (drained ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    private void close(){
+        endCompression();
+
+        try {
+            if(key != null) key.cancel();
+            channel.close();
+        }catch(IOException ex){
+            System.err.println(ex);
+        }
+    }
+
+}
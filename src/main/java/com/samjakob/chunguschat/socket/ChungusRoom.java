@@ -0,0 +1,329 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named conversation on a server.
+ *
+ * Each room has its own members, user list and MOTD, and packets broadcast
+ * to a room only go to its members. Changes to a room's membership are
+ * made under that room's own lock, so busy rooms never wait on each other.
+ *
+ * Every client is in exactly one room at a time, starting in the lobby.
+ *
+ * Members that asked for compression share one compression context per
+ * room, so a broadcast is deflated once however many of them there are.
+ *
+ * Chat messages are logged by handing them to the chat log's writer, so
+ * broadcasting never waits on the disk, or on the log's lock, which every
+ * room shares.
+ *
+ * When the server is part of a cluster, what happens in a room is relayed
+ * to the same room on the other nodes, and the room's user list includes
+ * the users in it on those nodes.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusRoom {
+
+    static final String LOBBY = "lobby";
+
+    private final String name;
+    private final ChungusClientRegistry members;
+    private volatile String motd;
+
+    // Set once the room has emptied and been dropped from the server; a
+    // closed room can't be joined. Guarded by this.
+    private boolean closed;
+
+    // The compression context shared by members that can use it, or null.
+    // Guarded by this.
+    private ChungusFrameDeflater sharedContext;
+
+    ChungusRoom(String name){
+        this.name = name;
+        this.members = new ChungusClientRegistry();
+    }
+
+    /**
+     * Turns what a user typed into a room name, or returns null if it
+     * isn't one.
+     */
+    static String normalizeName(String name){
+        if(name == null) return null;
+
+        name = name.trim();
+        if(name.startsWith("#")) name = name.substring(1);
+        name = name.toLowerCase();
+
+        if(name.isEmpty() || name.length() > 32 || name.indexOf('|') >= 0) return null;
+        return name;
+    }
+
+    String getName(){
+        return name;
+    }
+
+    boolean isLobby(){
+        return LOBBY.equals(name);
+    }
+
+    /**
+     * Adds a client to the room. If the client already has a username it's
+     * sent the room's user list and the other members are told it joined.
+     *
+     * @return false if the room has been closed and can't be joined.
+     */
+    synchronized boolean add(ChungusConnection client){
+        if(closed) return false;
+
+        members.add(client);
+        if(client.getUsername() != null) joined(client);
+        return true;
+    }
+
+    /**
+     * Removes a client from the room, telling the other members it left.
+     * A room other than the lobby is closed once its last member (on any
+     * node) leaves.
+     *
+     * @return false if the client wasn't in the room.
+     */
+    synchronized boolean remove(ChungusConnection client){
+        if(!members.remove(client)) return false;
+
+        // Whatever room it joins next starts it on a fresh context.
+        if(client.sharedContext == sharedContext) client.sharedContext = null;
+        if(sharedContext != null && !isSharingCompression()){
+            sharedContext.end();
+            sharedContext = null;
+        }
+
+        if(client.getUsername() != null){
+            publish(ChungusSharedFrame.of(ChungusProtocol.PRESENCE_LEAVE, "", client.getUsername()));
+        }
+
+        closeIfEmpty();
+        return true;
+    }
+
+    synchronized boolean isClosed(){
+        return closed;
+    }
+
+    synchronized void renamed(ChungusConnection client, String oldUsername, String newUsername){
+        members.rename(client, oldUsername, newUsername);
+
+        if(oldUsername == null) joined(client);
+        else publish(ChungusSharedFrame.of(ChungusProtocol.PRESENCE_RENAME, oldUsername + "|", newUsername));
+    }
+
+    // Gives a newly (visible) member the whole list once, then tells every
+    // member (it included) about it. Called with the room's lock held, so
+    // the snapshot is never overtaken by an older event.
+    private void joined(ChungusConnection client){
+        ByteBuffer snapshot = members.getUserList().frame(
+                ChungusProtocol.COMMAND_USERS | ChungusProtocol.PROTO_MASK_SILENT_COMMAND, client.wireFormat);
+        if(snapshot != null) client.send(snapshot);
+
+        publish(ChungusSharedFrame.of(ChungusProtocol.PRESENCE_JOIN, "", client.getUsername()));
+    }
+
+    private void closeIfEmpty(){
+        if(members.size() == 0 && members.remoteSize() == 0 && !isLobby()) closed = true;
+    }
+
+    /**
+     * Writes the packet to every member of the room on this node.
+     *
+     * Members on the room's shared compression context all get the same
+     * deflated frame. Broadcasts hold the room's lock so that they go
+     * through the context in the same order they're queued for every
+     * member.
+     */
+    synchronized void broadcast(ChungusSharedFrame frame){
+        ChungusSocketServer.log(name, frame);
+
+        long startTime = System.nanoTime();
+        ByteBuffer deflated = deflateShared(frame);
+
+        for(ChungusConnection member : members.clients()){
+            if(deflated != null && member.sharedContext == sharedContext) member.send(deflated.duplicate());
+            else member.send(frame);
+        }
+        ChungusSocketServer.metrics.broadcast(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Deflates the frame with the room's shared context, or returns null if
+     * no member can use it. If any member that can isn't in step with the
+     * context yet (it just joined, or just agreed to compression), the
+     * context is reset first and every such member starts from this frame.
+     */
+    private ByteBuffer deflateShared(ChungusSharedFrame frame){
+        boolean sharing = false;
+        boolean inStep = true;
+
+        for(ChungusConnection member : members.clients()){
+            if(!member.canShareCompression()) continue;
+
+            sharing = true;
+            if(sharedContext == null || member.sharedContext != sharedContext) inStep = false;
+        }
+
+        if(!sharing) return null;
+
+        ByteBuffer encoded = frame.encoded(ChungusWireFormat.FRAMED);
+        if(encoded == null) return null;
+
+        if(!inStep){
+            if(sharedContext == null) sharedContext = new ChungusFrameDeflater();
+            sharedContext.reset();
+
+            for(ChungusConnection member : members.clients()){
+                if(member.canShareCompression()) member.sharedContext = sharedContext;
+            }
+        }
+
+        return sharedContext.deflate(encoded, ChungusFrameCodec.FLAG_SHARED).asReadOnlyBuffer();
+    }
+
+    private boolean isSharingCompression(){
+        for(ChungusConnection member : members.clients()){
+            if(member.sharedContext == sharedContext) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Writes the packet to every member of the room, on this node and (by
+     * relaying it) on every other node in the cluster.
+     */
+    void publish(ChungusSharedFrame frame){
+        broadcast(frame);
+
+        ChungusCluster cluster = ChungusSocketServer.cluster;
+        if(cluster != null) cluster.relay(name, frame);
+    }
+
+    /*
+     * Cluster
+     */
+
+    /**
+     * Relays the users in the room on this node, so that other nodes can
+     * replace whatever they had for it.
+     */
+    synchronized void relayRoster(ChungusCluster cluster){
+        List<String> local = new ArrayList<>();
+        for(ChungusConnection member : members.clients()){
+            if(member.getUsername() != null) local.add(member.getUsername());
+        }
+
+        cluster.relay(name, ChungusSharedFrame.of(
+                ChungusProtocol.COMMAND_USERS | ChungusProtocol.PROTO_MASK_SILENT_COMMAND, "", String.join("|", local)));
+    }
+
+    /**
+     * Replaces the users in the room on another node, telling local members
+     * about each user that joined or left as a result.
+     *
+     * @return false if the room has been closed.
+     */
+    synchronized boolean setRemoteUsers(String node, List<String> users){
+        if(closed) return false;
+
+        List<String> previous = members.getRemoteUsers(node);
+        members.setRemoteUsers(node, users);
+
+        for(String user : previous){
+            if(!users.contains(user)) broadcast(ChungusSharedFrame.of(ChungusProtocol.PRESENCE_LEAVE, "", user));
+        }
+        for(String user : users){
+            if(!previous.contains(user)) broadcast(ChungusSharedFrame.of(ChungusProtocol.PRESENCE_JOIN, "", user));
+        }
+
+        closeIfEmpty();
+        return true;
+    }
+
+    synchronized boolean remoteJoined(String node, String username){
+        List<String> users = new ArrayList<>(members.getRemoteUsers(node));
+        users.add(username);
+        return setRemoteUsers(node, users);
+    }
+
+    synchronized boolean remoteLeft(String node, String username){
+        List<String> users = new ArrayList<>(members.getRemoteUsers(node));
+        users.remove(username);
+        return setRemoteUsers(node, users);
+    }
+
+    synchronized boolean remoteRenamed(String node, String oldUsername, String newUsername){
+        if(closed) return false;
+
+        List<String> users = new ArrayList<>(members.getRemoteUsers(node));
+        int index = users.indexOf(oldUsername);
+        if(index >= 0) users.set(index, newUsername);
+        else users.add(newUsername);
+
+        members.setRemoteUsers(node, users);
+        broadcast(ChungusSharedFrame.of(ChungusProtocol.PRESENCE_RENAME, oldUsername + "|", newUsername));
+        return true;
+    }
+
+    ChungusClientRegistry.UserList getUserList(){
+        return members.getUserList();
+    }
+
+    List<String> getUsers(){
+        return members.getUserList().users;
+    }
+
+    /**
+     * The number of users in the room, on every node.
+     */
+    int size(){
+        return members.size() + members.remoteSize();
+    }
+
+    /**
+     * Sets the room's MOTD on every node.
+     */
+    void publishMotd(String motd){
+        this.motd = motd;
+
+        ChungusCluster cluster = ChungusSocketServer.cluster;
+        if(cluster != null) cluster.relay(name, ChungusSharedFrame.of(ChungusProtocol.COMMAND_SET_MOTD, "", motd));
+    }
+
+    void setMotd(String motd){ this.motd = motd; }
+    String getMotd(){ return this.motd; }
+
+}
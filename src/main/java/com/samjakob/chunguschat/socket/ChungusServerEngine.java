@@ -0,0 +1,70 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+/**
+ * The strategy a ChungusSocketServer uses to serve connected clients.
+ *
+ * The engine can be chosen explicitly when constructing the server, or with
+ * the {@code chunguschat.server.engine} system property (e.g.
+ * {@code -Dchunguschat.server.engine=reactor}).
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public enum ChungusServerEngine {
+
+    /**
+     * Every client is served by its own blocking thread.
+     */
+    THREAD_PER_CLIENT,
+
+    /**
+     * Every client is served by its own blocking virtual thread. This keeps
+     * the thread-per-client code but without a platform thread (and its
+     * stack) per connection. Requires a Java 21 runtime; older runtimes fall
+     * back to platform threads.
+     */
+    VIRTUAL_THREADS,
+
+    /**
+     * Clients are multiplexed over a small pool of NIO selector threads, one
+     * per core by default (see {@code chunguschat.server.eventLoops}).
+     */
+    REACTOR;
+
+    public static final String ENGINE_PROPERTY = "chunguschat.server.engine";
+    public static final String EVENT_LOOPS_PROPERTY = "chunguschat.server.eventLoops";
+
+    public static ChungusServerEngine fromSystemProperty(){
+        String engine = System.getProperty(ENGINE_PROPERTY);
+        if(engine == null) return THREAD_PER_CLIENT;
+
+        return ChungusServerEngine.valueOf(engine.trim().toUpperCase().replace('-', '_'));
+    }
+
+    static int eventLoopCount(){
+        return Integer.getInteger(EVENT_LOOPS_PROPERTY, Runtime.getRuntime().availableProcessors());
+    }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runs a server on its own, without the chat window.
+ *
+ * Usage: {@code ChungusServerMain [--config file] [--option value]...}
+ *
+ * <ul>
+ * <li>{@code --port}: the chat port (default 42069)</li>
+ * <li>{@code --ftPort}: the file transfer port (default 42070)</li>
+ * <li>{@code --downloads}: where uploaded files are kept and served from</li>
+ * <li>{@code --motd}: the lobby's message of the day</li>
+ * <li>{@code --engine}: thread_per_client, reactor or virtual_threads</li>
+ * <li>{@code --admins}: usernames, separated by commas, that can see the
+ * server's stats. There's no host to default to, so without this nobody
+ * can.</li>
+ * <li>{@code --jmx}: false to not publish metrics over JMX, which starts
+ * up faster</li>
+ * <li>{@code --check}: start, then exit straight away, to check the
+ * configuration (or to record a class data sharing archive)</li>
+ * </ul>
+ *
+ * Options can also be written {@code --port=42069}. The config file is a
+ * properties file with the same names (without the dashes), and may also
+ * set any {@code chunguschat.*} system property; options on the command
+ * line win over the file, and both win over -D.
+ *
+ * Only the socket package is loaded, never AWT or Swing, so the server
+ * starts quickly and in a small heap. Built with the {@code cds} profile,
+ * it starts faster still from the archive that profile records:
+ *
+ * <pre>
+ * java -XX:SharedArchiveFile=target/chunguschat-server.jsa -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xmx32m \
+ *     -cp target/ChungusChat-1.0-SNAPSHOT.jar com.samjakob.chunguschat.socket.ChungusServerMain --config server.properties
+ * </pre>
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public final class ChungusServerMain {
+
+    private static final Map<String, String> OPTIONS = new HashMap<>();
+
+    static {
+        OPTIONS.put("port", ChungusSocketServer.PORT_PROPERTY);
+        OPTIONS.put("ftPort", ChungusSocketServer.FT_PORT_PROPERTY);
+        OPTIONS.put("downloads", ChungusBlobStore.STORE_DIR_PROPERTY);
+        OPTIONS.put("engine", ChungusServerEngine.ENGINE_PROPERTY);
+        OPTIONS.put("admins", ChungusSocketServer.ADMINS_PROPERTY);
+        OPTIONS.put("jmx", ChungusSocketServer.JMX_PROPERTY);
+    }
+
+    private ChungusServerMain(){}
+
+    public static void main(String[] args){
+        System.setProperty("java.awt.headless", "true");
+
+        Properties options = new Properties();
+        try {
+            parseArguments(args, options);
+        }catch(IllegalArgumentException | IOException ex){
+            System.out.println(ex.getMessage());
+            System.exit(2);
+        }
+
+        // Everything else reads its configuration from system properties,
+        // mostly when its class is loaded, so they're set before anything
+        // else is touched.
+        for(String name : options.stringPropertyNames()){
+            String property = OPTIONS.containsKey(name) ? OPTIONS.get(name) : name;
+            if(property.startsWith("chunguschat.")) System.setProperty(property, options.getProperty(name));
+        }
+
+        // The first client to connect isn't the host here, so isn't made
+        // an admin.
+        if(System.getProperty(ChungusSocketServer.ADMINS_PROPERTY) == null){
+            System.setProperty(ChungusSocketServer.ADMINS_PROPERTY, "");
+        }
+
+        ChungusSocketServer server = new ChungusSocketServer();
+        if(!server.isBound()){
+            System.out.println("Couldn't listen on port " + server.getPort() + ".");
+            System.exit(1);
+        }
+
+        String motd = options.getProperty("motd");
+        if(motd != null) server.setMotd(motd);
+
+        server.host();
+        System.out.println("ChungusChat server (" + server.getEngine() + ") listening on port " + server.getPort() + ".");
+
+        if(options.containsKey("check")) System.exit(0);
+    }
+
+    /**
+     * Reads the config file, if one's given, then the rest of the options
+     * over the top of it.
+     */
+    private static void parseArguments(String[] args, Properties options) throws IOException {
+        Properties arguments = new Properties();
+
+        for(int i = 0; i < args.length; i++){
+            if(!args[i].startsWith("--")) throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+
+            String name = args[i].substring(2);
+            String value;
+
+            int equals = name.indexOf('=');
+            if(equals >= 0){
+                value = name.substring(equals + 1);
+                name = name.substring(0, equals);
+            }else if(name.equals("check")){
+                value = "true";
+            }else if(i + 1 < args.length){
+                value = args[++i];
+            }else{
+                throw new IllegalArgumentException("--" + name + " needs a value.");
+            }
+
+            if(!name.equals("config") && !name.equals("motd") && !name.equals("check")
+                    && !OPTIONS.containsKey(name) && !name.startsWith("chunguschat.")){
+                throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+
+            arguments.setProperty(name, value);
+        }
+
+        String config = arguments.getProperty("config");
+        if(config != null){
+            try (InputStream in = new FileInputStream(config)) {
+                options.load(in);
+            }
+        }
+
+        options.putAll(arguments);
+    }
+
+}
@@ -0,0 +1,387 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts what the server does, cheaply enough to leave on.
+ *
+ * Counters are LongAdders, so the many connection threads (or event loops)
+ * bumping the same counter don't contend for it, and timings go into
+ * {@link ChungusHistogram}s. Nothing here takes a lock.
+ *
+ * The metrics are published over JMX, and as a plain text report that
+ * admins can ask for with COMMAND_STATS.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusServerMetrics implements ChungusServerMetricsMXBean {
+
+    static final String OBJECT_NAME = "com.samjakob.chunguschat:type=Server";
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder versionRejects = new LongAdder();
+
+    // By packet ID, including the silent bit.
+    private final LongAdder[] packetsIn = adders(256);
+    private final LongAdder[] packetsOut = adders(256);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    // Nanoseconds to queue a packet for every client in the room (or server).
+    private final ChungusHistogram broadcasts = new ChungusHistogram();
+
+    private final LongAdder transferBytesIn = new LongAdder();
+    private final LongAdder transferBytesOut = new LongAdder();
+    // Bytes a second, for each upload or download once it's done.
+    private final ChungusHistogram transferThroughput = new ChungusHistogram();
+
+    private static LongAdder[] adders(int count){
+        LongAdder[] adders = new LongAdder[count];
+        for(int i = 0; i < count; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * Publishes the metrics with the platform MBean server, unless they
+     * already are.
+     */
+    void register(){
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name)) server.registerMBean(this, name);
+        }catch(JMException ex){
+            ex.printStackTrace();
+        }
+    }
+
+    /*
+     * Recording
+     */
+
+    void connectionOpened(){
+        connectionsOpened.increment();
+    }
+
+    void connectionClosed(){
+        connectionsClosed.increment();
+    }
+
+    void handshake(boolean accepted){
+        if(accepted) handshakes.increment();
+        else versionRejects.increment();
+    }
+
+    void packetIn(int rawPacketId){
+        packetsIn[rawPacketId & 0xFF].increment();
+    }
+
+    /**
+     * Counts a frame as it's handed to the socket, before it's compressed.
+     */
+    void packetOut(ChungusWireFormat format, ByteBuffer frame){
+        // A v3 packet ID is an int, so its low byte is the last of the four.
+        int offset = format == ChungusWireFormat.LEGACY ? 3 : 0;
+        if(frame.remaining() > offset) packetsOut[frame.get(frame.position() + offset) & 0xFF].increment();
+    }
+
+    void bytesIn(long bytes){
+        bytesIn.add(bytes);
+    }
+
+    void bytesOut(long bytes){
+        bytesOut.add(bytes);
+    }
+
+    void broadcast(long nanos){
+        broadcasts.record(nanos);
+    }
+
+    void transferIn(long bytes){
+        transferBytesIn.add(bytes);
+    }
+
+    void transferOut(long bytes){
+        transferBytesOut.add(bytes);
+    }
+
+    /**
+     * Records how quickly a finished upload or download went, from the
+     * bytes sent over its connection and how long that took.
+     */
+    void transferCompleted(long bytes, long nanos){
+        transferThroughput.record(bytes * TimeUnit.SECONDS.toNanos(1) / Math.max(1, nanos));
+    }
+
+    /*
+     * Reporting
+     */
+
+    @Override
+    public int getConnectedClients(){
+        return ChungusSocketServer.getConnectedClientCount();
+    }
+
+    @Override
+    public long getConnectionsOpened(){
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getConnectionsClosed(){
+        return connectionsClosed.sum();
+    }
+
+    @Override
+    public long getHandshakes(){
+        return handshakes.sum();
+    }
+
+    @Override
+    public long getVersionRejects(){
+        return versionRejects.sum();
+    }
+
+    @Override
+    public long getPacketsIn(){
+        return sum(packetsIn);
+    }
+
+    @Override
+    public long getPacketsOut(){
+        return sum(packetsOut);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsInByType(){
+        return byType(packetsIn);
+    }
+
+    @Override
+    public Map<String, Long> getPacketsOutByType(){
+        return byType(packetsOut);
+    }
+
+    @Override
+    public long getBytesIn(){
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut(){
+        return bytesOut.sum();
+    }
+
+    @Override
+    public long getBroadcasts(){
+        return broadcasts.snapshot().getCount();
+    }
+
+    @Override
+    public double getBroadcastMeanMicros(){
+        return broadcasts.snapshot().getMean() / 1e3;
+    }
+
+    @Override
+    public double getBroadcastP50Micros(){
+        return broadcasts.snapshot().getPercentile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastP99Micros(){
+        return broadcasts.snapshot().getPercentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastP999Micros(){
+        return broadcasts.snapshot().getPercentile(0.999) / 1e3;
+    }
+
+    @Override
+    public double getBroadcastMaxMicros(){
+        return broadcasts.snapshot().getMax() / 1e3;
+    }
+
+    @Override
+    public long getTransfersCompleted(){
+        return transferThroughput.snapshot().getCount();
+    }
+
+    @Override
+    public long getTransferBytesIn(){
+        return transferBytesIn.sum();
+    }
+
+    @Override
+    public long getTransferBytesOut(){
+        return transferBytesOut.sum();
+    }
+
+    @Override
+    public long getTransferThroughputP50(){
+        return transferThroughput.snapshot().getPercentile(0.5);
+    }
+
+    @Override
+    public long getTransferThroughputP10(){
+        return transferThroughput.snapshot().getPercentile(0.1);
+    }
+
+    @Override
+    public long getDroppedFrames(){
+        return ChungusSocketServer.getDroppedFrames();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects(){
+        return ChungusSocketServer.getSlowConsumerDisconnects();
+    }
+
+    @Override
+    public int getMaxOutboundQueueDepth(){
+        return ChungusSocketServer.getMaxOutboundQueueDepth();
+    }
+
+    @Override
+    public long getChatLogDroppedMessages(){
+        ChungusChatLog chatLog = ChungusSocketServer.chatLog;
+        return chatLog != null ? chatLog.getDropped() : 0;
+    }
+
+    /**
+     * The metrics as lines of text, for the STATS reply.
+     */
+    List<String> report(){
+        ChungusHistogram.Snapshot fanOut = broadcasts.snapshot();
+        ChungusHistogram.Snapshot throughput = transferThroughput.snapshot();
+        List<String> lines = new ArrayList<>();
+
+        lines.add("Clients: " + getConnectedClients() + " connected, "
+                + getConnectionsOpened() + " opened and " + getConnectionsClosed() + " closed since start");
+        lines.add("Handshakes: " + getHandshakes() + " accepted, " + getVersionRejects() + " rejected for their version");
+        lines.add("Packets in: " + getPacketsIn() + " " + getPacketsInByType());
+        lines.add("Packets out: " + getPacketsOut() + " " + getPacketsOutByType());
+        lines.add("Bytes: " + formatBytes(getBytesIn()) + " in, " + formatBytes(getBytesOut()) + " out");
+        lines.add(String.format("Broadcasts: %d, fan-out mean %.1f us, p50 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us",
+                fanOut.getCount(), fanOut.getMean() / 1e3, fanOut.getPercentile(0.5) / 1e3,
+                fanOut.getPercentile(0.99) / 1e3, fanOut.getPercentile(0.999) / 1e3, fanOut.getMax() / 1e3));
+        lines.add("File transfers: " + throughput.getCount() + " completed, "
+                + formatBytes(getTransferBytesIn()) + " in, " + formatBytes(getTransferBytesOut()) + " out, "
+                + "throughput p50 " + formatBytes(throughput.getPercentile(0.5)) + "/s, "
+                + "p10 " + formatBytes(throughput.getPercentile(0.1)) + "/s");
+        lines.add("Slow clients: " + getDroppedFrames() + " frames dropped, "
+                + getSlowConsumerDisconnects() + " disconnected, deepest queue " + getMaxOutboundQueueDepth());
+        if(ChungusSocketServer.chatLog != null){
+            lines.add("History: " + getChatLogDroppedMessages() + " messages left out because the log fell behind");
+        }
+
+        return lines;
+    }
+
+    private static long sum(LongAdder[] adders){
+        long sum = 0;
+        for(LongAdder adder : adders) sum += adder.sum();
+        return sum;
+    }
+
+    private static Map<String, Long> byType(LongAdder[] adders){
+        Map<String, Long> counts = new LinkedHashMap<>();
+
+        for(int id = 0; id < adders.length; id++){
+            long count = adders[id].sum();
+            if(count > 0) counts.put(nameOf(id), count);
+        }
+
+        return counts;
+    }
+
+    private static String formatBytes(long bytes){
+        if(bytes >= 1L << 30) return String.format("%.1f GiB", bytes / (double) (1L << 30));
+        if(bytes >= 1L << 20) return String.format("%.1f MiB", bytes / (double) (1L << 20));
+        if(bytes >= 1L << 10) return String.format("%.1f KiB", bytes / (double) (1L << 10));
+        return bytes + " B";
+    }
+
+    /**
+     * The name of the ChungusProtocol constant for a packet ID, marked as
+     * silent if it's the silent form of a command.
+     */
+    static String nameOf(int rawPacketId){
+        String name = constantName(rawPacketId);
+        if(name != null) return name;
+
+        if((rawPacketId & ChungusProtocol.PROTO_MASK_SILENT_COMMAND) != 0){
+            name = constantName(rawPacketId & ~ChungusProtocol.PROTO_MASK_SILENT_COMMAND);
+            if(name != null) return name + " (silent)";
+        }
+
+        return String.format("0x%02X", rawPacketId);
+    }
+
+    private static String constantName(int packetId){
+        switch(packetId){
+            case ChungusProtocol.CHAT_MESSAGE: return "CHAT_MESSAGE";
+            case ChungusProtocol.USERNAME: return "USERNAME";
+            case ChungusProtocol.MOTD: return "MOTD";
+            case ChungusProtocol.COMMAND_USERS: return "COMMAND_USERS";
+            case ChungusProtocol.COMMAND_SET_MOTD: return "COMMAND_SET_MOTD";
+            case ChungusProtocol.COMMAND_JOIN_ROOM: return "COMMAND_JOIN_ROOM";
+            case ChungusProtocol.COMMAND_LEAVE_ROOM: return "COMMAND_LEAVE_ROOM";
+            case ChungusProtocol.PRESENCE_JOIN: return "PRESENCE_JOIN";
+            case ChungusProtocol.PRESENCE_LEAVE: return "PRESENCE_LEAVE";
+            case ChungusProtocol.PRESENCE_RENAME: return "PRESENCE_RENAME";
+            case ChungusProtocol.COMMAND_HISTORY: return "COMMAND_HISTORY";
+            case ChungusProtocol.HISTORY_PAGE: return "HISTORY_PAGE";
+            case ChungusProtocol.COMMAND_STATS: return "COMMAND_STATS";
+            case ChungusProtocol.STATS_REPORT: return "STATS_REPORT";
+            case ChungusProtocol.SYSTEM_HANDSHAKE: return "SYSTEM_HANDSHAKE";
+            case ChungusProtocol.SYSTEM_ANNOUNCEMENT: return "SYSTEM_ANNOUNCEMENT";
+            case ChungusProtocol.CLUSTER_HELLO: return "CLUSTER_HELLO";
+            case ChungusProtocol.CLUSTER_RELAY: return "CLUSTER_RELAY";
+            case ChungusProtocol.FT_OFFER: return "FT_OFFER";
+            case ChungusProtocol.FT_ACCEPT: return "FT_ACCEPT";
+            case ChungusProtocol.FT_UPLOAD: return "FT_UPLOAD";
+            case ChungusProtocol.FT_CHUNK: return "FT_CHUNK";
+            case ChungusProtocol.FT_UPLOAD_END: return "FT_UPLOAD_END";
+            case ChungusProtocol.FT_UPLOAD_STATUS: return "FT_UPLOAD_STATUS";
+            case ChungusProtocol.SECRET_KCC: return "SECRET_KCC";
+            default: return null;
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.util.Map;
+
+/**
+ * The server's metrics, as published over JMX under
+ * {@code com.samjakob.chunguschat:type=Server}.
+ *
+ * Counters run from when the server started. Times are in microseconds
+ * and throughputs in bytes a second.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public interface ChungusServerMetricsMXBean {
+
+    int getConnectedClients();
+
+    long getConnectionsOpened();
+
+    long getConnectionsClosed();
+
+    long getHandshakes();
+
+    long getVersionRejects();
+
+    long getPacketsIn();
+
+    long getPacketsOut();
+
+    /**
+     * Packets received, by packet type.
+     */
+    Map<String, Long> getPacketsInByType();
+
+    /**
+     * Packets written, by packet type.
+     */
+    Map<String, Long> getPacketsOutByType();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getBroadcasts();
+
+    double getBroadcastMeanMicros();
+
+    double getBroadcastP50Micros();
+
+    double getBroadcastP99Micros();
+
+    double getBroadcastP999Micros();
+
+    double getBroadcastMaxMicros();
+
+    long getTransfersCompleted();
+
+    long getTransferBytesIn();
+
+    long getTransferBytesOut();
+
+    long getTransferThroughputP50();
+
+    long getTransferThroughputP10();
+
+    long getDroppedFrames();
+
+    long getSlowConsumerDisconnects();
+
+    int getMaxOutboundQueueDepth();
+
+    /**
+     * Chat messages left out of the history because the chat log's writer
+     * fell behind.
+     */
+    long getChatLogDroppedMessages();
+
+}
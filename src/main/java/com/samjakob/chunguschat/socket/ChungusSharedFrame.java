@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A packet that is sent, unchanged, to many clients.
+ *
+ * The packet is encoded at most once per wire format, the first time a
+ * client using that format needs it, and the encoded bytes are then shared
+ * by every recipient. Each recipient gets its own view of the shared
+ * buffer, so they can be written independently.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusSharedFrame {
+
+    private final int packetId;
+    private final String prefix;
+    private final long value;
+    private final boolean offer;
+    // The offered file's SHA-256, or null.
+    private final byte[] contentHash;
+
+    private volatile String payload;
+    // The payload's UTF-8 bytes, when it was forwarded from a v4 frame.
+    private final ByteBuffer payloadBody;
+
+    private final AtomicReferenceArray<ByteBuffer> encoded;
+
+    private ChungusSharedFrame(int packetId, String prefix, String payload, long value, boolean offer, byte[] contentHash, ByteBuffer payloadBody){
+        this.packetId = packetId;
+        this.prefix = prefix;
+        this.payload = payload;
+        this.value = value;
+        this.offer = offer;
+        this.contentHash = contentHash;
+        this.payloadBody = payloadBody;
+        this.encoded = new AtomicReferenceArray<>(ChungusWireFormat.values().length);
+    }
+
+    /**
+     * A string packet whose payload is prefix followed by payload.
+     */
+    static ChungusSharedFrame of(int packetId, String prefix, String payload){
+        return new ChungusSharedFrame(packetId, prefix, payload, 0, false, null, null);
+    }
+
+    /**
+     * A file transfer offer.
+     *
+     * @param contentHash the SHA-256 the file is stored by, which clients
+     * download it with, or null.
+     */
+    static ChungusSharedFrame offer(int packetId, String name, long size, byte[] contentHash){
+        return new ChungusSharedFrame(packetId, "", name, size, true, contentHash, null);
+    }
+
+    /**
+     * A string packet whose payload is prefix followed by the payload of a
+     * packet that was just received.
+     *
+     * If the packet arrived as a v4 frame its body is copied straight into
+     * the outgoing v4 frame without being decoded; the string is only
+     * decoded if a legacy client needs it.
+     */
+    static ChungusSharedFrame forward(int packetId, String prefix, ChungusPacket packet){
+        if(!packet.isFramed()) return of(packetId, prefix, packet.getPayload());
+
+        ByteBuffer frame;
+        try {
+            frame = ChungusFrameCodec.forward(packetId, prefix, packet.body(), true);
+        }catch(Exception ex){
+            // Too big once the prefix is added; fall back to encoding the
+            // string, which will fail the same way for whoever sends it.
+            return of(packetId, prefix, packet.getPayload());
+        }
+
+        // The received frame is only valid while it's being handled, so
+        // keep the payload's bytes from the copy instead.
+        ByteBuffer payloadBody = frame.duplicate();
+        payloadBody.position(ChungusFrameCodec.HEADER_LENGTH + ChungusFrameCodec.utf8Length(prefix));
+        payloadBody = payloadBody.slice();
+
+        ChungusSharedFrame shared = new ChungusSharedFrame(packetId, prefix, null, 0, false, null, payloadBody);
+        shared.encoded.set(ChungusWireFormat.FRAMED.ordinal(), frame.asReadOnlyBuffer());
+        return shared;
+    }
+
+    int getPacketId(){
+        return packetId;
+    }
+
+    boolean isDroppable(){
+        return !offer && ChungusOutboundQueue.isDroppable(packetId);
+    }
+
+    /**
+     * A fresh view of the packet encoded for the given wire format, or null
+     * if it couldn't be encoded or the format doesn't support it.
+     */
+    ByteBuffer encoded(ChungusWireFormat format){
+        if(!format.supports(packetId)) return null;
+
+        ByteBuffer frame = encoded.get(format.ordinal());
+
+        if(frame == null){
+            try {
+                frame = offer
+                        ? format.encodeOffer(packetId, getPayload(), value, contentHash, true)
+                        : format.encode(packetId, prefix, getPayload(), true);
+            }catch(Exception ex){
+                ex.printStackTrace();
+                return null;
+            }
+
+            // If two threads race to encode, both results are identical so
+            // it doesn't matter whose is kept.
+            frame = frame.asReadOnlyBuffer();
+            if(!encoded.compareAndSet(format.ordinal(), null, frame)) frame = encoded.get(format.ordinal());
+        }
+
+        return frame.duplicate();
+    }
+
+    String getPayload(){
+        String payload = this.payload;
+
+        if(payload == null){
+            payload = ChungusFrameCodec.getString(payloadBody);
+            this.payload = payload;
+        }
+
+        return payload;
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+/**
+ * What the server does when a client's outbound queue is full because the
+ * client isn't reading as fast as packets are being sent to it.
+ *
+ * Only chat messages are ever dropped. If the queue is full and none of
+ * the packets in it (or the new one) are chat messages, the client is
+ * disconnected whatever the policy.
+ *
+ * The policy can be set on the server, or with the
+ * {@code chunguschat.server.slowConsumerPolicy} system property.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public enum ChungusSlowConsumerPolicy {
+
+    /**
+     * Discard the oldest queued chat message to make room for the new
+     * packet.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the oldest queued chat message, and once the client catches
+     * up send it a single notice saying how many messages it missed.
+     */
+    COALESCE,
+
+    /**
+     * Disconnect the client once its queue is full.
+     */
+    DISCONNECT;
+
+    public static final String POLICY_PROPERTY = "chunguschat.server.slowConsumerPolicy";
+    public static final String QUEUE_CAPACITY_PROPERTY = "chunguschat.server.outboundQueueCapacity";
+
+    static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    public static ChungusSlowConsumerPolicy fromSystemProperty(){
+        String policy = System.getProperty(POLICY_PROPERTY);
+        if(policy == null) return DISCONNECT;
+
+        return ChungusSlowConsumerPolicy.valueOf(policy.trim().toUpperCase().replace('-', '_'));
+    }
+
+    static int queueCapacityFromSystemProperty(){
+        return Integer.getInteger(QUEUE_CAPACITY_PROPERTY, DEFAULT_QUEUE_CAPACITY);
+    }
+
+}
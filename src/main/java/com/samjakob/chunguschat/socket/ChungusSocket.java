@@ -23,12 +23,22 @@
  */
 package com.samjakob.chunguschat.socket;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 /**
@@ -37,6 +47,8 @@ import java.util.regex.Pattern;
  */
 public class ChungusSocket {
     
+    public static final String COMPRESSION_PROPERTY = "chunguschat.client.compression";
+    
     private MessageCallback onMessageReceived;
     private CommandCallback onCommandReceived;
     DisconnectCallback onDisconnect;
@@ -46,7 +58,19 @@ public class ChungusSocket {
     private Socket socket;
     private ChungusSocketThread delegate;
 
-    private DataOutputStream out;
+    private OutputStream out;
+    // Sends chat ahead of the chunks of any upload that's going on.
+    private ChungusFrameScheduler scheduler;
+    private volatile String username;
+    
+    // Replies about uploads being sent over this connection, by upload ID.
+    private final ConcurrentMap<Integer, BlockingQueue<ByteBuffer>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger nextUpload = new AtomicInteger();
+    
+    // Whether to ask the server to compress what it sends, and whether it
+    // agreed.
+    private boolean compression = Boolean.getBoolean(COMPRESSION_PROPERTY);
+    volatile boolean compressing;
     
     public ChungusSocket(MessageCallback onMessageReceived, CommandCallback onCommandReceived, DisconnectCallback onDisconnect, PropertyUpdatedCallback onPropertyUpdated, TransferOfferCallback onTransferOffer){
         this.onMessageReceived = onMessageReceived;
@@ -58,14 +82,22 @@ public class ChungusSocket {
     
     public void connect(String host, int port, String username){
         try {
-            socket = new Socket(InetAddress.getByName(host), port);
-            out = new DataOutputStream(socket.getOutputStream());
+            // Options are applied before connecting so that the receive
+            // buffer size can take part in TCP window negotiation.
+            socket = new Socket();
+            ChungusSocketOptions.apply(socket);
+            socket.connect(new InetSocketAddress(InetAddress.getByName(host), port));
             
-            out.writeInt(ChungusProtocol.SYSTEM_HANDSHAKE);
-            out.writeInt(ChungusProtocol.PROTOCOL_VERSION);
+            // Packets are built up in the buffer and flushed whole, rather
+            // than each field going out as its own tiny write.
+            out = new BufferedOutputStream(socket.getOutputStream(), ChungusSocketOptions.STREAM_BUFFER_SIZE);
+            scheduler = new ChungusFrameScheduler(out);
+            this.username = username;
             
-            out.writeInt(ChungusProtocol.USERNAME);
-            out.writeUTF(username);
+            send(compression
+                    ? ChungusFrameCodec.encodeHandshake(ChungusProtocol.PROTOCOL_VERSION, ChungusProtocol.HANDSHAKE_DEFLATE, false)
+                    : ChungusFrameCodec.encode(ChungusProtocol.SYSTEM_HANDSHAKE, ChungusProtocol.PROTOCOL_VERSION, false),
+                    ChungusFrameCodec.encode(ChungusProtocol.USERNAME, "", username, false));
             
             delegate = new ChungusSocketThread(socket, this);
             delegate.start();
@@ -74,6 +106,23 @@ public class ChungusSocket {
         }
     }
     
+    /**
+     * Sets whether to ask the server to compress what it sends, which is
+     * worth it on slow links into busy rooms. Only applies to connections
+     * made after it's set; defaults to the chunguschat.client.compression
+     * system property.
+     */
+    public void setCompression(boolean compression){
+        this.compression = compression;
+    }
+    
+    /**
+     * Whether the server agreed to compress what it sends.
+     */
+    public boolean isCompressing(){
+        return compressing;
+    }
+    
     MessageCallback getMessageReceivedCallback(){
         return onMessageReceived;
     }
@@ -92,8 +141,7 @@ public class ChungusSocket {
 
     public void sendChatMessage(String message){
         try {
-            out.writeInt(ChungusProtocol.CHAT_MESSAGE);
-            out.writeUTF(message);
+            send(ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "", message, false));
         }catch(Exception ex){
             if(ex instanceof SocketException){
                 if(this.isConnected()) this.onDisconnect.execute();
@@ -106,7 +154,7 @@ public class ChungusSocket {
 
     public void sendCommand(int command){
         try {
-            out.writeInt(command);
+            send(ChungusFrameCodec.encode(command, false));
         }catch(Exception ex){
             if(ex instanceof SocketException){
                 if(this.isConnected()) this.onDisconnect.execute();
@@ -119,11 +167,40 @@ public class ChungusSocket {
 
     public void changeUsername(String oldUsername, String username){
         try {
-            out.writeInt(ChungusProtocol.USERNAME);
-            out.writeUTF(username);
+            send(ChungusFrameCodec.encode(ChungusProtocol.USERNAME, "", username, false),
+                    ChungusFrameCodec.encode(ChungusProtocol.SYSTEM_ANNOUNCEMENT, "",
+                            oldUsername + " has changed their name to " + username + ".", false));
+            this.username = username;
+        }catch(Exception ex){
+            ex.printStackTrace();
+        }
+    }
+
+    public void joinRoom(String room){
+        try {
+            send(ChungusFrameCodec.encode(ChungusProtocol.COMMAND_JOIN_ROOM, "", room, false));
+        }catch(Exception ex){
+            ex.printStackTrace();
+        }
+    }
 
-            out.writeInt(ChungusProtocol.SYSTEM_ANNOUNCEMENT);
-            out.writeUTF(oldUsername + " has changed their name to " + username + ".");
+    /**
+     * Asks the server for up to limit messages from the current room, from
+     * before (or after) the given sequence number. Pass Long.MAX_VALUE to
+     * get the most recent messages. The page is handed to the command
+     * callback as ChungusProtocol.COMMAND_HISTORY with a
+     * ChungusHistoryEntry[], oldest first.
+     */
+    public void requestHistory(boolean older, long sequence, int limit){
+        try {
+            ByteBuffer frame = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + 13);
+            ChungusFrameCodec.putHeader(frame, ChungusProtocol.COMMAND_HISTORY, 0, 13);
+            frame.put((byte) (older ? 0 : 1));
+            frame.putLong(sequence);
+            frame.putInt(limit);
+            frame.flip();
+            
+            send(frame);
         }catch(Exception ex){
             ex.printStackTrace();
         }
@@ -131,13 +208,76 @@ public class ChungusSocket {
 
     public void setMotd(String motd){
         try {
-            out.writeInt(ChungusProtocol.COMMAND_SET_MOTD);
-            out.writeUTF(motd);
+            send(ChungusFrameCodec.encode(ChungusProtocol.COMMAND_SET_MOTD, "", motd, false));
         }catch(Exception ex){
             ex.printStackTrace();
         }
     }
     
+    /**
+     * Writes encoded (array-backed) frames to the server, ahead of any
+     * upload chunks that are waiting.
+     */
+    void send(ByteBuffer... frames) throws IOException {
+        scheduler.send(frames);
+    }
+    
+    /**
+     * Writes a chunk of an upload, once nothing else is waiting to be sent.
+     */
+    void sendBulk(ByteBuffer frame) throws IOException {
+        scheduler.sendBulk(frame);
+    }
+    
+    /**
+     * Picks an ID for a new upload over this connection, and starts
+     * collecting the server's replies about it.
+     */
+    int openUpload(){
+        int id = nextUpload.incrementAndGet();
+        uploads.put(id, new LinkedBlockingQueue<>());
+        return id;
+    }
+    
+    /**
+     * The server's replies about an upload, as FT_UPLOAD_STATUS bodies.
+     */
+    BlockingQueue<ByteBuffer> getUploadStatus(int id){
+        return uploads.get(id);
+    }
+    
+    void closeUpload(int id){
+        uploads.remove(id);
+    }
+    
+    void uploadStatus(ByteBuffer body){
+        if(body.remaining() < 4) return;
+        
+        BlockingQueue<ByteBuffer> status = uploads.get(body.getInt(body.position()));
+        if(status == null) return;
+        
+        // The body is a view of the reader's buffer, so keep a copy.
+        ByteBuffer copy = ByteBuffer.allocate(body.remaining());
+        copy.put(body.duplicate());
+        copy.flip();
+        status.add(copy);
+    }
+    
+    /**
+     * The username this client last gave the server.
+     */
+    public String getUsername(){
+        return username;
+    }
+    
+    /**
+     * The address of the server this is connected to, which is where it
+     * takes uploads and serves downloads.
+     */
+    public String getHost(){
+        return socket.getInetAddress().getHostAddress();
+    }
+    
     public boolean isConnected(){
         return this.socket.isConnected() && !this.socket.isClosed();
     }
@@ -166,49 +306,115 @@ class ChungusSocketThread extends Thread {
     
     @Override
     public void run(){
+        // Only needed once the server sends a deflated frame.
+        ChungusFrameInflater inflater = null;
+        
         try {
-            in = new DataInputStream(socket.getInputStream());
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ChungusSocketOptions.STREAM_BUFFER_SIZE));
+            ByteBuffer scratch = ByteBuffer.allocate(ChungusSocketOptions.STREAM_BUFFER_SIZE);
             
-            while(socket.isConnected()){
-                if(in.available() > 0){
-                    int packetId = in.readInt();
-                    
-                    switch(packetId){
-                        case ChungusProtocol.CHAT_MESSAGE:
-                            String payload = in.readUTF();
-                            this.delegateFor.getMessageReceivedCallback().execute(payload);
-                            break;
-                        case ChungusProtocol.COMMAND_USERS:
-                            String userList = in.readUTF();
-                            this.delegateFor.getCommandReceivedCallback().execute(ChungusProtocol.COMMAND_USERS, userList.split(Pattern.quote("|")));
-                            break;
-                            
-                        case ChungusProtocol.PROTO_MASK_SILENT_COMMAND | ChungusProtocol.COMMAND_USERS:
-                            userList = in.readUTF();
-                            
-                            this.delegateFor.onPropertyUpdated.execute(
-                                PropertyUpdatedCallback.Property.USER_LIST,
-                                userList.split(Pattern.quote("|"))
-                            );
-                            break;
+            // Reading blocks until the next frame arrives, so each packet is
+            // dispatched as soon as its bytes do. Frames this client doesn't
+            // know about are skipped whole.
+            while(!socket.isClosed()){
+                ChungusPacket packet = ChungusFrameCodec.read(in, scratch);
+                
+                if((packet.flags & ChungusFrameCodec.FLAG_DEFLATED) != 0){
+                    if(inflater == null) inflater = new ChungusFrameInflater();
+                    packet = inflater.inflate(packet);
+                }
+                
+                switch(packet.rawPacketId){
+                    case ChungusProtocol.SYSTEM_HANDSHAKE:
+                        ByteBuffer handshake = packet.body();
+                        this.delegateFor.compressing = handshake.remaining() > 4
+                                && (handshake.get(4) & ChungusProtocol.HANDSHAKE_DEFLATE) != 0;
+                        break;
+                        
+                    case ChungusProtocol.CHAT_MESSAGE:
+                        this.delegateFor.getMessageReceivedCallback().execute(packet.getPayload());
+                        break;
+                    case ChungusProtocol.COMMAND_USERS:
+                        String userList = packet.getPayload();
+                        this.delegateFor.getCommandReceivedCallback().execute(ChungusProtocol.COMMAND_USERS, userList.split(Pattern.quote("|")));
+                        break;
+                        
+                    case ChungusProtocol.PROTO_MASK_SILENT_COMMAND | ChungusProtocol.COMMAND_USERS:
+                        userList = packet.getPayload();
+                        
+                        this.delegateFor.onPropertyUpdated.execute(
+                            PropertyUpdatedCallback.Property.USER_LIST,
+                            userList.split(Pattern.quote("|"))
+                        );
+                        break;
+                        
+                    case ChungusProtocol.STATS_REPORT:
+                        this.delegateFor.getCommandReceivedCallback().execute(ChungusProtocol.COMMAND_STATS, packet.getPayload().split("\n"));
+                        break;
+                        
+                    case ChungusProtocol.PRESENCE_JOIN:
+                        this.delegateFor.onPropertyUpdated.execute(PropertyUpdatedCallback.Property.USER_JOINED, packet.getPayload());
+                        break;
+                        
+                    case ChungusProtocol.PRESENCE_LEAVE:
+                        this.delegateFor.onPropertyUpdated.execute(PropertyUpdatedCallback.Property.USER_LEFT, packet.getPayload());
+                        break;
+                        
+                    case ChungusProtocol.PRESENCE_RENAME:
+                        this.delegateFor.onPropertyUpdated.execute(
+                            PropertyUpdatedCallback.Property.USER_RENAMED,
+                            packet.getPayload().split(Pattern.quote("|"), 2)
+                        );
+                        break;
+                        
+                    case ChungusProtocol.HISTORY_PAGE:
+                        ByteBuffer page = packet.body();
+                        ChungusHistoryEntry[] entries = new ChungusHistoryEntry[page.getInt()];
+                        
+                        for(int i = 0; i < entries.length; i++){
+                            long sequence = page.getLong();
+                            long timestamp = page.getLong();
                             
-                        case ChungusProtocol.FT_OFFER:
-                            String fileName = in.readUTF();
-                            long fileSize = in.readLong();
+                            ByteBuffer message = page.slice();
+                            int length = page.getInt();
+                            message.position(4).limit(4 + length);
+                            page.position(page.position() + length);
                             
-                            this.delegateFor.getTransferOfferedCallback().execute(fileName, fileSize);
-                    }
-
+                            entries[i] = new ChungusHistoryEntry(sequence, timestamp, ChungusFrameCodec.getString(message));
+                        }
+                        
+                        this.delegateFor.getCommandReceivedCallback().execute(ChungusProtocol.COMMAND_HISTORY, entries);
+                        break;
+                        
+                    case ChungusProtocol.FT_OFFER:
+                        ByteBuffer body = packet.body();
+                        long fileSize = body.getLong();
+                        
+                        // All zeros if the server didn't say where it's
+                        // stored.
+                        byte[] hash = new byte[ChungusBlobStore.HASH_LENGTH];
+                        body.get(hash);
+                        String contentHash = ChungusBlobStore.toHex(hash);
+                        if(contentHash.matches("0+")) contentHash = null;
+                        
+                        String fileName = ChungusFrameCodec.getString(body);
+                        
+                        this.delegateFor.getTransferOfferedCallback().execute(fileName, fileSize, contentHash);
+                        break;
+                        
+                    case ChungusProtocol.FT_UPLOAD_STATUS:
+                        this.delegateFor.uploadStatus(packet.body());
+                        break;
                 }
-                
-                Thread.sleep(50);
             }
-            
-            this.delegateFor.onDisconnect.execute();
-            this.interrupt();
+        }catch(EOFException | SocketException ex){
+            // The server hung up, or the socket was closed locally.
         }catch(Exception ex){
             ex.printStackTrace();
         }
+        
+        if(inflater != null) inflater.end();
+        this.delegateFor.onDisconnect.execute();
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket and stream tuning shared by the chat client and server.
+ *
+ * Every option can be overridden with a system property:
+ * <ul>
+ *   <li>{@code chunguschat.tcpNoDelay} - disable Nagle's algorithm on chat
+ *   connections (default true). Packets are always written whole and
+ *   flushed explicitly, so there's nothing for Nagle to usefully merge.</li>
+ *   <li>{@code chunguschat.sendBufferSize} and
+ *   {@code chunguschat.receiveBufferSize} - kernel socket buffer sizes in
+ *   bytes (default: left to the OS).</li>
+ *   <li>{@code chunguschat.streamBufferSize} - size of the user space
+ *   buffers wrapped around socket streams (default 8 KiB).</li>
+ *   <li>{@code chunguschat.server.flushCoalesceMicros} - how long a server
+ *   writer waits for more packets before flushing a client's buffer
+ *   (default 0, flush as soon as the queue is empty).</li>
+ * </ul>
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusSocketOptions {
+
+    static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("chunguschat.tcpNoDelay", "true"));
+    static final int SEND_BUFFER_SIZE = Integer.getInteger("chunguschat.sendBufferSize", 0);
+    static final int RECEIVE_BUFFER_SIZE = Integer.getInteger("chunguschat.receiveBufferSize", 0);
+
+    static final int STREAM_BUFFER_SIZE = Integer.getInteger("chunguschat.streamBufferSize", 8192);
+    static final long FLUSH_COALESCE_MICROS = Long.getLong("chunguschat.server.flushCoalesceMicros", 0);
+
+    private ChungusSocketOptions(){}
+
+    /**
+     * Applies the chat connection options to a socket (or to the socket
+     * adaptor of a channel).
+     */
+    static void apply(Socket socket){
+        try {
+            socket.setTcpNoDelay(TCP_NO_DELAY);
+            if(SEND_BUFFER_SIZE > 0) socket.setSendBufferSize(SEND_BUFFER_SIZE);
+            if(RECEIVE_BUFFER_SIZE > 0) socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+        }catch(SocketException ex){
+            System.err.println(ex);
+        }
+    }
+
+}
@@ -23,16 +23,33 @@
  */
 package com.samjakob.chunguschat.socket;
 
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
 
 /**
  *
@@ -45,22 +62,112 @@ public class ChungusSocketServer {
     // ChungusChat File Transfer Port
     public static final int CHUNGUS_CHAT_PORT_FT = 42070;
     
-    private static List<ChungusCommunicationDelegate> chungusClients;
+    // Override the ports above, e.g. to run several nodes on one machine.
+    public static final String PORT_PROPERTY = "chunguschat.server.port";
+    public static final String FT_PORT_PROPERTY = "chunguschat.server.ftPort";
+    
+    // Pending connection backlog for the reactor's listening channel.
+    private static final int REACTOR_BACKLOG = 1024;
+    
+    private static ChungusClientRegistry chungusClients;
+    private static ConcurrentMap<String, ChungusRoom> rooms;
+    // The other nodes this server shares its rooms with, or null.
+    static volatile ChungusCluster cluster;
+    // Where chat messages are kept for history, or null.
+    static volatile ChungusChatLog chatLog;
+    // Where uploaded files are kept, or null.
+    static volatile ChungusBlobStore blobStore;
+    // Shared out between file transfers.
+    static final ChungusBandwidth bandwidth = ChungusBandwidth.fromSystemProperties();
+    private final ChungusServerEngine engine;
+    private final int port;
+    private final int ftPort;
     ServerSocket socket;
+    ServerSocketChannel serverChannel;
 
-    String motd;
+    // Clients disconnected because their outbound queue filled up.
+    static final AtomicLong slowConsumerDisconnects = new AtomicLong();
+    
+    // Published over JMX, and sent to admins who ask for them.
+    static final ChungusServerMetrics metrics = new ChungusServerMetrics();
+    
+    /**
+     * The usernames, separated by commas, allowed to ask for the server's
+     * stats. If it isn't set, only the host (the first client to connect)
+     * can.
+     */
+    public static final String ADMINS_PROPERTY = "chunguschat.server.admins";
     
+    /**
+     * Whether to publish the metrics over JMX (default true). Starting the
+     * platform MBean server takes a noticeable part of a headless server's
+     * startup, so it can be turned off.
+     */
+    public static final String JMX_PROPERTY = "chunguschat.server.jmx";
+    
+    /**
+     * The most connections the file transfer port handles at once (default
+     * 32). Each one can hold a chunk of an upload in memory; any more are
+     * turned away, and their uploaders retry.
+     */
+    public static final String MAX_TRANSFERS_PROPERTY = "chunguschat.server.maxTransfers";
+    
+    private volatile ChungusSlowConsumerPolicy slowConsumerPolicy;
+    private volatile int outboundQueueCapacity;
+
     public ChungusSocketServer(){
-        chungusClients = new ArrayList();
+        this(ChungusServerEngine.fromSystemProperty());
+    }
+    
+    public ChungusSocketServer(ChungusServerEngine engine){
+        this.engine = engine;
+        this.port = Integer.getInteger(PORT_PROPERTY, CHUNGUS_CHAT_PORT);
+        this.ftPort = Integer.getInteger(FT_PORT_PROPERTY, CHUNGUS_CHAT_PORT_FT);
+        this.slowConsumerPolicy = ChungusSlowConsumerPolicy.fromSystemProperty();
+        this.outboundQueueCapacity = ChungusSlowConsumerPolicy.queueCapacityFromSystemProperty();
+        chungusClients = new ChungusClientRegistry();
+        rooms = new ConcurrentHashMap<>();
+        rooms.put(ChungusRoom.LOBBY, new ChungusRoom(ChungusRoom.LOBBY));
         try {
-            socket = new ServerSocket(CHUNGUS_CHAT_PORT);
+            if(engine == ChungusServerEngine.REACTOR){
+                serverChannel = ServerSocketChannel.open();
+                if(ChungusSocketOptions.RECEIVE_BUFFER_SIZE > 0) serverChannel.socket().setReceiveBufferSize(ChungusSocketOptions.RECEIVE_BUFFER_SIZE);
+                serverChannel.bind(new InetSocketAddress(port), REACTOR_BACKLOG);
+            }else{
+                socket = new ServerSocket();
+                if(ChungusSocketOptions.RECEIVE_BUFFER_SIZE > 0) socket.setReceiveBufferSize(ChungusSocketOptions.RECEIVE_BUFFER_SIZE);
+                socket.bind(new InetSocketAddress(port));
+            }
         }catch(IOException ex){
             System.out.println("Failed to initialize server.");
         }
     }
     
-    public void host(){
+    public ChungusServerEngine getEngine(){
+        return this.engine;
+    }
+    
+    /**
+     * Whether the chat port was bound, so the server can be hosted.
+     */
+    public boolean isBound(){
+        if(serverChannel != null) return serverChannel.socket().isBound();
+        return socket != null && socket.isBound();
+    }
+    
+    /**
+     * The port the server listens for chat on. If it was configured as 0,
+     * this is the port the system picked.
+     */
+    public int getPort(){
+        if(serverChannel != null) return serverChannel.socket().getLocalPort();
+        if(socket != null) return socket.getLocalPort();
+        return port;
+    }
+    
+    private void hostThreadPerClient(){
         ChungusSocketServer chungusSocketServer = this;
+        boolean virtual = engine == ChungusServerEngine.VIRTUAL_THREADS;
         
         Thread hostThread = new Thread(() -> {
             try {
@@ -69,195 +176,434 @@ public class ChungusSocketServer {
 
                     ChungusCommunicationDelegate chungusCommunicationDelegate
                             = new ChungusCommunicationDelegate(clientConnection, chungusSocketServer);
-                    chungusCommunicationDelegate.start();
-                    chungusClients.add(chungusCommunicationDelegate);
+                    add(chungusCommunicationDelegate);
+                    chungusCommunicationDelegate.start(virtual);
+                }
+            }catch(IOException ex){
+                ex.printStackTrace();
+            }
+        });
+        hostThread.start();
+    }
+    
+    private void hostReactor(){
+        ChungusSocketServer chungusSocketServer = this;
+        
+        ChungusEventLoop[] eventLoops = new ChungusEventLoop[Math.max(1, ChungusServerEngine.eventLoopCount())];
+        try {
+            for(int i = 0; i < eventLoops.length; i++){
+                eventLoops[i] = new ChungusEventLoop(i);
+                eventLoops[i].start();
+            }
+        }catch(IOException ex){
+            ex.printStackTrace();
+            return;
+        }
+        
+        // Accepting stays blocking on its own thread; each accepted channel is
+        // handed to the event loops round-robin.
+        Thread hostThread = new Thread(() -> {
+            int nextLoop = 0;
+            
+            try {
+                while (serverChannel.isOpen()){
+                    SocketChannel clientConnection = serverChannel.accept();
+                    ChungusSocketOptions.apply(clientConnection.socket());
+                    
+                    ChungusEventLoop eventLoop = eventLoops[nextLoop];
+                    nextLoop = (nextLoop + 1) % eventLoops.length;
+                    
+                    ChungusReactorConnection chungusReactorConnection
+                            = new ChungusReactorConnection(clientConnection, eventLoop, chungusSocketServer);
+                    add(chungusReactorConnection);
+                    eventLoop.register(clientConnection, chungusReactorConnection);
                 }
             }catch(IOException ex){
                 ex.printStackTrace();
             }
         });
         hostThread.start();
+    }
+    
+    public void host(){
+        if(engine == ChungusServerEngine.REACTOR) hostReactor();
+        else hostThreadPerClient();
+        
+        if(Boolean.parseBoolean(System.getProperty(JMX_PROPERTY, "true"))) metrics.register();
+        
+        try {
+            chatLog = ChungusChatLog.fromSystemProperties();
+        }catch(IOException ex){
+            System.out.println("Failed to open the chat log; history won't be kept.");
+            ex.printStackTrace();
+        }
+        
+        cluster = ChungusCluster.fromSystemProperties(port);
+        if(cluster != null) cluster.start();
         
         // File Transfer Socket
         try {
-            ServerSocket ftSocket = new ServerSocket(CHUNGUS_CHAT_PORT_FT);
-            new Thread(() -> {
+            ServerSocketChannel ftChannel = ServerSocketChannel.open();
+            ftChannel.bind(new InetSocketAddress(ftPort));
+            
+            ChungusBlobStore store = ChungusBlobStore.fromSystemProperties();
+            blobStore = store;
+            boolean virtual = engine == ChungusServerEngine.VIRTUAL_THREADS;
+            Semaphore transfers = new Semaphore(Math.max(1, Integer.getInteger(MAX_TRANSFERS_PROPERTY, 32)));
+            
+            ChungusThreads.start("ChungusFileTransferHost", () -> {
                 try {
-                    while (!ftSocket.isClosed()){
-                        Socket clientConnection = ftSocket.accept();
-
-                        DataInputStream input = new DataInputStream(clientConnection.getInputStream());
+                    while (ftChannel.isOpen()){
+                        SocketChannel clientConnection = ftChannel.accept();
                         
-                        String user = input.readUTF();
-                        String fileName = input.readUTF();
-                        long fileLength = input.readLong();
-                        
-                        System.out.println("Downloading: " + fileName + " (" + fileLength + " bytes)");
-                        
-                        File downloadsDirectory = new File("F:\\Downloads");
-                        if(!downloadsDirectory.exists()){
-                            downloadsDirectory = new File(System.getProperty("user.home") + "/Downloads");
+                        if(!transfers.tryAcquire()){
+                            System.out.println("Too many file transfers; turning one away.");
+                            clientConnection.close();
+                            continue;
                         }
                         
-                        File file = new File(downloadsDirectory, fileName);
-                        FileOutputStream fileOut = new FileOutputStream(file);
-                        
-                        long startTime = System.currentTimeMillis();
-                        
-                        for(int i = 0; i < fileLength; i++) {
-                            fileOut.write(input.read());
-                        }
-                        fileOut.flush();
-                        fileOut.close();
-                        
-                        long endTime = System.currentTimeMillis();
-                        
-                        System.out.println("Downloaded in " + (endTime - startTime) + "ms");
-                        broadcastFile(user, fileName, fileLength);
+                        // Each transfer gets its own thread, so a big file
+                        // doesn't hold up everyone else's.
+                        ChungusThreads.start("ChungusFileReceiver", () -> {
+                            try {
+                                receiveFile(clientConnection, store);
+                            }finally{
+                                transfers.release();
+                            }
+                        }, virtual);
                     }
                 }catch(IOException ex){
                     ex.printStackTrace();
                 }
-            }).start();
+            }, virtual);
         }catch(IOException ex){
             ex.printStackTrace();
         }
     }
     
-     public static void broadcastFile(String user, String name, long fileSize){
-        for(ChungusCommunicationDelegate chungusClient : chungusClients){
-            chungusClient.sendMessage(user + " has uploaded a file: " + name + " [" + fileSize + " bytes]");
-            chungusClient.offerFile(name, fileSize);
+    private static void receiveFile(SocketChannel clientConnection, ChungusBlobStore store){
+        try (SocketChannel channel = clientConnection) {
+            ChungusFileReceiver receiver = new ChungusFileReceiver(channel, store, bandwidth);
+            
+            // Only announced once the whole file is in and verified.
+            if(receiver.receive() != null){
+                broadcastFile(receiver.getUser(), receiver.getFileName(), receiver.getFileLength(), receiver.getContentHash());
+            }
+        }catch(IOException ex){
+            ex.printStackTrace();
         }
     }
     
-    public static void broadcastChatMessage(String message){
-        for(ChungusCommunicationDelegate chungusClient : chungusClients){
-            chungusClient.sendMessage(message);
+    /**
+     * Offers an uploaded file to everyone in the uploader's room (or to
+     * everyone, if the uploader isn't connected to chat).
+     */
+    public static void broadcastFile(String user, String name, long fileSize){
+        broadcastFile(user, name, fileSize, null);
+    }
+    
+    /**
+     * Offers a stored file, which clients can download by its SHA-256 (as
+     * hex), to everyone in the uploader's room.
+     */
+    public static void broadcastFile(String user, String name, long fileSize, String contentHash){
+        ChungusSharedFrame announcement = ChungusSharedFrame.of(ChungusProtocol.CHAT_MESSAGE, "",
+                user + " has uploaded a file: " + name + " [" + fileSize + " bytes]");
+        ChungusSharedFrame offer = ChungusSharedFrame.offer(ChungusProtocol.FT_OFFER, name, fileSize,
+                contentHash != null ? ChungusBlobStore.fromHex(contentHash) : null);
+        
+        ChungusConnection uploader = getClient(user);
+        ChungusRoom room = uploader != null ? uploader.room : null;
+        
+        if(room != null){
+            room.broadcast(announcement);
+            room.broadcast(offer);
+            return;
         }
+        
+        broadcast(announcement);
+        broadcast(offer);
+    }
+    
+    public static void broadcastChatMessage(String message){
+        broadcast(ChungusSharedFrame.of(ChungusProtocol.CHAT_MESSAGE, "", message));
     }
     
     public static void broadcastSystemMessage(String message){
-        for(ChungusCommunicationDelegate chungusClient : chungusClients){
-            chungusClient.sendSystemMessage(message);
+        broadcast(ChungusSharedFrame.of(ChungusProtocol.CHAT_MESSAGE, "[SYSTEM] ", message));
+    }
+    
+    /**
+     * Writes the packet to every client in every room, encoding it at most
+     * once per wire format in use.
+     */
+    static void broadcast(ChungusSharedFrame frame){
+        log(null, frame);
+        
+        long startTime = System.nanoTime();
+        for(ChungusConnection chungusClient : chungusClients.clients()){
+            chungusClient.send(frame);
         }
+        metrics.broadcast(System.nanoTime() - startTime);
     }
 
+    /**
+     * Queues a chat message to be appended to the chat log, if one is being
+     * kept.
+     *
+     * @param room the room it was sent to, or null for every room.
+     */
+    static void log(String room, ChungusSharedFrame frame){
+        ChungusChatLog chatLog = ChungusSocketServer.chatLog;
+        if(chatLog == null || frame.getPacketId() != ChungusProtocol.CHAT_MESSAGE) return;
+        
+        // The v4 body is the message's UTF-8, which is what the log keeps.
+        ByteBuffer encoded = frame.encoded(ChungusWireFormat.FRAMED);
+        if(encoded == null) return;
+        encoded.position(encoded.position() + ChungusFrameCodec.HEADER_LENGTH);
+        
+        chatLog.submit(room, encoded);
+    }
+    
+    /**
+     * The usernames of every connected client, in the order they connected.
+     * The returned list is an immutable snapshot.
+     */
     public static List<String> getConnectedUsers(){
-        List<String> users = new ArrayList<>();
-
-        for(ChungusCommunicationDelegate chungusClient : chungusClients){
-            users.add(chungusClient.getUsername());
+        return chungusClients.getUserList().users;
+    }
+    
+    static ChungusConnection getClient(String username){
+        return chungusClients.get(username);
+    }
+    
+    static int getConnectedClientCount(){
+        return chungusClients.size();
+    }
+    
+    /**
+     * Whether the client may ask for the server's stats.
+     */
+    static boolean isAdmin(ChungusConnection client){
+        String admins = System.getProperty(ADMINS_PROPERTY);
+        
+        if(admins == null){
+            for(ChungusConnection host : chungusClients.clients()) return host == client;
+            return false;
         }
-
-        return users;
+        
+        for(String admin : admins.split(",")){
+            if(admin.trim().equals(client.getUsername())) return true;
+        }
+        
+        return false;
+    }
+    
+    static void renamed(ChungusConnection client, String oldUsername, String newUsername){
+        chungusClients.rename(client, oldUsername, newUsername);
+        
+        ChungusRoom room = client.room;
+        if(room != null) room.renamed(client, oldUsername, newUsername);
     }
-
-    public void setMotd(String motd) { this.motd = motd; }
-    public String getMotd(){ return this.motd; }
     
-    public static void remove(ChungusCommunicationDelegate client){
-        chungusClients.remove(client);
-        broadcastSystemMessage(client.getUsername() + " has disconnected.");
-        client.interrupt();
+    /**
+     * Moves a client into the named room, creating the room if need be.
+     * The client's old room is dropped if that leaves it empty.
+     */
+    static ChungusRoom joinRoom(ChungusConnection client, String name){
+        ChungusRoom oldRoom = client.room;
+        if(oldRoom != null && oldRoom.getName().equals(name)) return oldRoom;
+        
+        if(oldRoom != null) leaveRoom(client, oldRoom);
+        
+        ChungusRoom room;
+        while(true){
+            room = rooms.computeIfAbsent(name, ChungusRoom::new);
+            if(room.add(client)) break;
+            
+            // The room's last member left before we got in; drop it (if they
+            // haven't already) and make a fresh one.
+            rooms.remove(name, room);
+        }
+        
+        client.room = room;
+        return room;
+    }
+    
+    private static void leaveRoom(ChungusConnection client, ChungusRoom room){
+        room.remove(client);
+        if(room.isClosed()) rooms.remove(room.getName(), room);
+    }
+    
+    static ChungusRoom getRoom(String name){
+        return rooms.get(name);
+    }
+    
+    static Collection<ChungusRoom> getRooms(){
+        return rooms.values();
+    }
+    
+    /**
+     * Applies a change to the named room, creating the room if need be.
+     * The action returns false if the room had been closed, in which case
+     * it's tried again on a fresh room.
+     */
+    static void withRoom(String name, Predicate<ChungusRoom> action){
+        ChungusRoom room;
+        do {
+            room = rooms.computeIfAbsent(name, ChungusRoom::new);
+            if(room.isClosed()) rooms.remove(name, room);
+        }while(!action.test(room));
+        
+        if(room.isClosed()) rooms.remove(name, room);
+    }
+    
+    /**
+     * The names of the rooms that currently have anyone in them (along with
+     * the lobby), sorted alphabetically.
+     */
+    public static List<String> getRoomNames(){
+        List<String> names = new ArrayList<>(rooms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+    
+    /**
+     * The lobby's MOTD. Every other room has its own, set by its members.
+     */
+    public void setMotd(String motd) { rooms.get(ChungusRoom.LOBBY).setMotd(motd); }
+    public String getMotd(){ return rooms.get(ChungusRoom.LOBBY).getMotd(); }
+    
+    /**
+     * Sets what happens to clients that can't keep up. Applies to clients
+     * that connect after the change.
+     */
+    public void setSlowConsumerPolicy(ChungusSlowConsumerPolicy slowConsumerPolicy){ this.slowConsumerPolicy = slowConsumerPolicy; }
+    public ChungusSlowConsumerPolicy getSlowConsumerPolicy(){ return this.slowConsumerPolicy; }
+    
+    /**
+     * Sets how many packets may be queued for a single client before the
+     * slow consumer policy kicks in. Applies to clients that connect after
+     * the change.
+     */
+    public void setOutboundQueueCapacity(int outboundQueueCapacity){ this.outboundQueueCapacity = outboundQueueCapacity; }
+    public int getOutboundQueueCapacity(){ return this.outboundQueueCapacity; }
+    
+    /**
+     * The number of packets dropped, across all connected clients, because
+     * they weren't reading fast enough.
+     */
+    public static long getDroppedFrames(){
+        long dropped = 0;
+        
+        for(ChungusConnection chungusClient : chungusClients.clients()){
+            dropped += chungusClient.getDroppedFrames();
+        }
+        
+        return dropped;
+    }
+    
+    /**
+     * The deepest outbound queue of any connected client.
+     */
+    public static int getMaxOutboundQueueDepth(){
+        int depth = 0;
+        
+        for(ChungusConnection chungusClient : chungusClients.clients()){
+            depth = Math.max(depth, chungusClient.getOutboundQueueDepth());
+        }
+        
+        return depth;
+    }
+    
+    public static long getSlowConsumerDisconnects(){
+        return slowConsumerDisconnects.get();
+    }
+    
+    /**
+     * Limits how fast files can be sent to and from the server, in bytes a
+     * second: all transfers together, and each user's. 0 means no limit.
+     * Applies to transfers already going, too.
+     */
+    public static void setTransferLimits(long total, long perUser){
+        bandwidth.setLimits(total, perUser);
+    }
+    
+    public static long getTransferLimit(){
+        return bandwidth.getTotalLimit();
+    }
+    
+    public static long getUserTransferLimit(){
+        return bandwidth.getUserLimit();
+    }
+    
+    static void add(ChungusConnection client){
+        metrics.connectionOpened();
+        chungusClients.add(client);
+        joinRoom(client, ChungusRoom.LOBBY);
+    }
+    
+    static void remove(ChungusConnection client){
+        if(!chungusClients.remove(client)) return;
+        metrics.connectionClosed();
+        
+        ChungusRoom room = client.room;
+        if(room != null){
+            leaveRoom(client, room);
+            room.publish(ChungusSharedFrame.of(ChungusProtocol.CHAT_MESSAGE, "[SYSTEM] ", client.getUsername() + " has disconnected."));
+        }
+        
+        client.closeUploads();
+        client.disconnect();
     }
     
 }
 
-class ChungusCommunicationDelegate extends Thread {
+class ChungusCommunicationDelegate extends ChungusConnection implements Runnable {
     
     private final Socket socket;
-    private final ChungusSocketServer delegateFor;
+    private Thread thread;
+    private Thread writerThread;
     
-    private DataInputStream in;
-    private DataOutputStream out;
-
-    private String username;
-    private boolean handshakeCompleted;
+    private BufferedInputStream in;
+    private OutputStream out;
+    
+    // Only touched by the writer thread.
+    private final byte[] writeBuffer;
+    private int buffered;
     
     public ChungusCommunicationDelegate(Socket socket, ChungusSocketServer delegateFor){
+        super(delegateFor);
         this.socket = socket;
-        this.delegateFor = delegateFor;
-        this.handshakeCompleted = false;
+        this.writeBuffer = new byte[ChungusSocketOptions.STREAM_BUFFER_SIZE];
+    }
+    
+    public void start(boolean virtual){
+        try {
+            ChungusSocketOptions.apply(socket);
+            out = socket.getOutputStream();
+        }catch(IOException ex){
+            ex.printStackTrace();
+        }
+        
+        thread = ChungusThreads.start("ChungusCommunicationDelegate", this, virtual);
+        writerThread = ChungusThreads.start("ChungusCommunicationDelegate-writer", this::writeLoop, virtual);
     }
     
     @Override
     public void run(){
         try {
-            in = new DataInputStream(socket.getInputStream());
-            out = new DataOutputStream(socket.getOutputStream());
+            in = new BufferedInputStream(countingBytesIn(socket.getInputStream()), ChungusSocketOptions.STREAM_BUFFER_SIZE);
+            DataInputStream input = new DataInputStream(in);
+            // Frames that fit are read into this rather than a new array.
+            ByteBuffer scratch = ByteBuffer.allocate(ChungusSocketOptions.STREAM_BUFFER_SIZE);
             
             connectionLoop: while(socket.isConnected()){
                 try {
-                    int packetId = in.readInt();
-                    int rawPacketId = packetId;
-                    
-                    boolean isSilentCommand = (packetId >>> 7) > 0;
-                    packetId &= 0b01111111;
-
-                    switch(packetId){
-                        case ChungusProtocol.SYSTEM_HANDSHAKE:
-                            int clientProtocolVersion = in.readInt();
-                            out.writeInt(ChungusProtocol.SYSTEM_HANDSHAKE);
-                            out.writeInt(ChungusProtocol.PROTOCOL_VERSION);
-
-                            this.handshakeCompleted = clientProtocolVersion == ChungusProtocol.PROTOCOL_VERSION;
-                    }
-
-                    if(handshakeCompleted) switch(packetId) {
-
-                        case ChungusProtocol.CHAT_MESSAGE:
-                            String payload = in.readUTF();
-                            this.delegateFor.broadcastChatMessage(payload);
-                            break;
-
-                        case ChungusProtocol.USERNAME:
-                            username = in.readUTF();
-                            break;
-
-                        case ChungusProtocol.COMMAND_USERS:
-                            out.writeInt(rawPacketId);
-                            out.writeUTF(String.join("|", this.delegateFor.getConnectedUsers()));
-                            break;
-
-                        case ChungusProtocol.SYSTEM_ANNOUNCEMENT:
-                            String announcement = in.readUTF();
-                            this.delegateFor.broadcastChatMessage("[SYSTEM] " + announcement);
-                            break;
-
-                        case ChungusProtocol.COMMAND_SET_MOTD:
-                            String motd = in.readUTF();
-                            this.delegateFor.setMotd(motd);
-                            break;
-
-                        case ChungusProtocol.MOTD:
-                            out.writeInt(ChungusProtocol.CHAT_MESSAGE);
-                            String serverMotd = this.delegateFor.getMotd();
-
-                            if(serverMotd != null) out.writeUTF("[MOTD] " + this.delegateFor.getMotd());
-                            else out.writeUTF("[MOTD] Welcome to " + this.delegateFor.getConnectedUsers().get(0) + "'s server.");
-                            break;
-                            
-                        default:
-                            System.out.println("Received unknown command: " + packetId);
-                    } else {
-                        out.writeInt(ChungusProtocol.CHAT_MESSAGE);
-                        out.writeUTF("[SYSTEM] You are not on the correct version. This server is running " + 
-                                ChungusProtocolVersionMap.forProtocolVersion(ChungusProtocol.PROTOCOL_VERSION).getVersionName()
-                                + ".");
-                        out.flush();
-                        
-                        while(in.available() > 0) in.read();
-                        
-                        ChungusSocketServer.remove(this);
-                        this.socket.close();
-                        break connectionLoop;
-                    }
-
-                    Thread.sleep(50);
+                    if(wireFormat == null) wireFormat = sniffWireFormat();
+                    if(!handlePacket(wireFormat.read(input, scratch))) break connectionLoop;
                 }catch(Exception ex){
-                    if(ex instanceof SocketException){
-                        while(in.available() > 0) in.read();
+                    if(ex instanceof SocketException || ex instanceof EOFException){
                         
                         ChungusSocketServer.remove(this);
                         this.socket.close();
@@ -271,36 +617,145 @@ class ChungusCommunicationDelegate extends Thread {
             ex.printStackTrace();
         }
     }
-
-    public void sendMessage(String message){
+    
+    /**
+     * Counts what's read from the socket, underneath the buffer so that it
+     * adds up once per read rather than once per packet.
+     */
+    private static InputStream countingBytesIn(InputStream socketIn){
+        return new FilterInputStream(socketIn){
+            @Override
+            public int read() throws IOException {
+                int read = super.read();
+                if(read >= 0) ChungusSocketServer.metrics.bytesIn(1);
+                return read;
+            }
+            
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if(read > 0) ChungusSocketServer.metrics.bytesIn(read);
+                return read;
+            }
+        };
+    }
+    
+    /**
+     * Peeks at the first byte the client sends to work out its wire format.
+     */
+    private ChungusWireFormat sniffWireFormat() throws IOException {
+        in.mark(1);
+        int firstByte = in.read();
+        if(firstByte < 0) throw new EOFException();
+        in.reset();
+        
+        return ChungusWireFormat.sniff(firstByte);
+    }
+    
+    /**
+     * Drains the outbound queue onto the socket, so that only this thread
+     * ever blocks on a slow client.
+     *
+     * Frames are copied into a write buffer that is flushed once there is
+     * nothing left to send (or, if a coalescing budget is configured, once
+     * nothing more has arrived within it), so a burst of broadcasts goes out
+     * in as few segments as possible while a lone message is flushed at once.
+     * Frames are compressed here, if the client asked for that, so that
+     * only frames that are actually written pass through its context.
+     */
+    private void writeLoop(){
         try {
-            out.writeInt(ChungusProtocol.CHAT_MESSAGE);
-            out.writeUTF(message);
-        }catch(Exception ex){
-            ex.printStackTrace();
+            ByteBuffer frame;
+            while((frame = outbound.take()) != null){
+                ChungusSocketServer.metrics.packetOut(wireFormat, frame);
+                write(compress(frame));
+                
+                while((frame = nextFrame()) != null){
+                    ChungusSocketServer.metrics.packetOut(wireFormat, frame);
+                    write(compress(frame));
+                }
+                
+                flush();
+            }
+        }catch(InterruptedException | IOException ex){
+            // The client has gone away; the reader will clean up after it.
+        }
+        
+        endCompression();
+        closeSocket();
+    }
+    
+    private ByteBuffer nextFrame() throws InterruptedException {
+        if(ChungusSocketOptions.FLUSH_COALESCE_MICROS <= 0) return outbound.poll();
+        return outbound.poll(ChungusSocketOptions.FLUSH_COALESCE_MICROS, TimeUnit.MICROSECONDS);
+    }
+    
+    private void write(ByteBuffer frame) throws IOException {
+        while(frame.hasRemaining()){
+            if(buffered == writeBuffer.length) flush();
+            
+            int length = Math.min(frame.remaining(), writeBuffer.length - buffered);
+            frame.get(writeBuffer, buffered, length);
+            buffered += length;
         }
     }
     
-    public void sendSystemMessage(String message){
+    private void flush() throws IOException {
+        if(buffered == 0) return;
+        
+        out.write(writeBuffer, 0, buffered);
+        ChungusSocketServer.metrics.bytesOut(buffered);
+        buffered = 0;
+    }
+    
+    @Override
+    void wakeWriter(){
+        // The writer is already waiting on the queue.
+    }
+    
+    @Override
+    void holdReads(long nanos){
+        // Only ever called on the reader, so it can just wait.
         try {
-            out.writeInt(ChungusProtocol.CHAT_MESSAGE);
-            out.writeUTF("[SYSTEM] " + message);
-        }catch(Exception ex){
-            ex.printStackTrace();
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
         }
     }
-
-    public String getUsername(){
-        return username;
+    
+    @Override
+    void holdReads(CompletableFuture<?> until){
+        try {
+            until.get();
+        }catch(InterruptedException ex){
+            Thread.currentThread().interrupt();
+        }catch(ExecutionException ex){
+            // Whatever failed has already dealt with it.
+        }
+    }
+    
+    @Override
+    void abort(){
+        closeSocket();
+    }
+    
+    @Override
+    SocketAddress getRemoteAddress(){
+        return socket.getRemoteSocketAddress();
     }
     
-    public void offerFile(String name, long size){
+    @Override
+    void disconnect(){
+        // The writer closes the socket once it has written what's left.
+        outbound.close();
+        if(writerThread == null) closeSocket();
+    }
+    
+    private void closeSocket(){
         try {
-            out.writeInt(ChungusProtocol.FT_OFFER);
-            out.writeUTF(name);
-            out.writeLong(size);
-        }catch(Exception ex){
-            ex.printStackTrace();
+            this.socket.close();
+        }catch(IOException ex){
+            System.err.println(ex);
         }
     }
     
@@ -0,0 +1,83 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.lang.reflect.Method;
+
+/**
+ * Starts the blocking worker threads used by the server and file transfers,
+ * either as ordinary platform threads or as virtual threads.
+ *
+ * The project still targets Java 8, so virtual threads are looked up
+ * reflectively; on a runtime older than Java 21 a platform thread is used
+ * instead.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusThreads {
+
+    public static final String VIRTUAL_THREADS_PROPERTY = "chunguschat.virtualThreads";
+
+    // Thread#startVirtualThread(Runnable), or null before Java 21.
+    private static final Method START_VIRTUAL_THREAD = findStartVirtualThread();
+
+    private ChungusThreads(){}
+
+    /**
+     * Whether virtual threads were requested with the
+     * {@code chunguschat.virtualThreads} system property.
+     */
+    static boolean virtualThreadsRequested(){
+        return Boolean.getBoolean(VIRTUAL_THREADS_PROPERTY);
+    }
+
+    static boolean virtualThreadsAvailable(){
+        return START_VIRTUAL_THREAD != null;
+    }
+
+    static Thread start(String name, Runnable task, boolean virtual){
+        if(virtual && START_VIRTUAL_THREAD != null){
+            try {
+                Thread thread = (Thread) START_VIRTUAL_THREAD.invoke(null, task);
+                thread.setName(name);
+                return thread;
+            }catch(ReflectiveOperationException ex){
+                ex.printStackTrace();
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    private static Method findStartVirtualThread(){
+        try {
+            return Thread.class.getMethod("startVirtualThread", Runnable.class);
+        }catch(NoSuchMethodException ex){
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+/**
+ * A token bucket: a rate limit that lets through short bursts.
+ *
+ * The bucket fills at the rate (in bytes a second) up to a second's worth.
+ * Taking more than it holds puts it into debt, and the caller waits until
+ * the debt would have been paid off. Callers queue up in the order they
+ * took from the bucket, however much each one took.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusTokenBucket {
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // Bytes a second, or 0 for no limit.
+    private long rate;
+    private double tokens;
+    private long refilled;
+
+    ChungusTokenBucket(long rate){
+        this.refilled = System.nanoTime();
+        setRate(rate);
+    }
+
+    synchronized void setRate(long rate){
+        refill();
+        this.rate = Math.max(0, rate);
+        // Starts full, so a new (or newly raised) limit doesn't hold up
+        // what's already going.
+        this.tokens = this.rate;
+    }
+
+    synchronized long getRate(){
+        return rate;
+    }
+
+    /**
+     * Takes the bytes from the bucket, whether or not it has them.
+     *
+     * @return how long, in nanoseconds, to wait before sending them.
+     */
+    synchronized long reserve(long bytes){
+        if(rate == 0) return 0;
+
+        refill();
+        tokens -= bytes;
+
+        return tokens >= 0 ? 0 : (long) (-tokens * NANOS_PER_SECOND / rate);
+    }
+
+    private void refill(){
+        long now = System.nanoTime();
+        tokens = Math.min(rate, tokens + (double) (now - refilled) * rate / NANOS_PER_SECOND);
+        refilled = now;
+    }
+
+}
@@ -0,0 +1,274 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The server's side of a chunked upload that's in progress.
+ *
+ * Chunks are written straight to their place in a part file in the blob
+ * store's incoming directory, which is allocated at its full size up
+ * front. Any number of connections can send chunks of the same upload at
+ * once. Which chunks have arrived is kept in a
+ * state file alongside it (with the file length, chunk size and checksums
+ * it was started with), so an upload that's interrupted - even by the
+ * server restarting - can carry on where it left off. Once every chunk is
+ * in, they're all checked again, along with the whole file's SHA-256,
+ * before the part file is moved into the store.
+ *
+ * <pre>
+ * &lt;transfer ID&gt;.part   the file so far
+ * &lt;transfer ID&gt;.state  long file length, int chunk size, int chunk
+ *                      count, int[] checksums, byte[] received flags
+ * </pre>
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusUpload {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".state";
+
+    final String transferId;
+    final String user;
+    final String fileName;
+    final long fileLength;
+    final String contentHash;
+    final int chunkSize;
+    private final int[] checksums;
+
+    private final ChungusBlobStore store;
+    private final File partFile;
+    private final File stateFile;
+    private final FileChannel data;
+    private final RandomAccessFile state;
+    private final long receivedOffset;
+
+    // Guarded by this.
+    private final BitSet received;
+    private boolean completed;
+
+    // Connections currently sending this upload; see ChungusFileReceiver.
+    int connections;
+
+    private ChungusUpload(ChungusBlobStore store, String transferId, String user, String fileName, long fileLength, String contentHash, int chunkSize, int[] checksums) throws IOException {
+        this.transferId = transferId;
+        this.user = user;
+        this.fileName = fileName;
+        this.fileLength = fileLength;
+        this.contentHash = contentHash;
+        this.chunkSize = chunkSize;
+        this.checksums = checksums;
+
+        this.store = store;
+        this.partFile = new File(store.getIncomingDirectory(), transferId + PART_SUFFIX);
+        this.stateFile = new File(store.getIncomingDirectory(), transferId + STATE_SUFFIX);
+        this.receivedOffset = 8 + 4 + 4 + 4L * checksums.length;
+        this.received = new BitSet(checksums.length);
+
+        if(!loadState()) writeState();
+
+        this.data = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.state = new RandomAccessFile(stateFile, "rw");
+    }
+
+    /**
+     * Opens the upload, picking up any chunks received for it before.
+     */
+    static ChungusUpload open(ChungusBlobStore store, String transferId, String user, String fileName, long fileLength, String contentHash, int chunkSize, int[] checksums) throws IOException {
+        return new ChungusUpload(store, transferId, user, fileName, fileLength, contentHash, chunkSize, checksums);
+    }
+
+    /**
+     * Whether a new connection describes this same upload.
+     */
+    boolean matches(String user, String fileName, long fileLength, String contentHash, int chunkSize, int[] checksums){
+        return this.user.equals(user) && this.fileName.equals(fileName)
+                && this.fileLength == fileLength && this.contentHash.equals(contentHash)
+                && this.chunkSize == chunkSize && Arrays.equals(this.checksums, checksums);
+    }
+
+    int getChunkCount(){
+        return checksums.length;
+    }
+
+    /**
+     * Checks a chunk against its checksum and, if it matches, writes it to
+     * the part file.
+     *
+     * @param chunk the chunk's bytes; not consumed.
+     * @return false if the chunk didn't match its checksum.
+     */
+    boolean write(int index, ByteBuffer chunk) throws IOException {
+        if(ChungusChunkedTransfer.checksum(chunk) != checksums[index]) return false;
+
+        // Positional writes, so chunks can be written from several
+        // connections at once.
+        ByteBuffer bytes = chunk.duplicate();
+        long offset = ChungusChunkedTransfer.chunkOffset(index, chunkSize);
+        while(bytes.hasRemaining()) data.write(bytes, offset + bytes.position());
+
+        synchronized(this){
+            if(!received.get(index)){
+                received.set(index);
+                markReceived(index, true);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * The (first chunk, chunk count) ranges that haven't been received yet.
+     */
+    synchronized List<int[]> getMissingRanges(){
+        if(completed) return new ArrayList<>();
+
+        List<Integer> missing = new ArrayList<>();
+        for(int i = received.nextClearBit(0); i < checksums.length; i = received.nextClearBit(i + 1)){
+            missing.add(i);
+        }
+
+        return ChungusChunkedTransfer.ranges(missing);
+    }
+
+    /**
+     * If every chunk has been received, checks them all against their
+     * checksums again, and the file against its SHA-256, and moves it into
+     * the store. Chunks that fail are marked as missing.
+     *
+     * @param buffer scratch space of at least chunkSize bytes.
+     * @return the stored blob, or null if it isn't finished, or if it was
+     * already finished by another call.
+     * @throws ProtocolException if every chunk matches but the file doesn't
+     * match its SHA-256, in which case the upload is thrown away.
+     */
+    synchronized File complete(ByteBuffer buffer) throws IOException {
+        if(completed || received.cardinality() < checksums.length) return null;
+
+        MessageDigest digest = ChungusBlobStore.newDigest();
+        boolean verified = true;
+
+        for(int i = 0; i < checksums.length; i++){
+            ChungusChunkedTransfer.readChunk(data, buffer, i, fileLength, chunkSize);
+            digest.update(buffer.duplicate());
+
+            if(ChungusChunkedTransfer.checksum(buffer) != checksums[i]){
+                received.clear(i);
+                markReceived(i, false);
+                verified = false;
+            }
+        }
+
+        if(!verified) return null;
+
+        data.force(true);
+        close();
+        completed = true;
+
+        if(!ChungusBlobStore.toHex(digest.digest()).equals(contentHash)){
+            partFile.delete();
+            stateFile.delete();
+            throw new ProtocolException("Upload of " + fileName + " doesn't match its SHA-256");
+        }
+
+        File blob = store.put(contentHash, partFile);
+        stateFile.delete();
+        return blob;
+    }
+
+    /**
+     * Closes the upload's files, leaving them on disk so it can be resumed.
+     */
+    synchronized void close(){
+        try {
+            data.close();
+            state.close();
+        }catch(IOException ex){
+            ex.printStackTrace();
+        }
+    }
+
+    // Called with the lock held.
+    private void markReceived(int index, boolean value) throws IOException {
+        state.seek(receivedOffset + index);
+        state.write(value ? 1 : 0);
+    }
+
+    /**
+     * Loads which chunks have been received from the state file, if there
+     * is one for this same upload.
+     */
+    private boolean loadState() throws IOException {
+        if(!stateFile.isFile() || !partFile.isFile()) return false;
+        if(stateFile.length() != receivedOffset + checksums.length) return false;
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+            if(in.readLong() != fileLength || in.readInt() != chunkSize || in.readInt() != checksums.length) return false;
+            for(int checksum : checksums){
+                if(in.readInt() != checksum) return false;
+            }
+
+            byte[] flags = new byte[checksums.length];
+            in.readFully(flags);
+            for(int i = 0; i < flags.length; i++){
+                if(flags[i] != 0) received.set(i);
+            }
+        }
+
+        return true;
+    }
+
+    private void writeState() throws IOException {
+        try (RandomAccessFile part = new RandomAccessFile(partFile, "rw")) {
+            part.setLength(0);
+            part.setLength(fileLength);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(stateFile.toPath()))) {
+            out.writeLong(fileLength);
+            out.writeInt(chunkSize);
+            out.writeInt(checksums.length);
+            for(int checksum : checksums) out.writeInt(checksum);
+            out.write(new byte[checksums.length]);
+        }
+    }
+
+}
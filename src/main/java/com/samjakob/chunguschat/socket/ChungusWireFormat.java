@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The two ways a client can frame its packets on the wire.
+ *
+ * The server works out which one a client is using from the first byte it
+ * sends (see {@link #sniff(int)}) and uses the same format for everything it
+ * sends back.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+enum ChungusWireFormat {
+
+    /**
+     * Protocol version 3: int packet IDs followed by a payload whose shape
+     * depends on the packet. See {@link ChungusPacketCodec}.
+     */
+    LEGACY(ChungusProtocol.LEGACY_PROTOCOL_VERSION, ChungusPacketCodec.MAX_PACKET_SIZE) {
+        @Override
+        ChungusPacket decode(ByteBuffer buffer) throws IOException {
+            return ChungusPacketCodec.decode(buffer);
+        }
+
+        @Override
+        ChungusPacket read(DataInputStream in, ByteBuffer scratch) throws IOException {
+            return ChungusPacketCodec.read(in);
+        }
+
+        @Override
+        ByteBuffer encode(int packetId, int value){
+            return ChungusPacketCodec.encode(packetId, value);
+        }
+
+        @Override
+        ByteBuffer encode(int packetId, String prefix, String payload, boolean direct) throws IOException {
+            return ChungusPacketCodec.encode(packetId, prefix, payload, direct);
+        }
+
+        @Override
+        ByteBuffer encodeOffer(int packetId, String name, long size, byte[] contentHash, boolean direct) throws IOException {
+            // v3 offers have no room for the hash, so v3 clients can't
+            // download what's offered.
+            return ChungusPacketCodec.encode(packetId, name, size, direct);
+        }
+
+        @Override
+        boolean supports(int packetId){
+            // v3 clients can't skip packets they don't know, so only send
+            // them the ones they do.
+            switch(packetId){
+                case ChungusProtocol.PRESENCE_JOIN:
+                case ChungusProtocol.PRESENCE_LEAVE:
+                case ChungusProtocol.PRESENCE_RENAME:
+                case ChungusProtocol.STATS_REPORT:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+    },
+
+    /**
+     * Protocol version 4: length-prefixed frames. See
+     * {@link ChungusFrameCodec}.
+     */
+    FRAMED(ChungusProtocol.PROTOCOL_VERSION, ChungusFrameCodec.HEADER_LENGTH + ChungusFrameCodec.MAX_BODY_LENGTH) {
+        @Override
+        ChungusPacket decode(ByteBuffer buffer) throws IOException {
+            return ChungusFrameCodec.decode(buffer);
+        }
+
+        @Override
+        ChungusPacket read(DataInputStream in, ByteBuffer scratch) throws IOException {
+            return ChungusFrameCodec.read(in, scratch);
+        }
+
+        @Override
+        ByteBuffer encode(int packetId, int value){
+            return ChungusFrameCodec.encode(packetId, value, false);
+        }
+
+        @Override
+        ByteBuffer encode(int packetId, String prefix, String payload, boolean direct) throws IOException {
+            return ChungusFrameCodec.encode(packetId, prefix, payload, direct);
+        }
+
+        @Override
+        ByteBuffer encodeOffer(int packetId, String name, long size, byte[] contentHash, boolean direct) throws IOException {
+            return ChungusFrameCodec.encode(packetId, size, contentHash, name, direct);
+        }
+    };
+
+    // The handshake version a client using this format must send.
+    final int protocolVersion;
+    // The largest packet, in bytes, a client using this format can send.
+    final int maxPacketLength;
+
+    ChungusWireFormat(int protocolVersion, int maxPacketLength){
+        this.protocolVersion = protocolVersion;
+        this.maxPacketLength = maxPacketLength;
+    }
+
+    /**
+     * Works out a client's wire format from the first byte it sent.
+     *
+     * A v3 client always opens with its handshake's int packet ID, whose
+     * first byte is 0; a v4 frame starts with the packet ID itself, and the
+     * handshake's ID is non-zero.
+     */
+    static ChungusWireFormat sniff(int firstByte){
+        return firstByte == 0 ? LEGACY : FRAMED;
+    }
+
+    /**
+     * Attempts to decode a single packet from the buffer, returning null
+     * (and leaving the buffer untouched) if it isn't all there yet.
+     */
+    abstract ChungusPacket decode(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Reads a single packet from a blocking stream. The scratch buffer may
+     * be used to hold the packet, so the packet is only valid until the
+     * next read.
+     */
+    abstract ChungusPacket read(DataInputStream in, ByteBuffer scratch) throws IOException;
+
+    abstract ByteBuffer encode(int packetId, int value);
+
+    abstract ByteBuffer encode(int packetId, String prefix, String payload, boolean direct) throws IOException;
+
+    abstract ByteBuffer encodeOffer(int packetId, String name, long size, byte[] contentHash, boolean direct) throws IOException;
+
+    /**
+     * Whether a client using this format understands the given packet.
+     */
+    boolean supports(int packetId){
+        return true;
+    }
+
+}
@@ -14,7 +14,13 @@ public interface PropertyUpdatedCallback {
     void execute(Property property, Object data);
     
     static enum Property {
-        USER_LIST;
+        // data is the whole list, as a String[].
+        USER_LIST,
+        // data is the username that joined or left.
+        USER_JOINED,
+        USER_LEFT,
+        // data is a String[] of the old and new username.
+        USER_RENAMED;
     }
     
 }
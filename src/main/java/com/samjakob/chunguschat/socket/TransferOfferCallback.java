@@ -11,6 +11,11 @@ package com.samjakob.chunguschat.socket;
  */
 public interface TransferOfferCallback {
     
-    void execute(String fileName, long fileSize);
+    /**
+     * @param contentHash the SHA-256 the server stores the file by, as hex,
+     * which {@link ChungusFileDownload} downloads it with; or null if it
+     * can't be downloaded.
+     */
+    void execute(String fileName, long fileSize, String contentHash);
     
 }
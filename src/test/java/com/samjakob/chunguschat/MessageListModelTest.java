@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The message list's ring buffer, as messages are added at both ends.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class MessageListModelTest {
+
+    private MessageListModel model;
+    private List<String> events;
+
+    @Before
+    public void setUp(){
+        model = new MessageListModel(4, () -> {});
+        events = new ArrayList<>();
+        model.addListDataListener(new ListDataListener(){
+            @Override
+            public void intervalAdded(ListDataEvent event){
+                events.add("added " + event.getIndex0() + "-" + event.getIndex1());
+            }
+
+            @Override
+            public void intervalRemoved(ListDataEvent event){
+                events.add("removed " + event.getIndex0() + "-" + event.getIndex1());
+            }
+
+            @Override
+            public void contentsChanged(ListDataEvent event){
+                events.add("changed");
+            }
+        });
+    }
+
+    @Test
+    public void appendEvictsTheOldest(){
+        assertTrue(append("a", "b", "c"));
+        assertTrue(append("d", "e"));
+
+        assertEquals(Arrays.asList("b", "c", "d", "e"), contents());
+        assertEquals(Arrays.asList("added 0-2", "removed 0-0", "added 2-3"), events);
+    }
+
+    @Test
+    public void appendBiggerThanTheBufferOnlyReportsWhatListenersSaw(){
+        append("a", "b");
+        events.clear();
+
+        append("c", "d", "e", "f", "g", "h");
+
+        assertEquals(Arrays.asList("e", "f", "g", "h"), contents());
+        assertEquals(Arrays.asList("removed 0-1", "added 0-3"), events);
+    }
+
+    @Test
+    public void appendingNothingIsNotAChange(){
+        assertFalse(append());
+        assertEquals(Collections.<String>emptyList(), events);
+    }
+
+    @Test
+    public void prependWrapsRoundTheStart(){
+        // The list starts at the front of the buffer, so older messages go
+        // at the back.
+        append("c", "d");
+        events.clear();
+
+        assertEquals(2, model.prepend(Arrays.asList("a", "b")));
+
+        assertEquals(Arrays.asList("a", "b", "c", "d"), contents());
+        assertEquals(Collections.singletonList("added 0-1"), events);
+
+        append("e");
+        assertEquals(Arrays.asList("b", "c", "d", "e"), contents());
+    }
+
+    @Test
+    public void prependKeepsTheNewestThatFit(){
+        append("d", "e");
+
+        assertEquals(2, model.prepend(Arrays.asList("a", "b", "c")));
+        assertEquals(Arrays.asList("b", "c", "d", "e"), contents());
+    }
+
+    @Test
+    public void prependToAFullListAddsNothing(){
+        append("a", "b", "c", "d");
+        events.clear();
+
+        assertEquals(0, model.prepend(Arrays.asList("older")));
+        assertEquals(Arrays.asList("a", "b", "c", "d"), contents());
+        assertEquals(Collections.<String>emptyList(), events);
+    }
+
+    @Test
+    public void clearEmptiesTheList(){
+        append("a", "b", "c");
+        events.clear();
+
+        model.clear();
+        model.clear();
+
+        assertEquals(0, model.getSize());
+        assertEquals(Collections.singletonList("removed 0-2"), events);
+
+        append("d");
+        assertEquals(Collections.singletonList("d"), contents());
+    }
+
+    @Test
+    public void removedMessagesAreHandedBack() throws Exception {
+        List<String> removed = new ArrayList<>();
+        model = new MessageListModel(2, () -> {}, removed::add);
+
+        append("a", "b", "c");
+        assertEquals(Collections.singletonList("a"), removed);
+
+        // On the event thread, so the message is still waiting to be flushed
+        // when the list is cleared.
+        SwingUtilities.invokeAndWait(() -> {
+            model.post("queued");
+            model.clear();
+        });
+        assertEquals(Arrays.asList("a", "queued", "b", "c"), removed);
+    }
+
+    private boolean append(String... messages){
+        return model.append(new ArrayDeque<>(Arrays.asList(messages)));
+    }
+
+    private List<String> contents(){
+        List<String> contents = new ArrayList<>();
+        for(int i = 0; i < model.getSize(); i++) contents.add(model.getElementAt(i));
+        return contents;
+    }
+
+}
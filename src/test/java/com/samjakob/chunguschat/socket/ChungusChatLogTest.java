@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Paging through the chat log, and picking it up again after a restart.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusChatLogTest {
+
+    // Small enough that the tests span several segments.
+    private static final int SEGMENT_BYTES = 1024;
+    private static final int INDEX_INTERVAL = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("log");
+    }
+
+    @Test
+    public void pagesOnlyHoldTheRoomsMessages() throws IOException {
+        ChungusChatLog log = open();
+        for(int i = 1; i <= 100; i++) append(log, i % 10 == 0 ? "quiet" : "busy", "m" + i);
+
+        assertTrue(directory.listFiles((dir, name) -> name.endsWith(".log")).length > 1);
+
+        assertEquals(Arrays.asList("m70", "m80", "m90", "m100"), messages(log.before("quiet", Long.MAX_VALUE, 4)));
+        assertEquals(Arrays.asList("m10", "m20"), messages(log.before("quiet", 30, 10)));
+        assertEquals(Arrays.asList("m30", "m40"), messages(log.after("quiet", 20, 2)));
+        assertEquals(Arrays.asList("m98", "m99"), messages(log.before("busy", 100, 2)));
+    }
+
+    @Test
+    public void messagesToEveryRoomAreInEveryRoom() throws IOException {
+        ChungusChatLog log = open();
+        append(log, "a", "one");
+        append(log, null, "everyone");
+        append(log, "b", "two");
+
+        assertEquals(Arrays.asList("one", "everyone"), messages(log.after("a", 0, 10)));
+        assertEquals(Arrays.asList("everyone", "two"), messages(log.before("b", Long.MAX_VALUE, 10)));
+    }
+
+    @Test
+    public void pageIsAHistoryFrame() throws IOException {
+        ChungusChatLog log = open();
+        for(int i = 1; i <= 5; i++) append(log, "room", "m" + i);
+
+        ChungusPacket page = ChungusFrameCodec.decode(log.page("room", true, 5, 3));
+        assertEquals(ChungusProtocol.HISTORY_PAGE, page.rawPacketId);
+
+        ByteBuffer body = page.body();
+        assertEquals(3, body.getInt());
+
+        for(int i = 2; i <= 4; i++){
+            assertEquals(i, body.getLong());
+            body.getLong();
+
+            byte[] message = new byte[body.getInt()];
+            body.get(message);
+            assertEquals("m" + i, new String(message, StandardCharsets.UTF_8));
+        }
+        assertEquals(0, body.remaining());
+    }
+
+    @Test
+    public void pageIsCutShortAtTheLimit() throws IOException {
+        ChungusChatLog log = open();
+        for(int i = 0; i < ChungusChatLog.MAX_PAGE_SIZE + 10; i++) append(log, "room", "m");
+
+        ByteBuffer body = ChungusFrameCodec.decode(log.page("room", true, Long.MAX_VALUE, Integer.MAX_VALUE)).body();
+        assertEquals(ChungusChatLog.MAX_PAGE_SIZE, body.getInt());
+    }
+
+    @Test
+    public void submitDropsMessagesRatherThanWaitForTheWriter() throws IOException {
+        // Not started, so nothing takes messages off the queue.
+        ChungusChatLog log = open();
+        for(int i = 0; i < ChungusChatLog.MAX_PENDING + 5; i++){
+            log.submit("room", ByteBuffer.wrap("m".getBytes(StandardCharsets.UTF_8)));
+        }
+
+        assertEquals(5, log.getDropped());
+    }
+
+    @Test
+    public void reopenedLogCarriesOnWhereItLeftOff() throws IOException {
+        ChungusChatLog log = open();
+        for(int i = 1; i <= 50; i++) append(log, i % 5 == 0 ? "quiet" : "busy", "m" + i);
+
+        ChungusChatLog reopened = open();
+        assertEquals(51, reopened.getNextSequence());
+        assertEquals(Arrays.asList("m40", "m45", "m50"), messages(reopened.before("quiet", Long.MAX_VALUE, 3)));
+
+        assertEquals(51, append(reopened, "quiet", "m51"));
+        assertEquals(Arrays.asList("m50", "m51"), messages(reopened.after("quiet", 45, 10)));
+    }
+
+    @Test
+    public void tornRecordIsIgnoredOnRecovery() throws IOException {
+        ChungusChatLog log = open();
+        for(int i = 1; i <= 3; i++) append(log, "room", "m" + i);
+
+        // A record that only got as far as its length before a crash.
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".log"))[0];
+        int end = 0;
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")){
+            for(int i = 0; i < 3; i++){
+                file.seek(end);
+                end += 4 + file.readInt();
+            }
+
+            file.seek(end);
+            file.writeInt(30);
+        }
+
+        ChungusChatLog reopened = open();
+        assertEquals(4, reopened.getNextSequence());
+        assertEquals(Arrays.asList("m1", "m2", "m3"), messages(reopened.after("room", 0, 10)));
+    }
+
+    @Test
+    public void missingIndexEntryIsRebuiltOnRecovery() throws IOException {
+        ChungusChatLog log = open();
+        for(int i = 1; i <= 6; i++) append(log, "room", "m" + i);
+
+        // As if the server stopped between writing the 5th record and its
+        // index entry.
+        File index = directory.listFiles((dir, name) -> name.endsWith(".index"))[0];
+        try(RandomAccessFile file = new RandomAccessFile(index, "rw")){
+            file.setLength(12);
+        }
+
+        ChungusChatLog reopened = open();
+        for(int i = 7; i <= 12; i++) append(reopened, i % 2 == 0 ? "room" : "other", "m" + i);
+
+        assertEquals(Arrays.asList("m6", "m8", "m10", "m12"), messages(reopened.after("room", 5, 10)));
+        assertEquals(Arrays.asList("m3", "m4", "m5"), messages(reopened.before("room", 6, 3)));
+    }
+
+    private ChungusChatLog open() throws IOException {
+        ChungusChatLog log = new ChungusChatLog(directory, SEGMENT_BYTES, 0, INDEX_INTERVAL);
+        log.open();
+        return log;
+    }
+
+    private static long append(ChungusChatLog log, String room, String message) throws IOException {
+        return log.append(room, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> messages(List<ChungusChatLog.Record> records){
+        List<String> messages = new ArrayList<>();
+        for(ChungusChatLog.Record record : records){
+            messages.add(StandardCharsets.UTF_8.decode(record.message.duplicate()).toString());
+        }
+
+        return messages;
+    }
+
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The registry's version, and the cached user list that hangs off it.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusClientRegistryTest {
+
+    private ChungusSocketServer server;
+    private ChungusClientRegistry registry;
+
+    @Before
+    public void setUp(){
+        server = ChungusTestConnection.newServer();
+        registry = new ChungusClientRegistry();
+    }
+
+    @Test
+    public void userListIsOnlyRebuiltAfterAChange() throws IOException {
+        ChungusTestConnection alice = connect("alice");
+        registry.add(alice);
+
+        ChungusClientRegistry.UserList first = registry.getUserList();
+        assertSame(first, registry.getUserList());
+        assertEquals(registry.getVersion(), first.version);
+        assertEquals(Collections.singletonList("alice"), first.users);
+
+        ChungusTestConnection bob = connect("bob");
+        registry.add(bob);
+
+        ChungusClientRegistry.UserList second = registry.getUserList();
+        assertNotSame(first, second);
+        assertEquals(Arrays.asList("alice", "bob"), second.users);
+    }
+
+    @Test
+    public void everyChangeBumpsTheVersion() throws IOException {
+        ChungusTestConnection alice = connect("alice");
+
+        long version = registry.getVersion();
+        registry.add(alice);
+        assertTrue(registry.getVersion() > version);
+
+        version = registry.getVersion();
+        registry.rename(alice, "alice", "carol");
+        assertTrue(registry.getVersion() > version);
+        assertSame(alice, registry.get("carol"));
+
+        version = registry.getVersion();
+        registry.setRemoteUsers("node", Collections.singletonList("dave"));
+        assertTrue(registry.getVersion() > version);
+
+        version = registry.getVersion();
+        assertTrue(registry.remove(alice));
+        assertTrue(registry.getVersion() > version);
+    }
+
+    @Test
+    public void nothingChangesForClientsThatArentThere() throws IOException {
+        ChungusTestConnection alice = connect("alice");
+        registry.add(alice);
+
+        long version = registry.getVersion();
+        registry.add(alice);
+        assertEquals(version, registry.getVersion());
+        assertEquals(1, registry.size());
+
+        assertTrue(registry.remove(alice));
+        version = registry.getVersion();
+        assertFalse(registry.remove(alice));
+        registry.rename(alice, "alice", "carol");
+        assertEquals(version, registry.getVersion());
+    }
+
+    @Test
+    public void remoteUsersAreListedAfterLocalOnes() throws IOException {
+        registry.setRemoteUsers("node", Arrays.asList("dave", "erin"));
+        registry.add(connect("alice"));
+
+        assertEquals(Arrays.asList("alice", "dave", "erin"), registry.getUserList().users);
+        assertEquals(2, registry.remoteSize());
+
+        registry.setRemoteUsers("node", Collections.<String>emptyList());
+        assertEquals(Collections.singletonList("alice"), registry.getUserList().users);
+        assertEquals(0, registry.remoteSize());
+    }
+
+    private ChungusTestConnection connect(String username) throws IOException {
+        ChungusTestConnection client = new ChungusTestConnection(server);
+        client.connect(username);
+        return client;
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.crypto.Mac;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Relayed events reaching a node: each is delivered once, however many
+ * ways round the cluster it arrives, and only if a node that knows the
+ * secret sent it over the link.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusClusterTest {
+
+    private static final byte[] SECRET = "secret".getBytes(StandardCharsets.UTF_8);
+
+    private ChungusCluster cluster;
+    private ChungusTestConnection client;
+
+    @Before
+    public void setUp() throws IOException {
+        ChungusSocketServer server = ChungusTestConnection.newServer();
+        cluster = new ChungusCluster("node", 0, Collections.<InetSocketAddress>emptyList(), SECRET);
+
+        client = new ChungusTestConnection(server);
+        client.connect("alice");
+    }
+
+    @Test
+    public void eventIsDeliveredOnce() throws IOException {
+        cluster.receive(null, relay("other@1", 1, "hello"));
+        cluster.receive(null, relay("other@1", 1, "hello"));
+
+        assertEquals(Collections.singletonList("hello"), client.chatMessages());
+    }
+
+    @Test
+    public void olderEventsFromAnOriginAreDropped() throws IOException {
+        cluster.receive(null, relay("other@1", 2, "second"));
+        cluster.receive(null, relay("other@1", 1, "first"));
+        cluster.receive(null, relay("other@1", 3, "third"));
+
+        assertEquals(Arrays.asList("second", "third"), client.chatMessages());
+    }
+
+    @Test
+    public void originsAreNumberedSeparately() throws IOException {
+        cluster.receive(null, relay("other@1", 1, "one"));
+        cluster.receive(null, relay("another@1", 1, "two"));
+
+        assertEquals(Arrays.asList("one", "two"), client.chatMessages());
+    }
+
+    @Test
+    public void ownEventsComingBackAreDropped() throws IOException {
+        cluster.receive(null, relay(cluster.origin, 1, "loop"));
+
+        assertEquals(Collections.<String>emptyList(), client.chatMessages());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void truncatedRelayIsAProtocolError() throws IOException {
+        ByteBuffer frame = ChungusCluster.encodeRelay("other@1", 1, ChungusRoom.LOBBY,
+                ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "", "hello", false));
+
+        // Cut off part way through the sequence number.
+        int length = 2 + "other@1".length() + 4;
+        ByteBuffer truncated = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + length);
+        ChungusFrameCodec.putHeader(truncated, ChungusProtocol.CLUSTER_RELAY, 0, length);
+        frame.position(ChungusFrameCodec.HEADER_LENGTH).limit(ChungusFrameCodec.HEADER_LENGTH + length);
+        truncated.put(frame).flip();
+
+        cluster.receive(null, ChungusFrameCodec.decode(truncated).body());
+    }
+
+    @Test
+    public void helloIsOnlyAcceptedWithTheSecret() throws IOException {
+        ChungusCluster peer = new ChungusCluster("peer", 0, Collections.<InetSocketAddress>emptyList(), SECRET);
+        ChungusCluster stranger = new ChungusCluster("peer", 0, Collections.<InetSocketAddress>emptyList(),
+                "guess".getBytes(StandardCharsets.UTF_8));
+        byte[] challenge = ChungusCluster.newChallenge();
+
+        assertEquals(peer.origin, cluster.authenticate(challenge,
+                ChungusFrameCodec.decode(ChungusCluster.encodeHello(peer.origin, peer.prove(challenge, peer.origin)))));
+        assertNull(cluster.authenticate(challenge,
+                ChungusFrameCodec.decode(ChungusCluster.encodeHello(stranger.origin, stranger.prove(challenge, stranger.origin)))));
+
+        // Nor is a node's own proof, bounced back to it.
+        assertNull(cluster.authenticate(challenge,
+                ChungusFrameCodec.decode(ChungusCluster.encodeHello(cluster.origin, cluster.prove(challenge, cluster.origin)))));
+    }
+
+    @Test
+    public void relayTagOnlyChecksOutOnItsLinkInItsDirection() throws IOException {
+        ChungusCluster peer = new ChungusCluster("peer", 0, Collections.<InetSocketAddress>emptyList(), SECRET);
+        byte[] ours = ChungusCluster.newChallenge();
+        byte[] theirs = ChungusCluster.newChallenge();
+
+        ByteBuffer relay = relay("other@1", 1, "hello");
+        ByteBuffer tagged = tagged(relay, ChungusCluster.tag(peer.relayMac(ours, theirs), 0, relay));
+
+        assertEquals(relay, ChungusCluster.checkTag(cluster.relayMac(ours, theirs), 0, tagged));
+
+        assertTagFails(cluster.relayMac(ours, theirs), 1, tagged);
+        assertTagFails(cluster.relayMac(theirs, ours), 0, tagged);
+        assertTagFails(cluster.relayMac(ours, ChungusCluster.newChallenge()), 0, tagged);
+    }
+
+    @Test
+    public void linkDropsAPeerOnceARelayFailsItsCheck() throws IOException {
+        ChungusCluster peer = new ChungusCluster("peer", 0, Collections.<InetSocketAddress>emptyList(), SECRET);
+
+        try(ServerSocket listener = listen(); Socket socket = link(cluster, listener)){
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            byte[] nodeChallenge = challenge(read(in));
+            byte[] peerChallenge = ChungusCluster.newChallenge();
+            write(out, ChungusCluster.encodeChallenge(peerChallenge));
+            write(out, ChungusCluster.encodeHello(peer.origin, peer.prove(nodeChallenge, peer.origin)));
+
+            // The node's own relays (the roster it sends when the link comes
+            // up) are tagged for the peer.
+            awaitRelay(in, peer.relayMac(peerChallenge, nodeChallenge));
+
+            Mac sending = peer.relayMac(nodeChallenge, peerChallenge);
+            ByteBuffer relay = relay("peer@1", 1, "hello");
+            write(out, frame(ChungusProtocol.CLUSTER_RELAY, tagged(relay, ChungusCluster.tag(sending, 0, relay))));
+
+            // Tagged with a number that's already been used, as a replayed
+            // relay would be.
+            relay = relay("peer@1", 2, "again");
+            write(out, frame(ChungusProtocol.CLUSTER_RELAY, tagged(relay, ChungusCluster.tag(sending, 0, relay))));
+
+            readUntilClosed(in);
+        }
+
+        assertEquals(Collections.singletonList("hello"), client.chatMessages());
+    }
+
+    @Test
+    public void challengePassedOnToAnotherNodeDoesntLetAStrangerRelay() throws IOException {
+        ChungusCluster peer = new ChungusCluster("peer", 0, Collections.<InetSocketAddress>emptyList(), SECRET);
+
+        try(ServerSocket nodeListener = listen(); ServerSocket peerListener = listen();
+            Socket toNode = link(cluster, nodeListener); Socket toPeer = link(peer, peerListener)){
+            DataInputStream fromNode = new DataInputStream(toNode.getInputStream());
+            DataInputStream fromPeer = new DataInputStream(toPeer.getInputStream());
+
+            byte[] nodeChallenge = challenge(read(fromNode));
+            byte[] peerChallenge = challenge(read(fromPeer));
+
+            // The peer answers the node's challenge, and the node takes the
+            // answer as the peer's hello.
+            write(toPeer.getOutputStream(), ChungusCluster.encodeChallenge(nodeChallenge));
+            ByteBuffer hello = read(fromPeer);
+            write(toNode.getOutputStream(), ChungusCluster.encodeChallenge(peerChallenge));
+            write(toNode.getOutputStream(), hello);
+
+            // So the node takes the stranger for the peer...
+            awaitRelay(fromNode, null);
+
+            // ...but without the secret, the stranger can't tag a relay of its own.
+            ByteBuffer relay = relay("peer@1", 1, "forged");
+            write(toNode.getOutputStream(), frame(ChungusProtocol.CLUSTER_RELAY, tagged(relay, new byte[ChungusCluster.TAG_LENGTH])));
+
+            readUntilClosed(fromNode);
+        }
+
+        assertEquals(Collections.<String>emptyList(), client.chatMessages());
+    }
+
+    private static void assertTagFails(Mac mac, long number, ByteBuffer tagged){
+        try {
+            ChungusCluster.checkTag(mac, number, tagged);
+            fail("Tag checked out");
+        }catch(ProtocolException ex){
+            // Expected.
+        }
+    }
+
+    private static ByteBuffer relay(String origin, long sequence, String message) throws IOException {
+        ByteBuffer inner = ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "", message, false);
+        return ChungusFrameCodec.decode(ChungusCluster.encodeRelay(origin, sequence, ChungusRoom.LOBBY, inner)).body();
+    }
+
+    private static ByteBuffer tagged(ByteBuffer relay, byte[] tag){
+        ByteBuffer tagged = ByteBuffer.allocate(relay.remaining() + tag.length);
+        tagged.put(relay.duplicate()).put(tag).flip();
+        return tagged;
+    }
+
+    /*
+     * Links
+     */
+
+    private static ServerSocket listen() throws IOException {
+        return new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    // Connects to the node as a peer would, with the node's end of the link
+    // running on a thread of its own.
+    private static Socket link(ChungusCluster node, ServerSocket listener) throws IOException {
+        Socket socket = new Socket(listener.getInetAddress(), listener.getLocalPort());
+        socket.setSoTimeout(10000);
+
+        new Thread(new ChungusClusterLink(node, listener.accept()), "ChungusClusterTest-link").start();
+        return socket;
+    }
+
+    // A copy of the next frame.
+    private static ByteBuffer read(DataInputStream in) throws IOException {
+        ChungusPacket packet = ChungusFrameCodec.read(in, ByteBuffer.allocate(16));
+        return frame(packet.rawPacketId, packet.body());
+    }
+
+    private static ByteBuffer frame(int packetId, ByteBuffer body){
+        ByteBuffer frame = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH + body.remaining());
+        ChungusFrameCodec.putHeader(frame, packetId, 0, body.remaining());
+        frame.put(body).flip();
+        return frame;
+    }
+
+    private static byte[] challenge(ByteBuffer frame){
+        assertEquals(ChungusProtocol.CLUSTER_CHALLENGE, frame.get(0));
+
+        byte[] challenge = new byte[ChungusCluster.CHALLENGE_LENGTH];
+        frame.position(ChungusFrameCodec.HEADER_LENGTH);
+        frame.get(challenge);
+        return challenge;
+    }
+
+    private static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        out.flush();
+    }
+
+    /**
+     * Reads frames until the first relay, which the node only sends once
+     * the link is up, checking its tag if given a MAC to check it with.
+     */
+    private static void awaitRelay(DataInputStream in, Mac receiving) throws IOException {
+        ChungusPacket packet;
+        do {
+            packet = ChungusFrameCodec.read(in, ByteBuffer.allocate(16));
+        }while(packet.rawPacketId != ChungusProtocol.CLUSTER_RELAY);
+
+        if(receiving != null) ChungusCluster.checkTag(receiving, 0, packet.body());
+    }
+
+    // Reads frames until the node drops the link; a timeout fails the test.
+    private static void readUntilClosed(DataInputStream in) throws IOException {
+        try {
+            while(true) ChungusFrameCodec.read(in, ByteBuffer.allocate(16));
+        }catch(EOFException ex){
+            // Closed.
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips through the v3 and v4 codecs, and telling them apart by the
+ * first byte a client sends.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusCodecTest {
+
+    private static final String MESSAGE = "h\u00e9llo \u4e16\u754c \ud83d\ude00 \u0000";
+
+    /*
+     * v3
+     */
+
+    @Test
+    public void legacyStringPacketRoundTrips() throws IOException {
+        ByteBuffer encoded = ChungusPacketCodec.encode(ChungusProtocol.CHAT_MESSAGE, "[bob] ", MESSAGE);
+        ChungusPacket packet = ChungusPacketCodec.decode(encoded);
+
+        assertFalse(packet.isFramed());
+        assertEquals(ChungusProtocol.CHAT_MESSAGE, packet.packetId);
+        assertEquals("[bob] " + MESSAGE, packet.getPayload());
+        assertFalse(encoded.hasRemaining());
+    }
+
+    @Test
+    public void legacyPacketMatchesDataOutputStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(ChungusProtocol.CHAT_MESSAGE);
+        out.writeUTF(MESSAGE);
+
+        ByteBuffer encoded = ChungusPacketCodec.encode(ChungusProtocol.CHAT_MESSAGE, MESSAGE);
+        byte[] array = new byte[encoded.remaining()];
+        encoded.get(array);
+
+        assertArrayEquals(bytes.toByteArray(), array);
+
+        ChungusPacket packet = ChungusPacketCodec.read(new DataInputStream(new ByteArrayInputStream(array)));
+        assertEquals(MESSAGE, packet.getPayload());
+    }
+
+    @Test
+    public void legacyIntPacketRoundTrips() throws IOException {
+        ChungusPacket packet = ChungusPacketCodec.decode(
+                ChungusPacketCodec.encode(ChungusProtocol.SYSTEM_HANDSHAKE, ChungusProtocol.LEGACY_PROTOCOL_VERSION));
+
+        assertEquals(ChungusProtocol.SYSTEM_HANDSHAKE, packet.packetId);
+        assertEquals(ChungusProtocol.LEGACY_PROTOCOL_VERSION, packet.getIntPayload());
+    }
+
+    @Test
+    public void legacyPartialPacketIsLeftInTheBuffer() throws IOException {
+        ByteBuffer encoded = ChungusPacketCodec.encode(ChungusProtocol.CHAT_MESSAGE, MESSAGE);
+
+        for(int length = 0; length < encoded.remaining(); length++){
+            ByteBuffer partial = encoded.duplicate();
+            partial.limit(length);
+
+            assertNull(ChungusPacketCodec.decode(partial));
+            assertEquals(0, partial.position());
+        }
+    }
+
+    /*
+     * v4
+     */
+
+    @Test
+    public void frameStringPacketRoundTrips() throws IOException {
+        ByteBuffer encoded = ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "[bob] ", MESSAGE, false);
+        assertEquals(ChungusFrameCodec.HEADER_LENGTH + ChungusFrameCodec.utf8Length("[bob] " + MESSAGE), encoded.remaining());
+
+        ChungusPacket packet = ChungusFrameCodec.decode(encoded);
+
+        assertTrue(packet.isFramed());
+        assertEquals(ChungusProtocol.CHAT_MESSAGE, packet.packetId);
+        assertEquals("[bob] " + MESSAGE, packet.getPayload());
+        assertFalse(encoded.hasRemaining());
+    }
+
+    @Test
+    public void frameKeepsTheSilentBit() throws IOException {
+        int rawPacketId = ChungusProtocol.COMMAND_USERS | ChungusProtocol.PROTO_MASK_SILENT_COMMAND;
+        ChungusPacket packet = ChungusFrameCodec.decode(ChungusFrameCodec.encode(rawPacketId, "", "a|b", true));
+
+        assertEquals(rawPacketId, packet.rawPacketId);
+        assertEquals(ChungusProtocol.COMMAND_USERS, packet.packetId);
+        assertTrue(packet.silent);
+        assertEquals("a|b", packet.getPayload());
+    }
+
+    @Test
+    public void frameOfferRoundTrips() throws IOException {
+        byte[] hash = new byte[ChungusBlobStore.HASH_LENGTH];
+        for(int i = 0; i < hash.length; i++) hash[i] = (byte) i;
+
+        ChungusPacket packet = ChungusFrameCodec.decode(
+                ChungusFrameCodec.encode(ChungusProtocol.FT_OFFER, 1234567890123L, hash, "file.txt", false));
+        ByteBuffer body = packet.body();
+
+        assertEquals(1234567890123L, body.getLong());
+        byte[] decodedHash = new byte[hash.length];
+        body.get(decodedHash);
+        assertArrayEquals(hash, decodedHash);
+        assertEquals("file.txt", ChungusFrameCodec.getString(body));
+    }
+
+    @Test
+    public void framePartialPacketIsLeftInTheBuffer() throws IOException {
+        ByteBuffer encoded = ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "", MESSAGE, false);
+
+        for(int length = 0; length < encoded.remaining(); length++){
+            ByteBuffer partial = encoded.duplicate();
+            partial.limit(length);
+
+            assertNull(ChungusFrameCodec.decode(partial));
+            assertEquals(0, partial.position());
+        }
+    }
+
+    @Test
+    public void framesDecodeOneAfterAnother() throws IOException {
+        ByteBuffer first = ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "", "one", false);
+        ByteBuffer second = ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "", "two", false);
+
+        ByteBuffer both = ByteBuffer.allocate(first.remaining() + second.remaining());
+        both.put(first).put(second).flip();
+
+        assertEquals("one", ChungusFrameCodec.decode(both).getPayload());
+        assertEquals("two", ChungusFrameCodec.decode(both).getPayload());
+        assertNull(ChungusFrameCodec.decode(both));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void frameLongerThanTheMaximumIsRejected() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(ChungusFrameCodec.HEADER_LENGTH);
+        ChungusFrameCodec.putHeader(frame, ChungusProtocol.CHAT_MESSAGE, 0, ChungusFrameCodec.MAX_BODY_LENGTH + 1);
+        frame.flip();
+
+        ChungusFrameCodec.decode(frame);
+    }
+
+    @Test
+    public void frameReadFromAStreamGrowsPastTheScratchBuffer() throws IOException {
+        StringBuilder message = new StringBuilder();
+        while(message.length() < 1000) message.append(MESSAGE);
+
+        ByteBuffer encoded = ChungusFrameCodec.encode(ChungusProtocol.CHAT_MESSAGE, "", message.toString(), false);
+        byte[] array = new byte[encoded.remaining()];
+        encoded.get(array);
+
+        ChungusPacket packet = ChungusFrameCodec.read(new DataInputStream(new ByteArrayInputStream(array)), ByteBuffer.allocate(16));
+        assertEquals(message.toString(), packet.getPayload());
+    }
+
+    /*
+     * Sniffing
+     */
+
+    @Test
+    public void legacyHandshakeIsSniffedAsLegacy() throws IOException {
+        ByteBuffer handshake = ChungusWireFormat.LEGACY.encode(ChungusProtocol.SYSTEM_HANDSHAKE, ChungusProtocol.LEGACY_PROTOCOL_VERSION);
+        ChungusWireFormat format = ChungusWireFormat.sniff(handshake.get(0) & 0xFF);
+
+        assertSame(ChungusWireFormat.LEGACY, format);
+        assertEquals(ChungusProtocol.LEGACY_PROTOCOL_VERSION, format.decode(handshake).getIntPayload());
+    }
+
+    @Test
+    public void framedHandshakeIsSniffedAsFramed() throws IOException {
+        for(ByteBuffer handshake : new ByteBuffer[]{
+                ChungusWireFormat.FRAMED.encode(ChungusProtocol.SYSTEM_HANDSHAKE, ChungusProtocol.PROTOCOL_VERSION),
+                ChungusFrameCodec.encodeHandshake(ChungusProtocol.PROTOCOL_VERSION, ChungusProtocol.HANDSHAKE_DEFLATE, false)
+        }){
+            ChungusWireFormat format = ChungusWireFormat.sniff(handshake.get(0) & 0xFF);
+
+            assertSame(ChungusWireFormat.FRAMED, format);
+            assertEquals(ChungusProtocol.PROTOCOL_VERSION, format.decode(handshake).getIntPayload());
+        }
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The histogram's buckets: exact below 16, and within 1/16 above.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusHistogramTest {
+
+    @Test
+    public void smallValuesAreExact(){
+        for(long value = 0; value < 16; value++){
+            assertEquals(value, percentileOf(value, 0));
+        }
+    }
+
+    @Test
+    public void percentileIsTheEndOfTheValuesBucket(){
+        // 1000 is 0b1111101000: its bucket is 992 to 1023. From 1024 they're
+        // 64 wide.
+        assertEquals(1023, percentileOf(1000, 5000));
+        assertEquals(1023, percentileOf(992, 5000));
+        assertEquals(1087, percentileOf(1024, 5000));
+
+        // Every value up to 31 has its own bucket; from 32 they're two wide.
+        assertEquals(16, percentileOf(16, 5000));
+        assertEquals(31, percentileOf(31, 5000));
+        assertEquals(33, percentileOf(32, 5000));
+    }
+
+    @Test
+    public void bucketsAreWithinASixteenthOfTheValue(){
+        for(long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1){
+            long percentile = percentileOf(value, Long.MAX_VALUE);
+
+            assertTrue(value + " -> " + percentile, percentile >= value);
+            assertTrue(value + " -> " + percentile, percentile - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void percentileNeverExceedsTheMaximum(){
+        ChungusHistogram histogram = new ChungusHistogram();
+        histogram.record(1000);
+
+        assertEquals(1000, histogram.snapshot().getPercentile(0.99));
+    }
+
+    @Test
+    public void extremesAreRecorded(){
+        ChungusHistogram histogram = new ChungusHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+
+        ChungusHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(2, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0.5));
+        assertEquals(Long.MAX_VALUE, snapshot.getPercentile(1));
+        assertEquals(Long.MAX_VALUE, snapshot.getMax());
+    }
+
+    @Test
+    public void percentilesSplitTheCounts(){
+        ChungusHistogram histogram = new ChungusHistogram();
+        for(int value = 1; value <= 10; value++) histogram.record(value);
+
+        ChungusHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(5, snapshot.getPercentile(0.5));
+        assertEquals(9, snapshot.getPercentile(0.9));
+        assertEquals(10, snapshot.getPercentile(0.99));
+        assertEquals(5.5, snapshot.getMean(), 0);
+    }
+
+    @Test
+    public void sinceOnlyCountsLaterValues(){
+        ChungusHistogram histogram = new ChungusHistogram();
+        histogram.record(1);
+        ChungusHistogram.Snapshot earlier = histogram.snapshot();
+
+        histogram.record(3);
+        histogram.record(3);
+        ChungusHistogram.Snapshot since = histogram.snapshot().since(earlier);
+
+        assertEquals(2, since.getCount());
+        assertEquals(3, since.getPercentile(0.01));
+        assertEquals(3, since.getMean(), 0);
+    }
+
+    // The median of the value, alongside a larger one so that the median
+    // isn't capped at the maximum.
+    private static long percentileOf(long value, long larger){
+        ChungusHistogram histogram = new ChungusHistogram();
+        histogram.record(value);
+        histogram.record(value);
+        histogram.record(Math.max(value, larger));
+
+        return histogram.snapshot().getPercentile(0.5);
+    }
+
+}
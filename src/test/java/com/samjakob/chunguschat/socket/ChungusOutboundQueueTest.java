@@ -0,0 +1,158 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What each slow consumer policy does once a client's queue is full.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusOutboundQueueTest {
+
+    @Test
+    public void dropOldestKeepsTheNewestFrames(){
+        ChungusOutboundQueue queue = new ChungusOutboundQueue(null, 3, ChungusSlowConsumerPolicy.DROP_OLDEST);
+
+        for(int i = 0; i < 5; i++) assertTrue(queue.offer(frame(i), true));
+
+        assertEquals(3, queue.getDepth());
+        assertEquals(2, queue.getDropped());
+        assertTrue(queue.dropsFrames());
+
+        assertEquals(2, queue.poll().get(0));
+        assertEquals(3, queue.poll().get(0));
+        assertEquals(4, queue.poll().get(0));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void disconnectRefusesFramesOnceFull(){
+        ChungusOutboundQueue queue = new ChungusOutboundQueue(null, 2, ChungusSlowConsumerPolicy.DISCONNECT);
+
+        assertTrue(queue.offer(frame(0), true));
+        assertTrue(queue.offer(frame(1), true));
+        assertFalse(queue.offer(frame(2), true));
+
+        assertEquals(0, queue.getDropped());
+        assertFalse(queue.dropsFrames());
+        assertEquals(0, queue.poll().get(0));
+        assertEquals(1, queue.poll().get(0));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void coalesceTellsTheClientHowManyItMissed() throws IOException {
+        ChungusTestConnection client = new ChungusTestConnection(ChungusTestConnection.newServer());
+        ChungusOutboundQueue queue = new ChungusOutboundQueue(client, 2, ChungusSlowConsumerPolicy.COALESCE);
+
+        for(int i = 0; i < 5; i++) assertTrue(queue.offer(frame(i), true));
+        assertEquals(3, queue.getDropped());
+
+        assertEquals(3, queue.poll().get(0));
+        assertEquals(4, queue.poll().get(0));
+
+        // Only once the client has caught up.
+        ChungusPacket notice = ChungusFrameCodec.decode(queue.poll());
+        assertEquals(ChungusProtocol.CHAT_MESSAGE, notice.packetId);
+        assertTrue(notice.getPayload(), notice.getPayload().startsWith("[SYSTEM] 3 messages were skipped"));
+
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void onlyDroppableFramesAreDropped(){
+        ChungusOutboundQueue queue = new ChungusOutboundQueue(null, 3, ChungusSlowConsumerPolicy.DROP_OLDEST);
+
+        assertTrue(queue.offer(frame(0)));
+        assertTrue(queue.offer(frame(1), true));
+        assertTrue(queue.offer(frame(2)));
+        assertTrue(queue.offer(frame(3)));
+
+        assertEquals(1, queue.getDropped());
+        assertEquals(0, queue.poll().get(0));
+        assertEquals(2, queue.poll().get(0));
+        assertEquals(3, queue.poll().get(0));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void queueFullOfFramesThatMustArriveDisconnects(){
+        ChungusOutboundQueue queue = new ChungusOutboundQueue(null, 2, ChungusSlowConsumerPolicy.COALESCE);
+
+        assertTrue(queue.offer(frame(0)));
+        assertTrue(queue.offer(frame(1)));
+
+        // A chat message can still be skipped...
+        assertTrue(queue.offer(frame(2), true));
+        assertEquals(1, queue.getDropped());
+
+        // ...but anything else can't be queued or dropped.
+        assertFalse(queue.offer(frame(3)));
+
+        assertEquals(0, queue.poll().get(0));
+        assertEquals(1, queue.poll().get(0));
+    }
+
+    @Test
+    public void onlyChatIsDroppable(){
+        assertTrue(ChungusOutboundQueue.isDroppable(ChungusProtocol.CHAT_MESSAGE));
+        assertTrue(ChungusSharedFrame.of(ChungusProtocol.CHAT_MESSAGE, "[SYSTEM] ", "hello").isDroppable());
+
+        assertFalse(ChungusSharedFrame.of(ChungusProtocol.PRESENCE_JOIN, "", "bob").isDroppable());
+        assertFalse(ChungusSharedFrame.offer(ChungusProtocol.FT_OFFER, "file.txt", 10, null).isDroppable());
+        assertFalse(ChungusOutboundQueue.isDroppable(ChungusProtocol.FT_UPLOAD_STATUS));
+        assertFalse(ChungusOutboundQueue.isDroppable(ChungusProtocol.HISTORY_PAGE));
+    }
+
+    @Test
+    public void closedQueueIsDrainedThenEnds() throws InterruptedException {
+        ChungusOutboundQueue queue = new ChungusOutboundQueue(null, 4, ChungusSlowConsumerPolicy.DISCONNECT);
+        queue.offer(frame(0));
+        queue.close();
+
+        // Frames offered after closing are ignored, not refused.
+        assertTrue(queue.offer(frame(1)));
+
+        assertEquals(0, queue.take().get(0));
+        assertNull(queue.take());
+        assertNull(queue.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    private static ByteBuffer frame(int marker){
+        ByteBuffer frame = ByteBuffer.allocate(1);
+        frame.put(0, (byte) marker);
+        return frame;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A client connection with no socket behind it, for tests. Frames are
+ * taken off the outbound queue as soon as they're queued and kept, so a
+ * test can decode what the client would have been sent.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+final class ChungusTestConnection extends ChungusConnection {
+
+    final List<ByteBuffer> frames;
+
+    ChungusTestConnection(ChungusSocketServer server){
+        super(server);
+        this.wireFormat = ChungusWireFormat.FRAMED;
+        this.frames = new ArrayList<>();
+    }
+
+    /**
+     * A server that isn't hosting, on a port the system picks, to give
+     * connections their queue settings and to reset the server's rooms.
+     */
+    static ChungusSocketServer newServer(){
+        System.setProperty(ChungusSocketServer.PORT_PROPERTY, "0");
+        System.setProperty(ChungusSocketServer.JMX_PROPERTY, "false");
+        return new ChungusSocketServer(ChungusServerEngine.THREAD_PER_CLIENT);
+    }
+
+    /**
+     * Adds the connection to the server, then shakes hands and sets its
+     * username the way a real client would.
+     */
+    void connect(String username) throws IOException {
+        ChungusSocketServer.add(this);
+
+        handlePacket(wireFormat.decode(wireFormat.encode(ChungusProtocol.SYSTEM_HANDSHAKE, wireFormat.protocolVersion)));
+        handlePacket(wireFormat.decode(wireFormat.encode(ChungusProtocol.USERNAME, "", username, false)));
+        frames.clear();
+    }
+
+    /**
+     * The payloads of the chat messages sent to the client so far.
+     */
+    List<String> chatMessages() throws IOException {
+        List<String> messages = new ArrayList<>();
+        for(ByteBuffer frame : frames){
+            ChungusPacket packet = ChungusFrameCodec.decode(frame.duplicate());
+            if(packet.rawPacketId == ChungusProtocol.CHAT_MESSAGE) messages.add(packet.getPayload());
+        }
+
+        return messages;
+    }
+
+    @Override
+    void wakeWriter(){
+        ByteBuffer frame;
+        while((frame = outbound.poll()) != null) frames.add(frame);
+    }
+
+    @Override
+    void holdReads(long nanos){}
+
+    @Override
+    void holdReads(CompletableFuture<?> until){}
+
+    @Override
+    void abort(){}
+
+    @Override
+    SocketAddress getRemoteAddress(){
+        return null;
+    }
+
+    @Override
+    void disconnect(){
+        outbound.close();
+    }
+
+}
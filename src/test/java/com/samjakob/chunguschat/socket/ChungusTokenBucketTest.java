@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * How long a token bucket makes callers wait.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusTokenBucketTest {
+
+    private static final long RATE = 1 << 20;
+
+    @Test
+    public void noLimitNeverWaits(){
+        ChungusTokenBucket bucket = new ChungusTokenBucket(0);
+
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+        assertEquals(0, bucket.reserve(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void startsWithASecondsWorth(){
+        ChungusTokenBucket bucket = new ChungusTokenBucket(RATE);
+
+        assertEquals(0, bucket.reserve(RATE));
+    }
+
+    @Test
+    public void debtIsPaidOffAtTheRate(){
+        ChungusTokenBucket bucket = new ChungusTokenBucket(RATE);
+        bucket.reserve(RATE);
+
+        // Half a second's worth more, less whatever refilled meanwhile.
+        long wait = bucket.reserve(RATE / 2);
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(400));
+        assertTrue(wait <= TimeUnit.MILLISECONDS.toNanos(500));
+
+        // Callers queue up behind the debt.
+        long next = bucket.reserve(RATE / 2);
+        assertTrue(next > wait + TimeUnit.MILLISECONDS.toNanos(400));
+    }
+
+    @Test
+    public void newRateStartsFull(){
+        ChungusTokenBucket bucket = new ChungusTokenBucket(RATE);
+        bucket.reserve(RATE * 10);
+
+        bucket.setRate(RATE * 2);
+        assertEquals(RATE * 2, bucket.getRate());
+        assertEquals(0, bucket.reserve(RATE * 2));
+    }
+
+    @Test
+    public void negativeRateIsNoLimit(){
+        ChungusTokenBucket bucket = new ChungusTokenBucket(-1);
+
+        assertEquals(0, bucket.getRate());
+        assertEquals(0, bucket.reserve(RATE));
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2019 Sam Jakob Mearns <me@samjakob.com>.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.samjakob.chunguschat.socket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Which chunks an upload still needs, across reconnects and restarts.
+ *
+ * @author Sam Jakob Mearns <me@samjakob.com>
+ */
+public class ChungusUploadTest {
+
+    private static final int CHUNK_SIZE = ChungusChunkedTransfer.MIN_CHUNK_SIZE;
+    // Ten chunks, the last one short.
+    private static final int FILE_LENGTH = CHUNK_SIZE * 9 + 100;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ChungusBlobStore store;
+    private File file;
+    private String contentHash;
+    private int[] checksums;
+    private ByteBuffer buffer;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new ChungusBlobStore(folder.newFolder("store"));
+        store.open();
+
+        byte[] bytes = new byte[FILE_LENGTH];
+        new Random(1).nextBytes(bytes);
+        file = folder.newFile("upload.bin");
+        Files.write(file.toPath(), bytes);
+
+        MessageDigest digest = ChungusBlobStore.newDigest();
+        checksums = ChungusChunkedTransfer.checksums(file, FILE_LENGTH, CHUNK_SIZE, digest);
+        contentHash = ChungusBlobStore.toHex(digest.digest());
+        buffer = ByteBuffer.allocate(CHUNK_SIZE);
+    }
+
+    @Test
+    public void chunkRangesAreGrouped(){
+        List<int[]> ranges = ChungusChunkedTransfer.ranges(Arrays.asList(0, 1, 2, 5, 7, 8));
+
+        assertEquals(3, ranges.size());
+        assertArrayEquals(new int[]{ 0, 3 }, ranges.get(0));
+        assertArrayEquals(new int[]{ 5, 1 }, ranges.get(1));
+        assertArrayEquals(new int[]{ 7, 2 }, ranges.get(2));
+    }
+
+    @Test
+    public void rangesRoundTrip() throws IOException {
+        List<int[]> ranges = ChungusChunkedTransfer.ranges(Arrays.asList(1, 2, 9));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChungusChunkedTransfer.writeRanges(new DataOutputStream(bytes), ranges);
+        List<int[]> read = ChungusChunkedTransfer.readRanges(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 10);
+
+        assertEquals(ranges.size(), read.size());
+        for(int i = 0; i < ranges.size(); i++) assertArrayEquals(ranges.get(i), read.get(i));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rangePastTheLastChunkIsRejected() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ChungusChunkedTransfer.writeRanges(new DataOutputStream(bytes), Arrays.asList(new int[]{ 8, 3 }));
+
+        ChungusChunkedTransfer.readRanges(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), 10);
+    }
+
+    @Test
+    public void lastChunkIsShort(){
+        assertEquals(10, ChungusChunkedTransfer.chunkCount(FILE_LENGTH, CHUNK_SIZE));
+        assertEquals(CHUNK_SIZE, ChungusChunkedTransfer.chunkLength(8, FILE_LENGTH, CHUNK_SIZE));
+        assertEquals(100, ChungusChunkedTransfer.chunkLength(9, FILE_LENGTH, CHUNK_SIZE));
+    }
+
+    @Test
+    public void missingRangesShrinkAsChunksArrive() throws IOException {
+        ChungusUpload upload = open();
+        assertRanges(upload, new int[]{ 0, 10 });
+
+        write(upload, 0);
+        write(upload, 1);
+        write(upload, 5);
+        write(upload, 9);
+        assertRanges(upload, new int[]{ 2, 3 }, new int[]{ 6, 3 });
+
+        upload.close();
+    }
+
+    @Test
+    public void resumedUploadOnlyNeedsWhatsMissing() throws IOException {
+        ChungusUpload upload = open();
+        for(int i = 0; i < 10; i += 2) write(upload, i);
+        upload.close();
+
+        ChungusUpload resumed = open();
+        assertRanges(resumed, new int[]{ 1, 1 }, new int[]{ 3, 1 }, new int[]{ 5, 1 }, new int[]{ 7, 1 }, new int[]{ 9, 1 });
+        assertNull(resumed.complete(buffer));
+
+        for(int i = 1; i < 10; i += 2) write(resumed, i);
+        File blob = resumed.complete(buffer);
+
+        assertNotNull(blob);
+        assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(blob.toPath()));
+        assertRanges(resumed);
+    }
+
+    @Test
+    public void chunkThatDoesntMatchItsChecksumIsStillMissing() throws IOException {
+        ChungusUpload upload = open();
+
+        ByteBuffer chunk = chunk(3);
+        chunk.put(0, (byte) (chunk.get(0) + 1));
+        assertFalse(upload.write(3, chunk));
+
+        assertRanges(upload, new int[]{ 0, 10 });
+        assertTrue(upload.write(3, chunk(3)));
+        assertRanges(upload, new int[]{ 0, 3 }, new int[]{ 4, 6 });
+
+        upload.close();
+    }
+
+    private ChungusUpload open() throws IOException {
+        String transferId = ChungusChunkedTransfer.transferId("alice", file.getName(), FILE_LENGTH, contentHash, CHUNK_SIZE, checksums);
+        return ChungusUpload.open(store, transferId, "alice", file.getName(), FILE_LENGTH, contentHash, CHUNK_SIZE, checksums);
+    }
+
+    private ByteBuffer chunk(int index) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            ChungusChunkedTransfer.readChunk(channel, chunk, index, FILE_LENGTH, CHUNK_SIZE);
+        }
+
+        return chunk;
+    }
+
+    private void write(ChungusUpload upload, int index) throws IOException {
+        assertTrue(upload.write(index, chunk(index)));
+    }
+
+    private static void assertRanges(ChungusUpload upload, int[]... expected){
+        List<int[]> ranges = upload.getMissingRanges();
+
+        List<String> actual = new ArrayList<>();
+        for(int[] range : ranges) actual.add(Arrays.toString(range));
+        List<String> wanted = new ArrayList<>();
+        for(int[] range : expected) wanted.add(Arrays.toString(range));
+
+        assertEquals(wanted, actual);
+    }
+
+}